@@ -0,0 +1,11 @@
+package com.gdetotut.jundo;
+
+import java.io.Serializable;
+
+/**
+ * Interface for boolean value's getter. Used in {@link BooleanRefCmd}
+ */
+@FunctionalInterface
+public interface BooleanGetter extends Serializable {
+    boolean get();
+}
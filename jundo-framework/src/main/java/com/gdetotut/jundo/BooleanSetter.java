@@ -0,0 +1,11 @@
+package com.gdetotut.jundo;
+
+import java.io.Serializable;
+
+/**
+ * Interface for boolean value's setter. Used in {@link BooleanRefCmd}
+ */
+@FunctionalInterface
+public interface BooleanSetter extends Serializable {
+    void set(boolean v);
+}
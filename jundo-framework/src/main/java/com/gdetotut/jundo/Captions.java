@@ -0,0 +1,54 @@
+package com.gdetotut.jundo;
+
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Interner of commands' captions: equal captions share one String, so a long history of commands
+ * with repeated captions keeps a single copy of each.
+ * <p>Captions are held weakly and go away with the last command that uses them.
+ * The table is split into stripes locked separately, so commands made in different threads
+ * seldom wait for each other.
+ */
+final class Captions {
+
+    /**
+     * Number of stripes; power of 2.
+     */
+    private static final int STRIPES = 16;
+
+    @SuppressWarnings("unchecked")
+    private static final Map<String, WeakReference<String>>[] TABLES = new Map[STRIPES];
+
+    static {
+        for (int i = 0; i < STRIPES; ++i) {
+            TABLES[i] = new WeakHashMap<>();
+        }
+    }
+
+    private Captions() {
+    }
+
+    /**
+     * @param caption caption to intern. Optional.
+     * @return The caption equal to the given one, shared by all commands; null for null.
+     */
+    static String intern(String caption) {
+        if (null == caption) {
+            return null;
+        }
+        int h = caption.hashCode();
+        Map<String, WeakReference<String>> table = TABLES[(h ^ (h >>> 16)) & (STRIPES - 1)];
+        synchronized (table) {
+            WeakReference<String> ref = table.get(caption);
+            String shared = null != ref ? ref.get() : null;
+            if (null == shared) {
+                table.put(caption, new WeakReference<>(caption));
+                shared = caption;
+            }
+            return shared;
+        }
+    }
+
+}
@@ -0,0 +1,81 @@
+package com.gdetotut.jundo;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Interface for compression of {@link UndoPacket}'s binary form. Used in {@link UndoPacket.Builder#codec}.
+ * <p>The codec's {@link #id} is written to the packet's header, so the packet is restored by the same codec.
+ * The built-in codecs are known by their ids; other ones should be registered by {@link UndoPacket#registerCodec}
+ * before restore.
+ */
+public interface Codec {
+
+    /**
+     * Stores data as is. The fastest way for interactive autosave of small stacks.
+     */
+    Codec NONE = new Codecs.None();
+
+    /**
+     * GZIP with the default level, as {@link UndoPacket.Builder#zipped} does.
+     */
+    Codec GZIP = new Codecs.Gzip();
+
+    /**
+     * @param level compression level from {@link java.util.zip.Deflater#BEST_SPEED} to
+     *              {@link java.util.zip.Deflater#BEST_COMPRESSION}, or {@link java.util.zip.Deflater#DEFAULT_COMPRESSION}.
+     * @return Deflate codec with the given level.
+     */
+    static Codec deflate(int level) {
+        return new Codecs.Deflate(Codecs.DEFLATE_ID, level, null);
+    }
+
+    /**
+     * Deflate with the preset dictionary of strings common for serialized stacks: names of jundo's classes
+     * and their fields, standard collections, lambdas etc. It helps most for small packets.
+     *
+     * @param level compression level, see {@link #deflate(int)}.
+     * @return Deflate codec with the given level and the built-in dictionary.
+     */
+    static Codec deflateWithDictionary(int level) {
+        return new Codecs.Deflate(Codecs.DICTIONARY_ID, level, Codecs.DICTIONARY);
+    }
+
+    /**
+     * Deflate with the custom preset dictionary, e.g. made of application's command class names and captions.
+     * <p>Register the codec with the same id and dictionary by {@link UndoPacket#registerCodec} to restore packets.
+     *
+     * @param id         codec's id, see {@link #id}.
+     * @param level      compression level, see {@link #deflate(int)}.
+     * @param dictionary preset dictionary; the most frequent strings should be at its end. Required.
+     * @return Deflate codec with the given level and the dictionary.
+     */
+    static Codec deflate(int id, int level, byte[] dictionary) {
+        if (null == dictionary) {
+            throw new NullPointerException("dictionary");
+        }
+        Codecs.checkCustomId(id);
+        return new Codecs.Deflate(id, level, dictionary.clone());
+    }
+
+    /**
+     * @return Codec's identifier from 0 to 255. Identifiers below 16 are reserved
+     * for the built-in codecs.
+     */
+    int id();
+
+    /**
+     * @param out stream for compressed data. Required.
+     * @return Stream that compresses data into out. Closing it should finish compression and close out.
+     * @throws IOException If something goes wrong.
+     */
+    OutputStream encode(OutputStream out) throws IOException;
+
+    /**
+     * @param in stream of compressed data. Required.
+     * @return Stream that decompresses data from in. Closing it should close in.
+     * @throws IOException If something goes wrong.
+     */
+    InputStream decode(InputStream in) throws IOException;
+}
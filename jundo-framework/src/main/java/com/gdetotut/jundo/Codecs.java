@@ -0,0 +1,191 @@
+package com.gdetotut.jundo;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.*;
+
+/**
+ * Built-in {@link Codec}s and the registry of codecs by id.
+ */
+final class Codecs {
+
+    static final int NONE_ID = 0;
+    static final int GZIP_ID = 1;
+    static final int DEFLATE_ID = 2;
+    static final int DICTIONARY_ID = 3;
+
+    /**
+     * The least id for custom codecs.
+     */
+    static final int FIRST_CUSTOM_ID = 16;
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    /**
+     * Built-in preset dictionary: the class descriptors and names that a stored packet contains.
+     * Deflate finds matches nearer to the end cheaper, so the strings repeated in every command go last.
+     * <p>Packets refer to the dictionary by {@link #DICTIONARY_ID}, so a changed dictionary needs a new id.
+     */
+    static final byte[] DICTIONARY = (""
+            + "java.util.TreeMapcomparatorLjava/util/Comparator;java.lang.Longjava.lang.Numbervalue"
+            + "java.lang.Integerjava.lang.Booleanjava.lang.Doublejava.util.ArrayListsize"
+            + "com.gdetotut.jundo.UndoPacket$DatasubjHandledstackLcom/gdetotut/jundo/UndoStack;"
+            + "subjLjava/io/Serializable;com.gdetotut.jundo.UndoStackcleanIdxidxmemoryLimit"
+            + "propertyMergeWindowsuspendundoLimitcommandsLcom/gdetotut/jundo/RingList;"
+            + "macroCmdLcom/gdetotut/jundo/UndoCommand;macrosLjava/util/List;com.gdetotut.jundo.RingList"
+            + "com.gdetotut.jundo.LazyCmdbytes[Bcom.gdetotut.jundo.UndoCommandcaptionLjava/lang/Object;"
+            + "children[Lcom/gdetotut/jundo/UndoCommand;owner"
+            + "java.lang.invoke.SerializedLambdaimplMethodKindcapturedArgs[Ljava/lang/Object;"
+            + "capturingClassLjava/lang/Class;functionalInterfaceClassLjava/lang/String;"
+            + "functionalInterfaceMethodNamefunctionalInterfaceMethodSignatureimplClassimplMethodName"
+            + "implMethodSignatureinstantiatedMethodType[Ljava.lang.Object;lambda$"
+            + "com/gdetotut/jundo/Getterget()Ljava/io/Serializable;"
+            + "com/gdetotut/jundo/Setterset(Ljava/io/Serializable;)V(Ljava/lang/Integer;)V(I)V"
+            + "java.lang.EnumINSTANCEcom.gdetotut.jundo.CommandStreams$SubjRef"
+            + "com.gdetotut.jundo.CommandStreams$OwnerRefcom.gdetotut.jundo.Serializers$Compact").getBytes(StandardCharsets.ISO_8859_1);
+
+    /**
+     * Codecs by id.
+     */
+    private static final Map<Integer, Codec> REGISTRY = new ConcurrentHashMap<>();
+
+    static {
+        REGISTRY.put(NONE_ID, Codec.NONE);
+        REGISTRY.put(GZIP_ID, Codec.GZIP);
+        REGISTRY.put(DEFLATE_ID, Codec.deflate(Deflater.DEFAULT_COMPRESSION));
+        REGISTRY.put(DICTIONARY_ID, Codec.deflateWithDictionary(Deflater.DEFAULT_COMPRESSION));
+    }
+
+    static void checkCustomId(int id) {
+        if (id < FIRST_CUSTOM_ID || id > 255) {
+            throw new IllegalArgumentException("custom codec's id should be from " + FIRST_CUSTOM_ID + " to 255");
+        }
+    }
+
+    static void register(Codec codec) {
+        checkCustomId(codec.id());
+        REGISTRY.put(codec.id(), codec);
+    }
+
+    /**
+     * @param id codec's id.
+     * @return Codec for decoding.
+     * @throws IOException If there is no codec with the id.
+     */
+    static Codec get(int id) throws IOException {
+        Codec codec = REGISTRY.get(id);
+        if (null == codec) {
+            throw new IOException("unknown codec: " + id);
+        }
+        return codec;
+    }
+
+    static final class None implements Codec {
+
+        @Override
+        public int id() {
+            return NONE_ID;
+        }
+
+        @Override
+        public OutputStream encode(OutputStream out) {
+            return out;
+        }
+
+        @Override
+        public InputStream decode(InputStream in) {
+            return in;
+        }
+    }
+
+    static final class Gzip implements Codec {
+
+        @Override
+        public int id() {
+            return GZIP_ID;
+        }
+
+        @Override
+        public OutputStream encode(OutputStream out) throws IOException {
+            return new GZIPOutputStream(out, BUFFER_SIZE);
+        }
+
+        @Override
+        public InputStream decode(InputStream in) throws IOException {
+            return new GZIPInputStream(in, BUFFER_SIZE);
+        }
+    }
+
+    static final class Deflate implements Codec {
+
+        private final int id;
+        private final int level;
+        private final byte[] dictionary;
+
+        Deflate(int id, int level, byte[] dictionary) {
+            if ((level < Deflater.BEST_SPEED || level > Deflater.BEST_COMPRESSION)
+                    && level != Deflater.DEFAULT_COMPRESSION) {
+                throw new IllegalArgumentException("wrong level: " + level);
+            }
+            this.id = id;
+            this.level = level;
+            this.dictionary = dictionary;
+        }
+
+        @Override
+        public int id() {
+            return id;
+        }
+
+        @Override
+        public OutputStream encode(OutputStream out) {
+            Deflater deflater = new Deflater(level);
+            if (null != dictionary) {
+                deflater.setDictionary(dictionary);
+            }
+            return new DeflaterOutputStream(out, deflater, BUFFER_SIZE) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        deflater.end();
+                    }
+                }
+            };
+        }
+
+        @Override
+        public InputStream decode(InputStream in) {
+            Inflater inflater = new Inflater();
+            return new InflaterInputStream(in, inflater, BUFFER_SIZE) {
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    int n = super.read(b, off, len);
+                    if (n == -1 && inflater.needsDictionary() && null != dictionary) {
+                        inflater.setDictionary(dictionary);
+                        n = super.read(b, off, len);
+                    }
+                    return n;
+                }
+
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        inflater.end();
+                    }
+                }
+            };
+        }
+    }
+
+    private Codecs() {
+    }
+
+}
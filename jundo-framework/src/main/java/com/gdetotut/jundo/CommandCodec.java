@@ -0,0 +1,100 @@
+package com.gdetotut.jundo;
+
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+
+/**
+ * Serializer and copier for commands of the exact class, found via {@link java.util.ServiceLoader}.
+ * <p>Usually it is generated for the class marked with {@link GenerateCodec} by the annotation processor
+ * from jundo-processor module, together with the service's entry in
+ * {@code META-INF/services/com.gdetotut.jundo.CommandCodec}. So commands are written, read and copied
+ * by plain field access, without reflection.
+ * <p>The command's owner, caption and children are handled here; the derived class handles the command's own fields.
+ *
+ * @param <C> the type of the command.
+ */
+public abstract class CommandCodec<C extends UndoCommand> implements UndoSerializer<C>, Copier<C> {
+
+    private final Class<C> type;
+    private final int id;
+
+    /**
+     * @param type class of commands. Required.
+     * @param id   serializer's identifier, 16 or greater. See {@link UndoPacket#registerSerializer}.
+     */
+    protected CommandCodec(Class<C> type, int id) {
+        if (null == type) {
+            throw new NullPointerException("type");
+        }
+        this.type = type;
+        this.id = id;
+    }
+
+    /**
+     * @return Class of commands.
+     */
+    public final Class<C> type() {
+        return type;
+    }
+
+    /**
+     * @return Serializer's identifier.
+     */
+    public final int id() {
+        return id;
+    }
+
+    /**
+     * Makes the command before its fields are set.
+     *
+     * @param owner   the stack that owns the command.
+     * @param caption command's caption.
+     * @return New command.
+     */
+    protected abstract C create(UndoStack owner, String caption);
+
+    /**
+     * @param cmd command.
+     * @param out stream to write the command's own fields to.
+     * @throws IOException If something goes wrong.
+     */
+    protected abstract void writeFields(C cmd, ObjectOutput out) throws IOException;
+
+    /**
+     * @param cmd command made by {@link #create}.
+     * @param in  stream to read the command's own fields from.
+     * @throws IOException            If something goes wrong.
+     * @throws ClassNotFoundException If the class of field's value is not found.
+     */
+    protected abstract void readFields(C cmd, ObjectInput in) throws IOException, ClassNotFoundException;
+
+    /**
+     * @param src command to copy from.
+     * @param dst command made by {@link #create}.
+     */
+    protected abstract void copyFields(C src, C dst);
+
+    @Override
+    public final void write(C cmd, ObjectOutput out) throws IOException {
+        Serializers.writeCommand(out, cmd);
+        writeFields(cmd, out);
+        Serializers.writeChildren(out, cmd);
+    }
+
+    @Override
+    public final C read(ObjectInput in) throws IOException, ClassNotFoundException {
+        C cmd = create((UndoStack) in.readObject(), (String) in.readObject());
+        readFields(cmd, in);
+        Serializers.readChildren(in, cmd);
+        return cmd;
+    }
+
+    @Override
+    public final C copy(C cmd) {
+        C copy = create(cmd.owner, null);
+        copy.copyCaption(cmd);
+        copyFields(cmd, copy);
+        return copy;
+    }
+}
@@ -0,0 +1,206 @@
+package com.gdetotut.jundo;
+
+import java.io.*;
+import java.lang.invoke.SerializedLambda;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Object streams for a single {@link UndoCommand}.
+ * <p>The owner stack is written as a reference only, so the stack's history is never written together
+ * with the command. On reading the reference is bound to the given stack again.
+ * <p>The same goes for the owner's subject (unless it is a plain value like String or Number),
+ * so the command restored this way acts on the live subject rather than on its copy.
+ * <p>Objects of classes with registered {@link UndoSerializer} are written by their serializers.
+ */
+final class CommandStreams {
+
+    /**
+     * Placeholder written instead of the owner stack.
+     */
+    private enum OwnerRef {
+        INSTANCE
+    }
+
+    /**
+     * Placeholder written instead of the owner's subject.
+     */
+    private enum SubjRef {
+        INSTANCE
+    }
+
+    /**
+     * @param obj object to check.
+     * @return True if the object is a plain value, which is the same whether it is copied or not.
+     */
+    private static boolean isValue(Object obj) {
+        return obj instanceof String || obj instanceof Number || obj instanceof Boolean
+                || obj instanceof Character || obj instanceof Enum;
+    }
+
+    /**
+     * @param owner the stack. Optional.
+     * @return Subject of the stack if it should be written as a reference; otherwise null.
+     */
+    private static Object subjOf(UndoStack owner) {
+        Object subj = null != owner ? owner.getSubj() : null;
+        if (isValue(subj)) {
+            // Equal values may be shared by identity, so they can't mark the subject.
+            return null;
+        }
+        return subj;
+    }
+
+    /**
+     * Writes objects replacing the owner stack with {@link OwnerRef} and its subject with {@link SubjRef}.
+     */
+    static final class Output extends ObjectOutputStream {
+
+        private final UndoStack owner;
+        private final Object subj;
+
+        /**
+         * Indices of functions written by {@link Serializers#writeFunction}.
+         */
+        final Map<Object, Integer> functions = new HashMap<>();
+        int functionCount;
+
+        /**
+         * If set, functions that capture objects other than the owner, its subject and plain values
+         * are rejected. See {@link #toJournalBytes}.
+         */
+        boolean detachedOnly;
+
+        /**
+         * @param out   stream to write to. Required.
+         * @param owner the stack to write as a reference. Optional.
+         * @throws IOException If something goes wrong.
+         */
+        Output(OutputStream out, UndoStack owner) throws IOException {
+            super(out);
+            this.owner = owner;
+            this.subj = subjOf(owner);
+            enableReplaceObject(true);
+        }
+
+        @Override
+        protected Object replaceObject(Object obj) throws IOException {
+            if (detachedOnly && obj instanceof SerializedLambda) {
+                checkCaptured((SerializedLambda) obj);
+            }
+            if (obj == owner && null != owner) {
+                return OwnerRef.INSTANCE;
+            } else if (obj == subj && null != subj) {
+                return SubjRef.INSTANCE;
+            }
+            return Serializers.replace(obj);
+        }
+
+        /**
+         * @param lambda serialized function.
+         * @throws NotSerializableException If the function captures object that would be read as a copy.
+         */
+        private void checkCaptured(SerializedLambda lambda) throws NotSerializableException {
+            for (int i = 0; i < lambda.getCapturedArgCount(); ++i) {
+                Object arg = lambda.getCapturedArg(i);
+                // Captured functions are checked when they are written themselves.
+                if (null != arg && arg != owner && arg != subj && !isValue(arg) && !arg.getClass().isSynthetic()) {
+                    throw new NotSerializableException(lambda.getImplClass().replace('/', '.') + "."
+                            + lambda.getImplMethodName() + " captures " + arg.getClass().getName()
+                            + " that is not the subject itself and would be restored as a copy;"
+                            + " use RefHandles or find it from the subject");
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads objects resolving {@link OwnerRef} to the owner stack and {@link SubjRef} to its subject.
+     */
+    static final class Input extends ObjectInputStream {
+
+        private final UndoStack owner;
+
+        /**
+         * Functions read by {@link Serializers#readFunction}.
+         */
+        final List<Object> functions = new ArrayList<>();
+
+        /**
+         * @param in    stream to read from. Required.
+         * @param owner the stack to bind references to. Optional.
+         * @throws IOException If something goes wrong.
+         */
+        Input(InputStream in, UndoStack owner) throws IOException {
+            super(in);
+            this.owner = owner;
+            enableResolveObject(true);
+        }
+
+        @Override
+        protected Object resolveObject(Object obj) {
+            if (obj == OwnerRef.INSTANCE) {
+                return owner;
+            } else if (obj == SubjRef.INSTANCE) {
+                return owner.getSubj();
+            }
+            return obj;
+        }
+    }
+
+    /**
+     * Converts command to bytes with its owner written as a reference.
+     *
+     * @param cmd command to convert. Required.
+     * @return Bytes of the command.
+     * @throws IOException If something goes wrong.
+     */
+    static byte[] toBytes(UndoCommand cmd) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try (Output out = new Output(baos, cmd.owner)) {
+            out.writeObject(cmd);
+        }
+        return baos.toByteArray();
+    }
+
+    /**
+     * Converts command to bytes as {@link #toBytes} does, but only if it is restored the same on its own,
+     * i.e. its functions capture nothing from inside the subject. Used by {@link UndoJournal}, which
+     * restores commands on the subject read from the other stream.
+     *
+     * @param cmd command to convert. Required.
+     * @return Bytes of the command.
+     * @throws NotSerializableException If the command's function captures object other than the subject
+     *                                  and plain values.
+     * @throws IOException              If something else goes wrong.
+     */
+    static byte[] toJournalBytes(UndoCommand cmd) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try (Output out = new Output(baos, cmd.owner)) {
+            out.detachedOnly = true;
+            out.writeObject(cmd);
+        }
+        return baos.toByteArray();
+    }
+
+    /**
+     * Restores command from bytes made by {@link #toBytes}.
+     *
+     * @param bytes bytes of the command. Required.
+     * @param owner the stack to bind the command to. Required.
+     * @return Restored command.
+     * @throws IOException            If something goes wrong.
+     * @throws ClassNotFoundException If the class of the command is not found.
+     */
+    static UndoCommand fromBytes(byte[] bytes, UndoStack owner) throws IOException, ClassNotFoundException {
+        try (Input in = new Input(new ByteArrayInputStream(bytes), owner)) {
+            return (UndoCommand) in.readObject();
+        }
+    }
+
+    private CommandStreams() {
+    }
+
+}
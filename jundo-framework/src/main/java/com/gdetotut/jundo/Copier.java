@@ -0,0 +1,12 @@
+package com.gdetotut.jundo;
+
+/**
+ * Interface for command's copier. Used in {@link UndoStack#clone}.
+ * <p>Copier makes the command itself only; its children are copied and owner is set by the stack.
+ *
+ * @param <C> the type of the command.
+ */
+@FunctionalInterface
+public interface Copier<C extends UndoCommand> {
+    C copy(C cmd) throws Exception;
+}
@@ -0,0 +1,11 @@
+package com.gdetotut.jundo;
+
+import java.io.Serializable;
+
+/**
+ * Interface for double value's getter. Used in {@link DoubleRefCmd}
+ */
+@FunctionalInterface
+public interface DoubleGetter extends Serializable {
+    double get();
+}
@@ -0,0 +1,11 @@
+package com.gdetotut.jundo;
+
+import java.io.Serializable;
+
+/**
+ * Interface for double value's setter. Used in {@link DoubleRefCmd}
+ */
+@FunctionalInterface
+public interface DoubleSetter extends Serializable {
+    void set(double v);
+}
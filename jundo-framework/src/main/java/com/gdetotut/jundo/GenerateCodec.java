@@ -0,0 +1,27 @@
+package com.gdetotut.jundo;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks {@link UndoCommand}'s subclass to generate {@link CommandCodec} for it at compile time.
+ * <p>Add jundo-processor to the annotation processor path. For the class {@code Foo} it generates
+ * {@code Foo_Codec} in the same package and registers it as the service.
+ * <p>The class should have non-private constructor {@code (UndoStack owner, String caption, UndoCommand parent)}
+ * that just passes them to the super constructor. All its non-static non-transient fields are written
+ * in declaration order, so they should be non-private and non-final. Copy is shallow: objects in fields
+ * are shared between the command and its copy, except arrays which are cloned.
+ */
+@Documented
+@Retention(RetentionPolicy.CLASS)
+@Target(ElementType.TYPE)
+public @interface GenerateCodec {
+
+    /**
+     * @return Serializer's identifier, 16 or greater. See {@link UndoPacket#registerSerializer}.
+     */
+    int id();
+}
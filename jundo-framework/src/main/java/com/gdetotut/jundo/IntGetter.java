@@ -0,0 +1,11 @@
+package com.gdetotut.jundo;
+
+import java.io.Serializable;
+
+/**
+ * Interface for int value's getter. Used in {@link IntRefCmd}
+ */
+@FunctionalInterface
+public interface IntGetter extends Serializable {
+    int get();
+}
@@ -0,0 +1,11 @@
+package com.gdetotut.jundo;
+
+import java.io.Serializable;
+
+/**
+ * Interface for int value's setter. Used in {@link IntRefCmd}
+ */
+@FunctionalInterface
+public interface IntSetter extends Serializable {
+    void set(int v);
+}
@@ -0,0 +1,29 @@
+package com.gdetotut.jundo;
+
+/**
+ * Stub that stands in {@link UndoStack}'s list of commands for the command that is not deserialized yet.
+ * <p>Keeps caption of the command so the captions are available without deserializing the command.
+ * The command is deserialized from {@link #bytes} the first time it is reached.
+ *
+ * @see UndoPacket.Builder#lazy
+ */
+final class LazyCmd extends UndoCommand {
+
+    private static final long serialVersionUID = 7802123261993690638L;
+
+    /**
+     * The command in the form of {@link CommandStreams#toBytes}.
+     */
+    final byte[] bytes;
+
+    /**
+     * @param cmd   command to stand for. Required.
+     * @param bytes the command in the form of {@link CommandStreams#toBytes}. Required.
+     */
+    LazyCmd(UndoCommand cmd, byte[] bytes) {
+        super(cmd.owner, null, null);
+        copyCaption(cmd);
+        this.bytes = bytes;
+    }
+
+}
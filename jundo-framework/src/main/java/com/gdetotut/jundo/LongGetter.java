@@ -0,0 +1,11 @@
+package com.gdetotut.jundo;
+
+import java.io.Serializable;
+
+/**
+ * Interface for long value's getter. Used in {@link LongRefCmd}
+ */
+@FunctionalInterface
+public interface LongGetter extends Serializable {
+    long get();
+}
@@ -0,0 +1,88 @@
+package com.gdetotut.jundo;
+
+/**
+ * Simple command with access to long value via getter/setter references.
+ * <p>The same as {@link RefCmd} for long property, but keeps values unboxed.
+ */
+public final class LongRefCmd extends PropertyCmd {
+
+    private static final long serialVersionUID = 4440246879922639198L;
+
+    final LongSetter setter;
+    final long oldValue;
+    long newValue;
+
+    /**
+     * Constructs object.
+     *
+     * @param owner    the stack that owns this command. Required.
+     * @param caption  a short string describing what this command does. Optional.
+     * @param getter   a reference to getter-method for this value. Required.
+     * @param setter   a reference to setter-method for this value. Required.
+     * @param newValue the value to set to.
+     * @param parent   command's parent. Used in the concept of 'command-chain'.  Optional.
+     */
+    public LongRefCmd(UndoStack owner, String caption, LongGetter getter, LongSetter setter, long newValue,
+                      UndoCommand parent) {
+        this(owner, caption, null, getter, setter, newValue, parent);
+    }
+
+    /**
+     * Constructs object for the named property. See {@link RefCmd} about the key.
+     *
+     * @param owner    the stack that owns this command. Required.
+     * @param caption  a short string describing what this command does. Optional.
+     * @param key      name of the property, unique within the subject. Optional.
+     * @param getter   a reference to getter-method for this value. Required.
+     * @param setter   a reference to setter-method for this value. Required.
+     * @param newValue the value to set to.
+     * @param parent   command's parent. Used in the concept of 'command-chain'.  Optional.
+     */
+    public LongRefCmd(UndoStack owner, String caption, String key, LongGetter getter, LongSetter setter, long newValue,
+                      UndoCommand parent) {
+        super(owner, caption, key, parent);
+        if (getter == null) {
+            throw new NullPointerException("getter");
+        } else if (setter == null) {
+            throw new NullPointerException("setter");
+        } else {
+            this.setter = setter;
+            this.oldValue = getter.get();
+            this.newValue = newValue;
+        }
+    }
+
+    /**
+     * Constructs object with the known old value. Used by {@link Serializers}.
+     */
+    LongRefCmd(UndoStack owner, String caption, String key, LongSetter setter, long oldValue, long newValue) {
+        super(owner, caption, key, null);
+        if (setter == null) {
+            throw new NullPointerException("setter");
+        }
+        this.setter = setter;
+        this.oldValue = oldValue;
+        this.newValue = newValue;
+    }
+
+    @Override
+    Object setter() {
+        return setter;
+    }
+
+    @Override
+    void takeValue(PropertyCmd cmd) {
+        newValue = ((LongRefCmd) cmd).newValue;
+    }
+
+    @Override
+    protected void doUndo() {
+        setter.set(oldValue);
+    }
+
+    @Override
+    protected void doRedo() {
+        setter.set(newValue);
+    }
+
+}
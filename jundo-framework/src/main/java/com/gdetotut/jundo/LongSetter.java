@@ -0,0 +1,11 @@
+package com.gdetotut.jundo;
+
+import java.io.Serializable;
+
+/**
+ * Interface for long value's setter. Used in {@link LongRefCmd}
+ */
+@FunctionalInterface
+public interface LongSetter extends Serializable {
+    void set(long v);
+}
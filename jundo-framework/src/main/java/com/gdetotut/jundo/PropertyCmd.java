@@ -0,0 +1,59 @@
+package com.gdetotut.jundo;
+
+/**
+ * Base of commands that set the subject's property via setter: {@link RefCmd} and its primitive variants.
+ * <p>{@link UndoStack#setIndex(int)} applies runs of such commands by their net effect.
+ * <p>Consecutive commands for the same property are merged if the owner has it turned on,
+ * see {@link UndoStack#setPropertyMergeWindow}.
+ */
+abstract class PropertyCmd extends UndoCommand {
+
+    private static final long serialVersionUID = 5041203439076699961L;
+
+    /**
+     * Name of the property the command changes. Optional.
+     */
+    final String key;
+
+    PropertyCmd(UndoStack owner, String caption, String key, UndoCommand parent) {
+        super(owner, caption, parent);
+        this.key = key;
+    }
+
+    /**
+     * @return The command's setter.
+     */
+    abstract Object setter();
+
+    /**
+     * @return Identity of the property the command changes: its key if set; otherwise the setter.
+     */
+    final Object property() {
+        return null != key ? key : setter();
+    }
+
+    /**
+     * Takes the new value of cmd, keeping own old value.
+     *
+     * @param cmd command of the same class.
+     */
+    abstract void takeValue(PropertyCmd cmd);
+
+    /**
+     * Merges cmd if it changes the same property and the owner merges property commands at the moment.
+     */
+    @Override
+    public boolean mergeWith(UndoCommand cmd) {
+        if (cmd == null) {
+            throw new NullPointerException("cmd");
+        }
+        if (owner.mergeProperties && cmd.getClass() == getClass() && cmd.owner == owner
+                && childCount() == 0 && cmd.childCount() == 0
+                && property().equals(((PropertyCmd) cmd).property())) {
+            takeValue((PropertyCmd) cmd);
+            return true;
+        }
+        return false;
+    }
+
+}
@@ -0,0 +1,156 @@
+package com.gdetotut.jundo;
+
+import java.io.Serializable;
+import java.util.Objects;
+
+/**
+ * Simple command with access via getter/setter references, or by the property's handle in {@link RefHandles}.
+ *
+ * @param <V> the type of the referenced value.
+ */
+public final class RefCmd<V extends Serializable> extends PropertyCmd {
+
+    private static final long serialVersionUID = 4046698166805513321L;
+
+    /**
+     * Setter; null if the command is made by the handle.
+     */
+    final Setter<V> setter;
+
+    /**
+     * Handle of the property in {@link RefHandles}; -1 if the command is made by the setter.
+     * Used only if {@link #setter} is null: commands read from old packets have it zero.
+     */
+    final int handle;
+
+    /**
+     * The property found by {@link #handle} for the owner's subject.
+     */
+    private transient RefHandles.Accessor<V> accessor;
+
+    final V oldValue;
+    V newValue;
+
+    /**
+     * Constructs object.
+     *
+     * @param owner   the stack that owns this command. Required.
+     * @param caption a short string describing what this command does. Optional.
+     * @param getter   a reference to getter-method for this value. Getter shouldn't has parameters
+     *                 and should return value of the V type. Required.
+     * @param setter   a reference to setter-method for this value. Getter should has parameter
+     *                 of the V type and shouldn't return value. Required.
+     * @param newValue the value to set to.
+     * @param parent  command's parent. Used in the concept of 'command-chain'.  Optional.
+     */
+    public RefCmd(UndoStack owner, String caption, Getter<V> getter, Setter<V> setter, V newValue,
+                  UndoCommand parent) {
+        this(owner, caption, null, getter, setter, newValue, parent);
+    }
+
+    /**
+     * Constructs object for the named property.
+     * <p>When {@link UndoStack#setIndex(int)} passes a run of commands for the same property, only
+     * the last value is set. Without the key the property is recognized only by the same setter's instance,
+     * which is not the case for method references like {@code subj::setValue} made for every command.
+     *
+     * @param owner    the stack that owns this command. Required.
+     * @param caption  a short string describing what this command does. Optional.
+     * @param key      name of the property, unique within the subject. Optional.
+     * @param getter   a reference to getter-method for this value. Required.
+     * @param setter   a reference to setter-method for this value. Required.
+     * @param newValue the value to set to.
+     * @param parent   command's parent. Used in the concept of 'command-chain'.  Optional.
+     */
+    public RefCmd(UndoStack owner, String caption, String key, Getter<V> getter, Setter<V> setter, V newValue,
+                  UndoCommand parent) {
+        super(owner, caption, key, parent);
+        if (getter == null) {
+            throw new NullPointerException("getter");
+        } else if (setter == null) {
+            throw new NullPointerException("setter");
+        } else {
+            this.setter = setter;
+            this.handle = -1;
+            this.oldValue = getter.get();
+            this.newValue = newValue;
+        }
+    }
+
+    /**
+     * Constructs object for the property registered in {@link RefHandles} for the type of the owner's subject.
+     * <p>The command keeps only the handle, so it is cheaper to clone and store than the one with
+     * getter/setter references. Commands with the same handle are for the same property.
+     *
+     * @param owner    the stack that owns this command. Required, as well as its subject.
+     * @param caption  a short string describing what this command does. Optional.
+     * @param handle   handle of the property, see {@link RefHandles#register}.
+     * @param newValue the value to set to.
+     * @param parent   command's parent. Used in the concept of 'command-chain'.  Optional.
+     * @throws IllegalArgumentException If the handle is not registered for the subject's type.
+     */
+    public RefCmd(UndoStack owner, String caption, int handle, V newValue, UndoCommand parent) {
+        super(owner, caption, null, parent);
+        this.setter = null;
+        this.handle = handle;
+        this.oldValue = accessor().getter.apply(owner.getSubj());
+        this.newValue = newValue;
+    }
+
+    /**
+     * Constructs object with the known old value. Used by {@link Serializers.RefCmdSerializer}.
+     *
+     * @param setter setter; null if handle is set.
+     * @param handle handle of the property; -1 if setter is set.
+     */
+    RefCmd(UndoStack owner, String caption, String key, Setter<V> setter, int handle, V oldValue, V newValue) {
+        super(owner, caption, key, null);
+        if (setter == null && handle < 0) {
+            throw new NullPointerException("setter");
+        }
+        this.setter = setter;
+        this.handle = handle;
+        this.oldValue = oldValue;
+        this.newValue = newValue;
+    }
+
+    /**
+     * @return The property found by the handle.
+     */
+    private RefHandles.Accessor<V> accessor() {
+        if (null == accessor) {
+            accessor = RefHandles.get(owner.getSubj(), handle);
+        }
+        return accessor;
+    }
+
+    private void set(V value) {
+        if (null != setter) {
+            setter.set(value);
+        } else {
+            accessor().setter.accept(owner.getSubj(), value);
+        }
+    }
+
+    @Override
+    Object setter() {
+        return null != setter ? setter : accessor();
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    void takeValue(PropertyCmd cmd) {
+        newValue = ((RefCmd<V>) cmd).newValue;
+    }
+
+    @Override
+    protected void doUndo() {
+        set(oldValue);
+    }
+
+    @Override
+    protected void doRedo() {
+        set(newValue);
+    }
+
+}
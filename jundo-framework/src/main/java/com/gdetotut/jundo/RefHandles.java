@@ -0,0 +1,97 @@
+package com.gdetotut.jundo;
+
+import java.io.Serializable;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * Registry of subject's properties by stable integer handles, used by {@link RefCmd}.
+ * <p>RefCmd made by the handle keeps only the handle and its values: no lambda is stored, cloned
+ * or serialized with it, and the property is found by the type of the stack's subject.
+ * <pre>
+ *     static final int X = RefHandles.register(Point.class, 1, Point::getX, Point::setX);
+ *     ...
+ *     stack.push(new RefCmd&lt;&gt;(stack, "x", X, 10, null));
+ * </pre>
+ * Handles are stored in packets, so they should be registered before restore and never changed.
+ */
+public final class RefHandles {
+
+    /**
+     * Registered property.
+     *
+     * @param <V> the type of the property's value.
+     */
+    static final class Accessor<V extends Serializable> {
+        final int handle;
+        final Function<Object, V> getter;
+        final BiConsumer<Object, V> setter;
+
+        Accessor(int handle, Function<Object, V> getter, BiConsumer<Object, V> setter) {
+            this.handle = handle;
+            this.getter = getter;
+            this.setter = setter;
+        }
+    }
+
+    private static final Map<Class<?>, Map<Integer, Accessor<?>>> BY_TYPE = new ConcurrentHashMap<>();
+
+    private RefHandles() {
+    }
+
+    /**
+     * Registers the property for the subject's type. The property is found for subclasses too.
+     *
+     * @param type   the subject's type. Required.
+     * @param handle handle of the property, unique within the type. Should not be negative.
+     * @param getter a reference to getter-method of the subject. Required.
+     * @param setter a reference to setter-method of the subject. Required.
+     * @param <S>    the subject's type.
+     * @param <V>    the type of the property's value.
+     * @return The handle.
+     */
+    @SuppressWarnings("unchecked")
+    public static synchronized <S, V extends Serializable> int register(Class<S> type, int handle,
+                                                                        Function<S, V> getter,
+                                                                        BiConsumer<S, V> setter) {
+        if (null == type) {
+            throw new NullPointerException("type");
+        } else if (null == getter) {
+            throw new NullPointerException("getter");
+        } else if (null == setter) {
+            throw new NullPointerException("setter");
+        } else if (handle < 0) {
+            throw new IllegalArgumentException("handle should not be negative");
+        }
+        Map<Integer, Accessor<?>> handles = BY_TYPE.computeIfAbsent(type, t -> new ConcurrentHashMap<>());
+        if (handles.containsKey(handle)) {
+            throw new IllegalArgumentException("handle " + handle + " is already registered for " + type.getName());
+        }
+        handles.put(handle, new Accessor<>(handle, (Function<Object, V>) getter, (BiConsumer<Object, V>) setter));
+        return handle;
+    }
+
+    /**
+     * @param subj   the subject. Required.
+     * @param handle handle of the property.
+     * @return The property registered for the subject's type or its superclass.
+     * @throws IllegalArgumentException If there is no such property.
+     */
+    @SuppressWarnings("unchecked")
+    static <V extends Serializable> Accessor<V> get(Object subj, int handle) {
+        if (null == subj) {
+            throw new NullPointerException("subj");
+        }
+        for (Class<?> type = subj.getClass(); null != type; type = type.getSuperclass()) {
+            Map<Integer, Accessor<?>> handles = BY_TYPE.get(type);
+            Accessor<?> accessor = null != handles ? handles.get(handle) : null;
+            if (null != accessor) {
+                return (Accessor<V>) accessor;
+            }
+        }
+        throw new IllegalArgumentException("handle " + handle + " is not registered for " + subj.getClass().getName());
+    }
+
+}
@@ -0,0 +1,234 @@
+package com.gdetotut.jundo;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.RandomAccess;
+
+/**
+ * List on the circular buffer. Used as {@link UndoStack}'s command storage.
+ * <p>Adding to the top, removing from the top and from the bottom take O(1), as well as random access.
+ * <p>Every element may have a weight (e.g. estimated size), the list keeps the sum of weights up to date.
+ *
+ * @param <E> the type of elements.
+ */
+final class RingList<E> extends AbstractList<E> implements RandomAccess, Serializable {
+
+    private static final long serialVersionUID = 3278239372867022172L;
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    /**
+     * Buffer of elements. Its length is always a power of two.
+     */
+    private transient Object[] items = new Object[INITIAL_CAPACITY];
+
+    /**
+     * Position of the bottom element in {@link #items}.
+     */
+    private transient int head;
+
+    /**
+     * Count of elements.
+     */
+    private transient int size;
+
+    /**
+     * Weights of elements, parallel to {@link #items}. Created on the first non-zero weight.
+     */
+    private transient long[] weights;
+
+    /**
+     * Sum of {@link #weights}.
+     */
+    private transient long weight;
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public E get(int index) {
+        checkIndex(index);
+        return (E) items[pos(index)];
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public E set(int index, E element) {
+        checkIndex(index);
+        int p = pos(index);
+        E old = (E) items[p];
+        items[p] = element;
+        return old;
+    }
+
+    @Override
+    public boolean add(E element) {
+        if (size == items.length) {
+            grow();
+        }
+        items[pos(size++)] = element;
+        ++modCount;
+        return true;
+    }
+
+    /**
+     * @return Sum of weights of all elements.
+     */
+    long weight() {
+        return weight;
+    }
+
+    /**
+     * @param index index of element.
+     * @return Weight of the element.
+     */
+    long weight(int index) {
+        checkIndex(index);
+        return null == weights ? 0 : weights[pos(index)];
+    }
+
+    /**
+     * Sets weight of the element.
+     *
+     * @param index index of element.
+     * @param value new weight.
+     */
+    void setWeight(int index, long value) {
+        checkIndex(index);
+        if (null == weights) {
+            if (value == 0) {
+                return;
+            }
+            weights = new long[items.length];
+        }
+        int p = pos(index);
+        weight += value - weights[p];
+        weights[p] = value;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public E remove(int index) {
+        checkIndex(index);
+        E old = (E) items[pos(index)];
+        if (index == 0) {
+            removeFirst(1);
+        } else {
+            setWeight(index, 0);
+            // Shift the upper part down; for the top element there is nothing to shift.
+            for (int i = index; i < size - 1; ++i) {
+                items[pos(i)] = items[pos(i + 1)];
+                if (null != weights) {
+                    weights[pos(i)] = weights[pos(i + 1)];
+                }
+            }
+            int top = pos(--size);
+            items[top] = null;
+            if (null != weights) {
+                weights[top] = 0;
+            }
+            ++modCount;
+        }
+        return old;
+    }
+
+    /**
+     * Removes count elements from the bottom.
+     *
+     * @param count count of elements to remove.
+     */
+    void removeFirst(int count) {
+        if (count < 0 || count > size) {
+            throw new IndexOutOfBoundsException("count: " + count + ", size: " + size);
+        }
+        for (int i = 0; i < count; ++i) {
+            setWeight(i, 0);
+            items[pos(i)] = null;
+        }
+        head = pos(count);
+        size -= count;
+        ++modCount;
+    }
+
+    /**
+     * Removes elements from the top until size becomes newSize.
+     *
+     * @param newSize size to achieve.
+     */
+    void truncate(int newSize) {
+        if (newSize < 0 || newSize > size) {
+            throw new IndexOutOfBoundsException("newSize: " + newSize + ", size: " + size);
+        }
+        for (int i = newSize; i < size; ++i) {
+            setWeight(i, 0);
+            items[pos(i)] = null;
+        }
+        size = newSize;
+        ++modCount;
+    }
+
+    @Override
+    public void clear() {
+        Arrays.fill(items, null);
+        weights = null;
+        weight = 0;
+        head = 0;
+        size = 0;
+        ++modCount;
+    }
+
+    private int pos(int index) {
+        return (head + index) & (items.length - 1);
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("index: " + index + ", size: " + size);
+        }
+    }
+
+    private void grow() {
+        Object[] newItems = new Object[items.length << 1];
+        long[] newWeights = null == weights ? null : new long[newItems.length];
+        for (int i = 0; i < size; ++i) {
+            newItems[i] = items[pos(i)];
+            if (null != weights) {
+                newWeights[i] = weights[pos(i)];
+            }
+        }
+        items = newItems;
+        weights = newWeights;
+        head = 0;
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        out.writeInt(size);
+        for (int i = 0; i < size; ++i) {
+            out.writeObject(items[pos(i)]);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        int count = in.readInt();
+        int capacity = INITIAL_CAPACITY;
+        while (capacity < count) {
+            capacity <<= 1;
+        }
+        items = new Object[capacity];
+        for (int i = 0; i < count; ++i) {
+            items[i] = in.readObject();
+        }
+        size = count;
+    }
+
+}
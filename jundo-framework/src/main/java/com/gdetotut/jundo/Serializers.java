@@ -0,0 +1,608 @@
+package com.gdetotut.jundo;
+
+import java.io.*;
+import java.lang.invoke.SerializedLambda;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Built-in {@link UndoSerializer}s and the registry of serializers by class and id.
+ * <p>{@link CommandStreams.Output} replaces registered objects with {@link Compact}, which writes the object
+ * by its serializer and is resolved back to the object when read.
+ * <p>{@link CommandCodec}s found by {@link ServiceLoader} are registered at start. A provider that can't be
+ * loaded or registered is skipped; its error is reported when its id is read or its class is written.
+ */
+final class Serializers {
+
+    static final int COMMAND_ID = 1;
+    static final int REF_CMD_ID = 2;
+    static final int SUBJ_INFO_ID = 3;
+    static final int INT_REF_CMD_ID = 4;
+    static final int LONG_REF_CMD_ID = 5;
+    static final int DOUBLE_REF_CMD_ID = 6;
+    static final int BOOLEAN_REF_CMD_ID = 7;
+
+    /**
+     * The least id for custom serializers.
+     */
+    static final int FIRST_CUSTOM_ID = 16;
+
+    /**
+     * Serializer with its id.
+     */
+    private static final class Entry {
+        final int id;
+        final UndoSerializer<Object> serializer;
+
+        @SuppressWarnings("unchecked")
+        Entry(int id, UndoSerializer<?> serializer) {
+            this.id = id;
+            this.serializer = (UndoSerializer<Object>) serializer;
+        }
+    }
+
+    private static final Map<Class<?>, Entry> BY_CLASS = new ConcurrentHashMap<>();
+    private static final Map<Integer, Entry> BY_ID = new ConcurrentHashMap<>();
+
+    /**
+     * Errors of {@link CommandCodec} providers that can't be registered (e.g. conflict with others),
+     * by their ids and classes.
+     */
+    private static final Map<Integer, String> BROKEN_IDS = new ConcurrentHashMap<>();
+    private static final Map<Class<?>, String> BROKEN_CLASSES = new ConcurrentHashMap<>();
+
+    /**
+     * Errors of {@link CommandCodec} providers that can't be loaded at all, so their ids are not known.
+     */
+    private static final List<String> LOAD_ERRORS = new CopyOnWriteArrayList<>();
+
+    static {
+        put(UndoCommand.class, COMMAND_ID, new CommandSerializer());
+        put(RefCmd.class, REF_CMD_ID, new RefCmdSerializer());
+        put(UndoPacket.SubjInfo.class, SUBJ_INFO_ID, new SubjInfoSerializer());
+        put(IntRefCmd.class, INT_REF_CMD_ID, new IntRefCmdSerializer());
+        put(LongRefCmd.class, LONG_REF_CMD_ID, new LongRefCmdSerializer());
+        put(DoubleRefCmd.class, DOUBLE_REF_CMD_ID, new DoubleRefCmdSerializer());
+        put(BooleanRefCmd.class, BOOLEAN_REF_CMD_ID, new BooleanRefCmdSerializer());
+        loadCodecs();
+    }
+
+    /**
+     * Registers {@link CommandCodec}s found by {@link ServiceLoader}.
+     * <p>One broken entry on the classpath must not break packets of all the stacks, so errors are kept
+     * instead of thrown. The id claimed by conflicting codecs is dropped for both of them: otherwise
+     * commands would be read by the codec that happens to be loaded first.
+     */
+    private static void loadCodecs() {
+        Iterator<?> it = ServiceLoader.load(CommandCodec.class).iterator();
+        String lastError = null;
+        while (true) {
+            CommandCodec<?> codec;
+            try {
+                if (!it.hasNext()) {
+                    break;
+                }
+                codec = (CommandCodec<?>) it.next();
+                lastError = null;
+            } catch (ServiceConfigurationError e) {
+                String error = String.valueOf(e.getMessage());
+                if (error.equals(lastError)) {
+                    // The iterator can't get past this error.
+                    break;
+                }
+                lastError = error;
+                LOAD_ERRORS.add(error);
+                continue;
+            }
+            if (BROKEN_IDS.containsKey(codec.id())) {
+                BROKEN_CLASSES.put(codec.type(), BROKEN_IDS.get(codec.id()));
+                continue;
+            }
+            try {
+                register(codec.type(), codec.id(), codec);
+            } catch (IllegalArgumentException e) {
+                String error = codec.getClass().getName() + ": " + e.getMessage();
+                BROKEN_CLASSES.put(codec.type(), error);
+                if (codec.id() >= FIRST_CUSTOM_ID) {
+                    Entry other = BY_ID.remove(codec.id());
+                    BY_CLASS.entrySet().removeIf(c -> {
+                        if (c.getValue() == other) {
+                            BROKEN_CLASSES.put(c.getKey(), error);
+                            return true;
+                        }
+                        return false;
+                    });
+                    BROKEN_IDS.put(codec.id(), error);
+                }
+            }
+        }
+    }
+
+    private static void put(Class<?> type, int id, UndoSerializer<?> serializer) {
+        Entry entry = new Entry(id, serializer);
+        BY_ID.put(id, entry);
+        BY_CLASS.put(type, entry);
+    }
+
+    static synchronized void register(Class<?> type, int id, UndoSerializer<?> serializer) {
+        if (id < FIRST_CUSTOM_ID) {
+            throw new IllegalArgumentException("custom serializer's id should be from " + FIRST_CUSTOM_ID);
+        }
+        Entry old = BY_ID.get(id);
+        if (null != old && BY_CLASS.get(type) != old) {
+            throw new IllegalArgumentException("id " + id + " is already registered for other class");
+        }
+        Entry prev = BY_CLASS.get(type);
+        if (null != prev && prev.id != id) {
+            BY_ID.remove(prev.id);
+        }
+        put(type, id, serializer);
+        // Explicit registration replaces the broken codec.
+        BROKEN_IDS.remove(id);
+        BROKEN_CLASSES.remove(type);
+    }
+
+    /**
+     * @param type class of commands.
+     * @return {@link CommandCodec} registered for the class; otherwise null.
+     */
+    static Copier<UndoCommand> copier(Class<?> type) {
+        Entry entry = BY_CLASS.get(type);
+        @SuppressWarnings("unchecked")
+        Copier<UndoCommand> copier = null != entry && entry.serializer instanceof CommandCodec
+                ? (Copier<UndoCommand>) entry.serializer : null;
+        return copier;
+    }
+
+    /**
+     * @param obj object to write.
+     * @return {@link Compact} form if there is the serializer for the object's class; otherwise the object itself.
+     */
+    static Object replace(Object obj) throws NotSerializableException {
+        Entry entry = null != obj ? BY_CLASS.get(obj.getClass()) : null;
+        if (null == entry && null != obj && BROKEN_CLASSES.containsKey(obj.getClass())) {
+            throw new NotSerializableException(obj.getClass().getName() + " has broken codec: "
+                    + BROKEN_CLASSES.get(obj.getClass()));
+        }
+        return null != entry ? new Compact(entry, obj) : obj;
+    }
+
+    /**
+     * Object written by its serializer. Its class descriptor is written once per stream;
+     * every instance takes the serializer's id and the object's state.
+     */
+    static final class Compact implements Serializable {
+
+        private static final long serialVersionUID = -885912220048477393L;
+
+        private transient Entry entry;
+        private transient Object obj;
+
+        Compact(Entry entry, Object obj) {
+            this.entry = entry;
+            this.obj = obj;
+        }
+
+        private void writeObject(ObjectOutputStream out) throws IOException {
+            writeVarInt(out, entry.id);
+            entry.serializer.write(obj, out);
+        }
+
+        private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+            int id = readVarInt(in);
+            entry = BY_ID.get(id);
+            if (null == entry) {
+                throw new InvalidClassException("unknown serializer: " + id + brokenCodecs(id));
+            }
+            obj = entry.serializer.read(in);
+        }
+
+        private Object readResolve() {
+            return obj;
+        }
+    }
+
+    /**
+     * @param id id of serializer that is not found.
+     * @return Errors of codecs that could stand for the id; empty if there are none.
+     */
+    private static String brokenCodecs(int id) {
+        if (BROKEN_IDS.containsKey(id)) {
+            return "; its codec is broken: " + BROKEN_IDS.get(id);
+        }
+        return LOAD_ERRORS.isEmpty() ? "" : "; broken codecs: " + String.join("; ", LOAD_ERRORS);
+    }
+
+    //-------------------------------------------------------------------------------------------------
+
+    /**
+     * Writes unsigned int in 1-5 bytes.
+     */
+    static void writeVarInt(DataOutput out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    static int readVarInt(DataInput in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new StreamCorruptedException("wrong varint");
+    }
+
+    private static final int NULL = 0;
+    private static final int INT = 1;
+    private static final int LONG = 2;
+    private static final int DOUBLE = 3;
+    private static final int TRUE = 4;
+    private static final int FALSE = 5;
+    private static final int OBJECT = 6;
+
+    /**
+     * Writes value with a tag: boxed primitives take a few bytes, other values are written by
+     * {@link ObjectOutput#writeObject}.
+     */
+    static void writeValue(ObjectOutput out, Object value) throws IOException {
+        if (null == value) {
+            out.writeByte(NULL);
+        } else if (value.getClass() == Integer.class) {
+            int v = (Integer) value;
+            out.writeByte(INT);
+            writeVarInt(out, (v << 1) ^ (v >> 31));
+        } else if (value.getClass() == Long.class) {
+            out.writeByte(LONG);
+            out.writeLong((Long) value);
+        } else if (value.getClass() == Double.class) {
+            out.writeByte(DOUBLE);
+            out.writeDouble((Double) value);
+        } else if (value.getClass() == Boolean.class) {
+            out.writeByte((Boolean) value ? TRUE : FALSE);
+        } else {
+            out.writeByte(OBJECT);
+            out.writeObject(value);
+        }
+    }
+
+    static Object readValue(ObjectInput in) throws IOException, ClassNotFoundException {
+        int tag = in.readUnsignedByte();
+        switch (tag) {
+            case NULL:
+                return null;
+            case INT:
+                int v = readVarInt(in);
+                return (v >>> 1) ^ -(v & 1);
+            case LONG:
+                return in.readLong();
+            case DOUBLE:
+                return in.readDouble();
+            case TRUE:
+                return Boolean.TRUE;
+            case FALSE:
+                return Boolean.FALSE;
+            case OBJECT:
+                return in.readObject();
+            default:
+                throw new StreamCorruptedException("wrong value tag: " + tag);
+        }
+    }
+
+    //-------------------------------------------------------------------------------------------------
+
+    /**
+     * Lambda's private writeReplace method by lambda's class; null if the class is not a serializable lambda.
+     */
+    private static final ClassValue<Method> WRITE_REPLACE = new ClassValue<Method>() {
+        @Override
+        protected Method computeValue(Class<?> type) {
+            if (!type.isSynthetic() || !Serializable.class.isAssignableFrom(type)) {
+                return null;
+            }
+            try {
+                Method m = type.getDeclaredMethod("writeReplace");
+                m.setAccessible(true);
+                return m;
+            } catch (Exception | LinkageError e) {
+                return null;
+            }
+        }
+    };
+
+    /**
+     * Identity of the lambda: the same call site with the same captured objects.
+     */
+    private static final class FunctionKey {
+        final Class<?> type;
+        final Object[] captured;
+
+        FunctionKey(Class<?> type, Object[] captured) {
+            this.type = type;
+            this.captured = captured;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof FunctionKey)) {
+                return false;
+            }
+            FunctionKey that = (FunctionKey) o;
+            if (type != that.type || captured.length != that.captured.length) {
+                return false;
+            }
+            for (int i = 0; i < captured.length; ++i) {
+                if (captured[i] != that.captured[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public int hashCode() {
+            int h = type.hashCode();
+            for (Object arg : captured) {
+                h = 31 * h + System.identityHashCode(arg);
+            }
+            return h;
+        }
+    }
+
+    /**
+     * @param f function.
+     * @return Key of the lambda; null if it is not a serializable lambda.
+     */
+    private static FunctionKey functionKey(Object f) {
+        Method m = WRITE_REPLACE.get(f.getClass());
+        if (null == m) {
+            return null;
+        }
+        try {
+            Object replaced = m.invoke(f);
+            if (!(replaced instanceof SerializedLambda)) {
+                return null;
+            }
+            SerializedLambda sl = (SerializedLambda) replaced;
+            Object[] captured = new Object[sl.getCapturedArgCount()];
+            for (int i = 0; i < captured.length; ++i) {
+                captured[i] = sl.getCapturedArg(i);
+            }
+            return new FunctionKey(f.getClass(), captured);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * Writes function like getter or setter. The same lambda (the same call site with the same captured objects)
+     * is written once per stream; then only its index is written.
+     */
+    static void writeFunction(ObjectOutput out, Object f) throws IOException {
+        if (!(out instanceof CommandStreams.Output)) {
+            writeVarInt(out, 0);
+            out.writeObject(f);
+            return;
+        }
+        CommandStreams.Output output = (CommandStreams.Output) out;
+        FunctionKey key = null != f ? functionKey(f) : null;
+        Integer idx = null != key ? output.functions.get(key) : null;
+        if (null != idx) {
+            writeVarInt(out, idx + 1);
+        } else {
+            writeVarInt(out, 0);
+            out.writeObject(f);
+            int n = output.functionCount++;
+            if (null != key) {
+                output.functions.put(key, n);
+            }
+        }
+    }
+
+    static Object readFunction(ObjectInput in) throws IOException, ClassNotFoundException {
+        int idx = readVarInt(in);
+        if (idx == 0) {
+            Object f = in.readObject();
+            if (in instanceof CommandStreams.Input) {
+                ((CommandStreams.Input) in).functions.add(f);
+            }
+            return f;
+        } else if (!(in instanceof CommandStreams.Input)
+                || idx > ((CommandStreams.Input) in).functions.size()) {
+            throw new StreamCorruptedException("wrong function index: " + idx);
+        }
+        return ((CommandStreams.Input) in).functions.get(idx - 1);
+    }
+
+    //-------------------------------------------------------------------------------------------------
+
+    static void writeCommand(ObjectOutput out, UndoCommand cmd) throws IOException {
+        out.writeObject(cmd.owner);
+        out.writeObject(cmd.getCaption());
+    }
+
+    static void writeChildren(ObjectOutput out, UndoCommand cmd) throws IOException {
+        int count = cmd.childCount();
+        writeVarInt(out, count);
+        for (int i = 0; i < count; ++i) {
+            out.writeObject(cmd.children[i]);
+        }
+    }
+
+    static void readChildren(ObjectInput in, UndoCommand cmd) throws IOException, ClassNotFoundException {
+        int count = readVarInt(in);
+        if (count > 0) {
+            cmd.children = new UndoCommand[count];
+            for (int i = 0; i < count; ++i) {
+                cmd.children[i] = (UndoCommand) in.readObject();
+            }
+        }
+    }
+
+    static final class CommandSerializer implements UndoSerializer<UndoCommand> {
+
+        @Override
+        public void write(UndoCommand cmd, ObjectOutput out) throws IOException {
+            writeCommand(out, cmd);
+            writeChildren(out, cmd);
+        }
+
+        @Override
+        public UndoCommand read(ObjectInput in) throws IOException, ClassNotFoundException {
+            UndoCommand cmd = new UndoCommand((UndoStack) in.readObject(), (String) in.readObject(), null);
+            readChildren(in, cmd);
+            return cmd;
+        }
+    }
+
+    static final class RefCmdSerializer implements UndoSerializer<RefCmd<?>> {
+
+        @Override
+        public void write(RefCmd<?> cmd, ObjectOutput out) throws IOException {
+            writeCommand(out, cmd);
+            out.writeObject(cmd.key);
+            // Handle is written shifted by one, so zero is for the setter following it.
+            writeVarInt(out, null != cmd.setter ? 0 : cmd.handle + 1);
+            if (null != cmd.setter) {
+                writeFunction(out, cmd.setter);
+            }
+            writeValue(out, cmd.oldValue);
+            writeValue(out, cmd.newValue);
+            writeChildren(out, cmd);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public RefCmd<?> read(ObjectInput in) throws IOException, ClassNotFoundException {
+            UndoStack owner = (UndoStack) in.readObject();
+            String caption = (String) in.readObject();
+            String key = (String) in.readObject();
+            int handle = readVarInt(in) - 1;
+            Setter<Serializable> setter = handle < 0 ? (Setter<Serializable>) readFunction(in) : null;
+            Serializable oldValue = (Serializable) readValue(in);
+            Serializable newValue = (Serializable) readValue(in);
+            RefCmd<?> cmd = new RefCmd<>(owner, caption, key, setter, handle, oldValue, newValue);
+            readChildren(in, cmd);
+            return cmd;
+        }
+    }
+
+    static final class IntRefCmdSerializer implements UndoSerializer<IntRefCmd> {
+
+        @Override
+        public void write(IntRefCmd cmd, ObjectOutput out) throws IOException {
+            writeCommand(out, cmd);
+            out.writeObject(cmd.key);
+            writeFunction(out, cmd.setter);
+            out.writeInt(cmd.oldValue);
+            out.writeInt(cmd.newValue);
+            writeChildren(out, cmd);
+        }
+
+        @Override
+        public IntRefCmd read(ObjectInput in) throws IOException, ClassNotFoundException {
+            IntRefCmd cmd = new IntRefCmd((UndoStack) in.readObject(), (String) in.readObject(),
+                    (String) in.readObject(), (IntSetter) readFunction(in), in.readInt(), in.readInt());
+            readChildren(in, cmd);
+            return cmd;
+        }
+    }
+
+    static final class LongRefCmdSerializer implements UndoSerializer<LongRefCmd> {
+
+        @Override
+        public void write(LongRefCmd cmd, ObjectOutput out) throws IOException {
+            writeCommand(out, cmd);
+            out.writeObject(cmd.key);
+            writeFunction(out, cmd.setter);
+            out.writeLong(cmd.oldValue);
+            out.writeLong(cmd.newValue);
+            writeChildren(out, cmd);
+        }
+
+        @Override
+        public LongRefCmd read(ObjectInput in) throws IOException, ClassNotFoundException {
+            LongRefCmd cmd = new LongRefCmd((UndoStack) in.readObject(), (String) in.readObject(),
+                    (String) in.readObject(), (LongSetter) readFunction(in), in.readLong(), in.readLong());
+            readChildren(in, cmd);
+            return cmd;
+        }
+    }
+
+    static final class DoubleRefCmdSerializer implements UndoSerializer<DoubleRefCmd> {
+
+        @Override
+        public void write(DoubleRefCmd cmd, ObjectOutput out) throws IOException {
+            writeCommand(out, cmd);
+            out.writeObject(cmd.key);
+            writeFunction(out, cmd.setter);
+            out.writeDouble(cmd.oldValue);
+            out.writeDouble(cmd.newValue);
+            writeChildren(out, cmd);
+        }
+
+        @Override
+        public DoubleRefCmd read(ObjectInput in) throws IOException, ClassNotFoundException {
+            DoubleRefCmd cmd = new DoubleRefCmd((UndoStack) in.readObject(), (String) in.readObject(),
+                    (String) in.readObject(), (DoubleSetter) readFunction(in), in.readDouble(), in.readDouble());
+            readChildren(in, cmd);
+            return cmd;
+        }
+    }
+
+    static final class BooleanRefCmdSerializer implements UndoSerializer<BooleanRefCmd> {
+
+        @Override
+        public void write(BooleanRefCmd cmd, ObjectOutput out) throws IOException {
+            writeCommand(out, cmd);
+            out.writeObject(cmd.key);
+            writeFunction(out, cmd.setter);
+            out.writeBoolean(cmd.oldValue);
+            out.writeBoolean(cmd.newValue);
+            writeChildren(out, cmd);
+        }
+
+        @Override
+        public BooleanRefCmd read(ObjectInput in) throws IOException, ClassNotFoundException {
+            BooleanRefCmd cmd = new BooleanRefCmd((UndoStack) in.readObject(), (String) in.readObject(),
+                    (String) in.readObject(), (BooleanSetter) readFunction(in), in.readBoolean(), in.readBoolean());
+            readChildren(in, cmd);
+            return cmd;
+        }
+    }
+
+    static final class SubjInfoSerializer implements UndoSerializer<UndoPacket.SubjInfo> {
+
+        @Override
+        public void write(UndoPacket.SubjInfo info, ObjectOutput out) throws IOException {
+            out.writeObject(info.id);
+            out.writeInt(info.version);
+            out.writeObject(info.extras);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public UndoPacket.SubjInfo read(ObjectInput in) throws IOException, ClassNotFoundException {
+            String id = (String) in.readObject();
+            int version = in.readInt();
+            Map<String, Serializable> extras = (Map<String, Serializable>) in.readObject();
+            return new UndoPacket.SubjInfo(id, version, extras);
+        }
+    }
+
+    private Serializers() {
+    }
+
+}
@@ -0,0 +1,15 @@
+package com.gdetotut.jundo;
+
+/**
+ * Interface for command's size estimator. Used in {@link UndoStack#setMemoryLimit}.
+ * <p>Estimation should be cheap: it is called once for every pushed command and every merge.
+ */
+@FunctionalInterface
+public interface SizeEstimator {
+
+    /**
+     * @param cmd command to estimate. Required.
+     * @return Estimated size of the command in bytes.
+     */
+    long estimate(UndoCommand cmd);
+}
@@ -0,0 +1,34 @@
+package com.gdetotut.jundo;
+
+/**
+ * Interface for subject's snapshots. Used in {@link UndoStack#setCheckpoints}.
+ * <p>Commands keep acting on the same subject after a snapshot is restored, so restoring should
+ * change the subject in place rather than make new one.
+ */
+public interface Snapshotter {
+
+    /**
+     * @param subj {@link UndoStack#subj}
+     * @return Snapshot of the subject's state.
+     */
+    Object take(Object subj);
+
+    /**
+     * Returns the subject to the state of the snapshot.
+     *
+     * @param subj     {@link UndoStack#subj}
+     * @param snapshot snapshot made earlier by {@link #take}.
+     */
+    void restore(Object subj, Object snapshot);
+
+    /**
+     * Measures the snapshot against the limit of {@link UndoStack#setCheckpoints}.
+     * <p>By default every snapshot counts as 1, so the limit is the count of snapshots.
+     *
+     * @param snapshot snapshot made by {@link #take}.
+     * @return Estimated size of the snapshot in bytes.
+     */
+    default long size(Object snapshot) {
+        return 1;
+    }
+}
@@ -0,0 +1,206 @@
+package com.gdetotut.jundo;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * File for the cold part of {@link UndoStack}'s history.
+ * <p>Records are written through the channel and read back through memory-mapped segments of the file.
+ * Space of the records that are {@link #free freed} is reused by the next ones: a new record takes
+ * the smallest hole it fits, and holes at the end of data shorten it. The file is deleted when closed.
+ */
+final class SpillFile implements Closeable {
+
+    /**
+     * Size of one mapped segment.
+     */
+    private static final int SEGMENT_SIZE = 1 << 26;
+
+    private final FileChannel channel;
+
+    /**
+     * Mapped segments by their number. The last one may cover only a part of its region.
+     */
+    private final List<MappedByteBuffer> segments = new ArrayList<>();
+
+    /**
+     * Size of written data.
+     */
+    private long end;
+
+    /**
+     * Lengths of holes left by freed records, by their positions. Adjacent holes are joined.
+     */
+    private final TreeMap<Long, Integer> holes = new TreeMap<>();
+
+    /**
+     * Positions of holes by their lengths, to find the smallest hole the record fits.
+     */
+    private final TreeMap<Integer, NavigableSet<Long>> holesBySize = new TreeMap<>();
+
+    /**
+     * Creates new file or truncates existing one.
+     *
+     * @param path path to the file. Required.
+     * @throws IOException If something goes wrong.
+     */
+    SpillFile(Path path) throws IOException {
+        channel = FileChannel.open(path, CREATE, TRUNCATE_EXISTING, READ, WRITE, DELETE_ON_CLOSE);
+    }
+
+    /**
+     * Writes record into the smallest hole it fits, or appends it to the end of data.
+     *
+     * @param bytes record. Required.
+     * @return Position of the record.
+     * @throws IOException If something goes wrong.
+     */
+    long append(byte[] bytes) throws IOException {
+        Map.Entry<Integer, NavigableSet<Long>> fit = bytes.length > 0 ? holesBySize.ceilingEntry(bytes.length) : null;
+        if (null != fit) {
+            long pos = fit.getValue().first();
+            removeHole(pos, fit.getKey());
+            if (fit.getKey() > bytes.length) {
+                addHole(pos + bytes.length, fit.getKey() - bytes.length);
+            }
+            write(bytes, pos);
+            return pos;
+        }
+        long pos = end;
+        write(bytes, pos);
+        end = pos + bytes.length;
+        return pos;
+    }
+
+    /**
+     * Frees space of record written by {@link #append}, so that it can be taken by the next ones.
+     * The record should not be read after that.
+     *
+     * @param pos position of the record.
+     * @param len length of the record.
+     */
+    void free(long pos, int len) {
+        if (len <= 0 || pos < 0 || pos + len > end) {
+            return;
+        }
+        Map.Entry<Long, Integer> before = holes.floorEntry(pos);
+        if (null != before && before.getKey() + before.getValue() == pos) {
+            removeHole(before.getKey(), before.getValue());
+            pos = before.getKey();
+            len += before.getValue();
+        }
+        Integer after = holes.get(pos + len);
+        if (null != after) {
+            removeHole(pos + len, after);
+            len += after;
+        }
+        if (pos + len == end) {
+            end = pos;
+        } else {
+            addHole(pos, len);
+        }
+    }
+
+    /**
+     * Frees all the records at once.
+     */
+    void clear() {
+        holes.clear();
+        holesBySize.clear();
+        end = 0;
+    }
+
+    /**
+     * Reads record written by {@link #append}.
+     *
+     * @param pos position of the record.
+     * @param len length of the record.
+     * @return Record.
+     * @throws IOException If something goes wrong.
+     */
+    byte[] read(long pos, int len) throws IOException {
+        if (pos < 0 || pos + len > end) {
+            throw new IOException("record is out of file: " + pos + ", " + len);
+        }
+        byte[] bytes = new byte[len];
+        int done = 0;
+        while (done < len) {
+            long at = pos + done;
+            int offset = (int) (at % SEGMENT_SIZE);
+            ByteBuffer buf = segment((int) (at / SEGMENT_SIZE), offset + len - done).duplicate();
+            int n = Math.min(len - done, buf.limit() - offset);
+            buf.position(offset);
+            buf.get(bytes, done, n);
+            done += n;
+        }
+        return bytes;
+    }
+
+    /**
+     * @return Size of written data, including holes.
+     */
+    long size() {
+        return end;
+    }
+
+    @Override
+    public void close() throws IOException {
+        segments.clear();
+        channel.close();
+    }
+
+    private void write(byte[] bytes, long pos) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(bytes);
+        while (buf.hasRemaining()) {
+            channel.write(buf, pos + buf.position());
+        }
+    }
+
+    private void addHole(long pos, int len) {
+        holes.put(pos, len);
+        holesBySize.computeIfAbsent(len, k -> new TreeSet<>()).add(pos);
+    }
+
+    private void removeHole(long pos, int len) {
+        holes.remove(pos);
+        NavigableSet<Long> same = holesBySize.get(len);
+        same.remove(pos);
+        if (same.isEmpty()) {
+            holesBySize.remove(len);
+        }
+    }
+
+    /**
+     * Returns mapped segment, mapping it again if it does not cover the required part yet.
+     *
+     * @param number number of segment.
+     * @param need   size of segment's part that should be mapped.
+     * @return Mapped segment.
+     * @throws IOException If something goes wrong.
+     */
+    private MappedByteBuffer segment(int number, long need) throws IOException {
+        while (segments.size() <= number) {
+            segments.add(null);
+        }
+        MappedByteBuffer map = segments.get(number);
+        if (null == map || map.limit() < Math.min(need, SEGMENT_SIZE)) {
+            long start = (long) number * SEGMENT_SIZE;
+            map = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(SEGMENT_SIZE, end - start));
+            segments.set(number, map);
+        }
+        return map;
+    }
+
+}
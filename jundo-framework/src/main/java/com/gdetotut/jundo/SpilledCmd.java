@@ -0,0 +1,64 @@
+package com.gdetotut.jundo;
+
+import java.io.ObjectStreamException;
+import java.io.WriteAbortedException;
+
+/**
+ * Stub that stands in {@link UndoStack}'s list of commands for the command written to the spill file.
+ * <p>Keeps caption of the command so the captions are available without reading the file.
+ *
+ * @see UndoStack#setSpillFile
+ */
+final class SpilledCmd extends UndoCommand {
+
+    /**
+     * Position of the command's record in the spill file.
+     */
+    long pos;
+
+    /**
+     * Length of the command's record in the spill file.
+     */
+    int len;
+
+    /**
+     * The command itself while it is paged in; otherwise null.
+     */
+    transient UndoCommand cmd;
+
+    /**
+     * The command's record while it is paged in, to find out if the command has changed since.
+     */
+    transient byte[] bytes;
+
+    /**
+     * @param cmd spilled command. Required.
+     * @param pos position of the command's record.
+     * @param len length of the command's record.
+     */
+    SpilledCmd(UndoCommand cmd, long pos, int len) {
+        super(cmd.owner, null, null);
+        copyCaption(cmd);
+        this.pos = pos;
+        this.len = len;
+    }
+
+    /**
+     * The stub is never written itself: the paged in command is written instead, and the one that is
+     * not paged in is written as {@link LazyCmd} with its record, without reading it back.
+     *
+     * @return Command or its record.
+     * @throws ObjectStreamException If the record can't be read.
+     */
+    private Object writeReplace() throws ObjectStreamException {
+        if (null != cmd) {
+            return cmd;
+        }
+        try {
+            return new LazyCmd(this, owner.spilledBytes(this));
+        } catch (RuntimeException e) {
+            throw new WriteAbortedException("cannot read spilled command", e);
+        }
+    }
+
+}
@@ -0,0 +1,367 @@
+package com.gdetotut.jundo;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * The UndoCommand class is the base class of all commands stored on an {@link UndoStack}.
+ */
+public class UndoCommand implements Serializable {
+
+    private static final long serialVersionUID = -5384665869685757147L;
+
+    /**
+     * Default value for {@link #id}.
+     */
+    public static int NO_MERGING = -1;
+
+    /**
+     * Command's caption. Identifies command in the list of ones. Interned by {@link Captions}. Optional.
+     * <p>Either String, or {@link LazyCaption} set by {@link #setLazyCaption} until the caption is requested.
+     */
+    private Object caption;
+
+    /**
+     * Caption that is made once, however many times it is requested.
+     * <p>{@link UndoState} may keep it after the command has replaced it with the made one.
+     */
+    private static final class LazyCaption {
+        private Supplier<String> supplier;
+        private String made;
+
+        LazyCaption(Supplier<String> supplier) {
+            this.supplier = supplier;
+        }
+
+        String get() {
+            if (null != supplier) {
+                made = Captions.intern(supplier.get());
+                supplier = null;
+            }
+            return made;
+        }
+    }
+
+    /**
+     * Child commands for macros and command chains; null if there are none, so leaf commands pay nothing.
+     * <p>The array grows by doubling while children are added, and the unused tail is filled with nulls.
+     * It is trimmed to size when the command is pushed or the macro is ended or dropped, so the count
+     * of committed command's children is just the array's length.
+     */
+    UndoCommand[] children;
+
+    /**
+     * This command's owner. Via this reference the command can use local contexts.
+     */
+    protected UndoStack owner;
+
+    /**
+     * Constructs an UndoCommand object with the given caption.
+     *
+     * @param owner   the stack that owns this command. Required.
+     * @param caption a short string describing what this command does. Optional.
+     * @param parent  command's parent. Used in the concept of 'command-chain'.  Optional.
+     */
+    public UndoCommand(UndoStack owner, String caption, UndoCommand parent) {
+        if (owner == null) {
+            throw new NullPointerException("owner");
+        } else {
+            this.owner = owner;
+            setCaption(caption);
+            if (null != parent) {
+                parent.addChild(this);
+            }
+        }
+    }
+
+    /**
+     * Copy constructor. Copies owner and caption; children are not copied.
+     * <p>A derived class may declare the constructor with its own type as the only parameter,
+     * and {@link UndoStack#clone} will use it instead of serialization.
+     *
+     * @param src command to copy. Required.
+     */
+    protected UndoCommand(UndoCommand src) {
+        this(src.owner, null, null);
+        caption = src.caption;
+    }
+
+    /**
+     * Returns the id of this command.
+     * <p>A command id is used in the "command merging" concept. It must be an integer value
+     * unique to this command's class, or {@link #NO_MERGING} if the command doesn't support merging.
+     * <p>If the command supports merging this function must be overridden in the derived class
+     * to return the correct id.
+     * The base implementation returns {@link #NO_MERGING}.
+     * <p>{@link UndoStack#push} will only try to merge two commands if they have the same id,
+     * and the id is not {@link #NO_MERGING}.
+     *
+     * @return Integer unique value to this command's class or {@link #NO_MERGING}
+     * if the command doesn't support merging.
+     */
+    public int id() {
+        return NO_MERGING;
+    }
+
+    /**
+     * Attempts to merge this command with cmd. Returns true on success; otherwise returns false.
+     * <p>If this function returns true, calling this command's {@link #redo()} must have the same effect
+     * as redoing both this command and cmd.
+     * <p>Similarly, calling this command's {@link #undo()} must have the same effect
+     * as undoing cmd and this command.
+     * <p>UndoStack will only try to merge two commands if they have the same {@link #id}, and the id
+     * is not {@link #NO_MERGING}.
+     * <p>The default implementation returns false.
+     *
+     * @param cmd command to try merge with. Required.
+     * @return True on success; otherwise returns false.
+     */
+    public boolean mergeWith(UndoCommand cmd) {
+        if (cmd == null) {
+            throw new NullPointerException("cmd");
+        } else {
+            return false;
+        }
+    }
+
+    /**
+     * Takes O(1) for commands on the stack, whose children are trimmed; O(log n) only while children are added.
+     *
+     * @return If child commands exist returns their count; otherwise returns zero.
+     */
+    public int childCount() {
+        final UndoCommand[] c = children;
+        if (null == c) {
+            return 0;
+        } else if (null != c[c.length - 1]) {
+            return c.length;
+        }
+        // Nulls are only in the tail, so look for the first one.
+        int lo = 0;
+        int hi = c.length - 1;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (null != c[mid]) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * Returns command by its index. If the index is invalid, returns null.
+     *
+     * @param idx index of desired command.
+     * @return Command if index is valid; otherwise null.
+     */
+    public UndoCommand child(int idx) {
+        final UndoCommand[] c = children;
+        // The unused tail is filled with nulls, so there is no need to count the children.
+        if (null == c || idx < 0 || idx >= c.length) {
+            return null;
+        }
+        return c[idx];
+    }
+
+    /**
+     * Appends the child command.
+     *
+     * @param cmd command to append. Required.
+     */
+    void addChild(UndoCommand cmd) {
+        int count = childCount();
+        if (null == children) {
+            children = new UndoCommand[1];
+        } else if (count == children.length) {
+            children = Arrays.copyOf(children, count * 2);
+        }
+        children[count] = cmd;
+    }
+
+    /**
+     * Cuts the unused tail of children's array, here and in all the children.
+     */
+    void trimChildren() {
+        if (null != children) {
+            int count = childCount();
+            if (count < children.length) {
+                children = count > 0 ? Arrays.copyOf(children, count) : null;
+            }
+            for (int i = 0; i < count; ++i) {
+                children[i].trimChildren();
+            }
+        }
+    }
+
+    /**
+     * If command has children calls their redo consistently; otherwise calls {@link #doRedo}.
+     */
+    public final void redo() {
+        int count = childCount();
+        if (count > 0) {
+            for (int i = 0; i < count; ++i) {
+                children[i].redo();
+            }
+        } else {
+            doRedo();
+        }
+    }
+
+    /**
+     * If command has children calls their redo consistently; otherwise calls {@link #doUndo}.
+     */
+    public final void undo() {
+        int count = childCount();
+        if (count > 0) {
+            for (int i = 0; i < count; ++i) {
+                children[i].undo();
+            }
+        } else {
+            doUndo();
+        }
+    }
+
+    /**
+     * @return A short string describing what this command does.
+     */
+    public String getCaption() {
+        return caption();
+    }
+
+    /**
+     * @return The caption, made from the lazy one if needed.
+     */
+    private String caption() {
+        Object c = caption;
+        if (c instanceof LazyCaption) {
+            String resolved = ((LazyCaption) c).get();
+            caption = resolved;
+            return resolved;
+        }
+        return (String) c;
+    }
+
+    /**
+     * @return The caption as it is kept: String, or the lazy one not made yet.
+     */
+    Object rawCaption() {
+        return caption;
+    }
+
+    /**
+     * Makes the caption taken by {@link #rawCaption} earlier, even if the command has replaced it since.
+     *
+     * @param raw caption taken by {@link #rawCaption}.
+     * @return The caption.
+     */
+    String captionOf(Object raw) {
+        if (raw == caption) {
+            return caption();
+        }
+        return raw instanceof LazyCaption ? ((LazyCaption) raw).get() : (String) raw;
+    }
+
+    /**
+     * Sets the command's caption.
+     * <p>Specified caption should be a short user-readable string describing what this  command does.
+     *
+     * @param caption a short caption string describing what this command does. Optional.
+     */
+    public final void setCaption(String caption) {
+        this.caption = Captions.intern(caption);
+    }
+
+    /**
+     * Sets the caption that is made only when it is requested by {@link #getCaption}, e.g. for display.
+     * The result is interned and kept instead of the supplier.
+     * <p>Useful for captions that are expensive to build and rarely displayed:
+     * <pre>
+     *     setLazyCaption(() -&gt; "Move " + shape.getName() + " to " + x + ", " + y);
+     * </pre>
+     *
+     * @param caption supplier of a short caption string describing what this command does. Optional.
+     */
+    public final void setLazyCaption(Supplier<String> caption) {
+        this.caption = null != caption ? new LazyCaption(caption) : null;
+    }
+
+    /**
+     * Sets the caption that is formatted by {@link String#format} only when it is requested
+     * by {@link #getCaption}. See {@link #setLazyCaption(Supplier)}.
+     *
+     * @param format format string of the caption. Required.
+     * @param args   arguments of the format; they should not change until the caption is requested.
+     */
+    public final void setLazyCaption(String format, Object... args) {
+        if (null == format) {
+            throw new NullPointerException("format");
+        }
+        this.caption = new LazyCaption(() -> String.format(format, args));
+    }
+
+    /**
+     * Copies caption of src as is, without making the lazy one.
+     *
+     * @param src command to copy caption from. Required.
+     */
+    void copyCaption(UndoCommand src) {
+        caption = src.caption;
+    }
+
+    /**
+     * Calls {@link Object#clone} for the command that implements {@link Cloneable}.
+     *
+     * @return Copy of this command.
+     * @throws CloneNotSupportedException If command does not implement {@link Cloneable}.
+     */
+    UndoCommand cloneShallow() throws CloneNotSupportedException {
+        return (UndoCommand) clone();
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        // Lazy caption is stored made.
+        caption();
+        out.defaultWriteObject();
+    }
+
+    /**
+     * Reads the command field by field, since {@link #children} was stored as List by old packets.
+     */
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        caption = Captions.intern((String) fields.get("caption", null));
+        Object list = fields.get("children", null);
+        if (list instanceof List) {
+            List<?> old = (List<?>) list;
+            children = old.isEmpty() ? null : old.toArray(new UndoCommand[0]);
+        } else {
+            children = (UndoCommand[]) list;
+        }
+        owner = (UndoStack) fields.get("owner", null);
+    }
+
+    /**
+     * Applies a change to the document. This function can be implemented in the derived class.
+     * <p>Calling {@link UndoStack#push}, {@link UndoStack#undo} or {@link UndoStack#redo} from this function
+     * leads to  undefined behavior.
+     */
+    protected void doRedo() {
+    }
+
+    /**
+     * Reverts a change to the document. After undo() is called, the state of the document should be the same
+     * as before {@link #redo} was called. This function can be implemented in the derived class.
+     * <p>Calling {@link UndoStack#push}, {@link UndoStack#undo} or {@link UndoStack#redo} from this function
+     * leads to  undefined behavior.
+     */
+    protected void doUndo() {
+    }
+
+}
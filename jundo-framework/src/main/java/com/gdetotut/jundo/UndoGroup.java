@@ -1,5 +1,7 @@
 package com.gdetotut.jundo;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.List;
@@ -21,6 +23,8 @@ import java.util.List;
  */
 public class UndoGroup implements Serializable {
 
+    private static final long serialVersionUID = -834109923914804905L;
+
     /**
      * Active stack. Can be null if no one stack is active at the moment.
      */
@@ -170,4 +174,14 @@ public class UndoGroup implements Serializable {
         return null == active || active.isClean();
     }
 
+    /**
+     * Links restored stacks to this group, since {@link UndoStack#group} is not serialized.
+     */
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        for (UndoStack stack : stacks) {
+            stack.group = this;
+        }
+    }
+
 }
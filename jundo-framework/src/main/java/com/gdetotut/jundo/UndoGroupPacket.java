@@ -0,0 +1,337 @@
+package com.gdetotut.jundo;
+
+import com.gdetotut.jundo.UndoPacket.OnPrepareStack;
+import com.gdetotut.jundo.UndoPacket.OnRestore;
+import com.gdetotut.jundo.UndoPacket.SubjInfo;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * Archive of all the stacks of {@link UndoGroup}: one container with packets of every stack
+ * and the index by {@link SubjInfo#id}.
+ * <p>Stacks are stored and restored in parallel on {@link ForkJoinPool}. The archive's size is
+ * the sum of the stacks' packets.
+ * <pre>
+ *     UndoGroupPacket.store(group, s -&gt; UndoPacket.make(s, ((Doc) s.getSubj()).getName(), 1), out);
+ *     ...
+ *     UndoGroup group = UndoGroupPacket.open(file).restore(null, null);
+ * </pre>
+ */
+public final class UndoGroupPacket {
+
+    /**
+     * Signature of the archive: "JUNG".
+     */
+    private static final int MAGIC = 0x4A554E47;
+
+    /**
+     * Version of the archive's layout:
+     * <pre>
+     * int    {@link #MAGIC}
+     * byte   format version
+     * int    count of entries
+     * int    index of the active stack's entry, -1 if none
+     * for every entry:
+     *   int    length of {@link SubjInfo#id} in UTF-8 bytes, -1 for null
+     *   bytes  {@link SubjInfo#id} in UTF-8
+     *   long   length of the entry
+     * entries: binary packets made by {@link UndoPacket.Builder#store(OutputStream)}
+     * </pre>
+     */
+    private static final int FORMAT_VERSION = 1;
+
+    /**
+     * Entries one by one.
+     */
+    private final ByteBuffer data;
+    private final List<String> ids;
+    private final long[] offsets;
+    private final long[] lengths;
+    private final int active;
+
+    /**
+     * First entry by id.
+     */
+    private final Map<String, Integer> index = new HashMap<>();
+
+    /**
+     * Stores all the stacks of the group using common pool.
+     * <p>See {@link #store(UndoGroup, Function, OutputStream, ForkJoinPool)}.
+     *
+     * @param group  group to store. Required.
+     * @param packet maker of packet for every stack. Required.
+     * @param out    stream to write to. Required.
+     * @throws Exception If something goes wrong.
+     */
+    public static void store(UndoGroup group, Function<UndoStack, UndoPacket.Builder> packet,
+                             OutputStream out) throws Exception {
+        store(group, packet, out, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Stores all the stacks of the group.
+     * <p>Packets are made in the caller's thread, then stored in parallel: so their {@link UndoPacket.OnStore}
+     * handlers should be thread-safe. The stacks should not change until the method returns.
+     * The stream is not closed.
+     *
+     * @param group  group to store. Required.
+     * @param packet maker of packet for every stack, e.g. {@code s -> UndoPacket.make(s, "doc", 1)}. Required.
+     * @param out    stream to write to. Required.
+     * @param pool   pool to store stacks on. Required.
+     * @throws Exception If something goes wrong.
+     */
+    public static void store(UndoGroup group, Function<UndoStack, UndoPacket.Builder> packet,
+                             OutputStream out, ForkJoinPool pool) throws Exception {
+        if (null == group) {
+            throw new NullPointerException("group");
+        }
+        if (null == packet) {
+            throw new NullPointerException("packet");
+        }
+        if (null == out) {
+            throw new NullPointerException("out");
+        }
+        if (null == pool) {
+            throw new NullPointerException("pool");
+        }
+
+        List<UndoStack> stacks = new ArrayList<>(group.getStacks());
+        List<UndoPacket.Builder> builders = new ArrayList<>(stacks.size());
+        List<Callable<byte[]>> tasks = new ArrayList<>(stacks.size());
+        for (UndoStack stack : stacks) {
+            UndoPacket.Builder builder = packet.apply(stack);
+            if (null == builder) {
+                throw new NullPointerException("packet");
+            }
+            builders.add(builder);
+            tasks.add(() -> {
+                ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                builder.store(baos);
+                return baos.toByteArray();
+            });
+        }
+        List<byte[]> entries = invokeAll(pool, tasks);
+
+        DataOutputStream dos = new DataOutputStream(out);
+        dos.writeInt(MAGIC);
+        dos.writeByte(FORMAT_VERSION);
+        dos.writeInt(entries.size());
+        dos.writeInt(stacks.indexOf(group.getActive()));
+        for (int i = 0; i < entries.size(); ++i) {
+            String id = builders.get(i).subjId();
+            if (null == id) {
+                dos.writeInt(-1);
+            } else {
+                byte[] idBytes = id.getBytes(StandardCharsets.UTF_8);
+                dos.writeInt(idBytes.length);
+                dos.write(idBytes);
+            }
+            dos.writeLong(entries.get(i).length);
+        }
+        for (byte[] entry : entries) {
+            dos.write(entry);
+        }
+        dos.flush();
+    }
+
+    /**
+     * Opens the archive made by {@link #store}. Only the index is read here.
+     * <p>The archive is read in place, starting from the buffer's position. The buffer's position is not changed.
+     *
+     * @param buffer buffer with the archive. Required.
+     * @return Archive.
+     * @throws Exception If something goes wrong.
+     */
+    public static UndoGroupPacket open(ByteBuffer buffer) throws Exception {
+        if (null == buffer) {
+            throw new NullPointerException("buffer");
+        }
+        return new UndoGroupPacket(buffer.duplicate().order(ByteOrder.BIG_ENDIAN));
+    }
+
+    /**
+     * Opens the file with the archive made by {@link #store}.
+     * <p>The file is memory-mapped and read in place as in {@link #open(ByteBuffer)}.
+     *
+     * @param file file with the archive. Required.
+     * @return Archive.
+     * @throws Exception If something goes wrong.
+     */
+    public static UndoGroupPacket open(Path file) throws Exception {
+        if (null == file) {
+            throw new NullPointerException("file");
+        }
+        MappedByteBuffer map;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new Exception("too big size");
+            }
+            map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        return open(map);
+    }
+
+    /**
+     * @return Identifiers of stored stacks in the order of the group's stacks.
+     */
+    public List<String> ids() {
+        return ids;
+    }
+
+    /**
+     * Peeks the single stack from the archive.
+     *
+     * @param id identifier of the stack. If there are several stacks with this id, the first one is peeked.
+     * @param p  predicate.
+     * @return Helper Peeker's instance; null if there is no such id.
+     * @throws Exception If something goes wrong.
+     */
+    public UndoPacket.Peeker peek(String id, Predicate<SubjInfo> p) throws Exception {
+        Integer i = index.get(id);
+        return null != i ? UndoPacket.peekFrom(entry(i), p) : null;
+    }
+
+    /**
+     * Restores all the stacks using common pool.
+     * <p>See {@link #restore(OnRestore, OnPrepareStack, ForkJoinPool)}.
+     *
+     * @param handler   event handler for every stack. Optional.
+     * @param onPrepare handler to tune every restored stack. Optional.
+     * @return New group with restored stacks.
+     * @throws Exception If something goes wrong.
+     */
+    public UndoGroup restore(OnRestore handler, OnPrepareStack onPrepare) throws Exception {
+        return restore(handler, onPrepare, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Restores all the stacks and adds them to the new group in the stored order. The stack that was active
+     * becomes active in the new group.
+     * <p>Stacks are deserialized in parallel, so handler should be thread-safe. onPrepare is called
+     * in the caller's thread.
+     *
+     * @param handler   event handler for every stack. Optional.
+     * @param onPrepare handler to tune every restored stack. Optional.
+     * @param pool      pool to restore stacks on. Required.
+     * @return New group with restored stacks.
+     * @throws Exception If something goes wrong.
+     */
+    public UndoGroup restore(OnRestore handler, OnPrepareStack onPrepare, ForkJoinPool pool) throws Exception {
+        if (null == pool) {
+            throw new NullPointerException("pool");
+        }
+        List<Callable<UndoPacket>> tasks = new ArrayList<>(ids.size());
+        for (int i = 0; i < ids.size(); ++i) {
+            final int n = i;
+            tasks.add(() -> UndoPacket.peekFrom(entry(n), null).restore(handler));
+        }
+        List<UndoPacket> packets = invokeAll(pool, tasks);
+
+        UndoGroup group = new UndoGroup();
+        for (int i = 0; i < packets.size(); ++i) {
+            UndoStack stack = packets.get(i).stack(onPrepare, group);
+            if (i == active) {
+                group.setActive(stack);
+            }
+        }
+        return group;
+    }
+
+    private UndoGroupPacket(ByteBuffer buf) throws Exception {
+        try {
+            if (buf.getInt() != MAGIC) {
+                throw new Exception("not an UndoGroupPacket");
+            }
+            int format = buf.get() & 0xFF;
+            if (format != FORMAT_VERSION) {
+                throw new Exception("unsupported format version: " + format);
+            }
+            int count = buf.getInt();
+            active = buf.getInt();
+            if (count < 0 || active < -1 || active >= count) {
+                throw new Exception("wrong header");
+            }
+
+            List<String> list = new ArrayList<>(count);
+            offsets = new long[count];
+            lengths = new long[count];
+            long offset = 0;
+            for (int i = 0; i < count; ++i) {
+                String id = null;
+                int idLength = buf.getInt();
+                if (idLength >= 0) {
+                    byte[] idBytes = new byte[idLength];
+                    buf.get(idBytes);
+                    id = new String(idBytes, StandardCharsets.UTF_8);
+                } else if (idLength != -1) {
+                    throw new Exception("wrong header");
+                }
+                list.add(id);
+                index.putIfAbsent(id, i);
+                lengths[i] = buf.getLong();
+                offsets[i] = offset;
+                if (lengths[i] < 0) {
+                    throw new Exception("wrong header");
+                }
+                offset += lengths[i];
+            }
+            if (offset > buf.remaining()) {
+                throw new Exception("wrong header");
+            }
+            ids = Collections.unmodifiableList(list);
+            data = buf.slice();
+        } catch (BufferUnderflowException e) {
+            throw new Exception("wrong header");
+        }
+    }
+
+    /**
+     * @param i entry's index.
+     * @return The entry's bytes in place.
+     */
+    private ByteBuffer entry(int i) {
+        ByteBuffer buf = data.duplicate();
+        buf.position((int) offsets[i]);
+        buf.limit((int) (offsets[i] + lengths[i]));
+        return buf.slice();
+    }
+
+    /**
+     * Runs tasks on the pool and rethrows the first failure.
+     */
+    private static <T> List<T> invokeAll(ForkJoinPool pool, List<Callable<T>> tasks) throws Exception {
+        List<T> results = new ArrayList<>(tasks.size());
+        for (Future<T> future : pool.invokeAll(tasks)) {
+            try {
+                results.add(future.get());
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof Exception) {
+                    throw (Exception) cause;
+                } else if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw e;
+            }
+        }
+        return results;
+    }
+
+}
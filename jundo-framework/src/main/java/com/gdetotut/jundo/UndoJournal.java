@@ -0,0 +1,471 @@
+package com.gdetotut.jundo;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Function;
+import java.util.zip.CRC32;
+
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * Incremental storing of {@link UndoStack}: the base snapshot made by {@link UndoPacket} plus the log of
+ * stack's operations made since.
+ * <p>The journal records pushes (with commands in the serialized form), macros, clean and index changes of
+ * the stack it is started for. {@link #flush} appends the records to the log file, so the regular save costs
+ * only the commands pushed since the last flush instead of the whole history.
+ * <p>{@link #compact} stores the fresh snapshot and empties the log. It is called by {@link #flush} itself
+ * when the log becomes bigger than the threshold (see {@link #setCompactThreshold}), so restore time stays bounded.
+ * <p>{@link #restore} restores the snapshot and replays the log through the stack's public methods.
+ * The logged commands are read apart from the snapshot's subject, so while the journal is started
+ * {@link UndoStack#push} rejects commands whose functions capture objects other than the subject
+ * and plain values: they would be replayed on copies.
+ * <p>Example:
+ * <pre>
+ *     UndoJournal journal = UndoJournal.start(stack, snapshot, log, s -&gt; UndoPacket.make(s, "doc", 1));
+ *     ...
+ *     journal.flush(); // every few seconds
+ *     ...
+ *     UndoStack stack = UndoJournal.restore(snapshot, log, null, null);
+ * </pre>
+ */
+public final class UndoJournal implements Closeable {
+
+    /**
+     * Signature of the log file: "JUNL".
+     */
+    private static final int MAGIC = 0x4A554E4C;
+
+    /**
+     * Key of {@link UndoPacket.SubjInfo#extras} with the snapshot's generation. The log is replayed only
+     * on the snapshot of the same generation, so the log left by an interrupted compaction is ignored.
+     */
+    private static final String GENERATION_KEY = "jundo.journal.generation";
+
+    private static final byte PUSH = 1;
+    private static final byte PUSH_ALL = 2;
+    private static final byte CLEAN = 3;
+    private static final byte INDEX = 4;
+    private static final byte BEGIN_MACRO = 5;
+    private static final byte END_MACRO = 6;
+    private static final byte DROP_MACRO = 7;
+    private static final byte CLEAR = 8;
+
+    /**
+     * The same as {@link #PUSH} and {@link #PUSH_ALL}, when the pushed command could be merged
+     * with the previous one by the stack's property merge window. The window depends on time,
+     * so the replay follows the record instead.
+     */
+    private static final byte PUSH_MERGING = 9;
+    private static final byte PUSH_ALL_MERGING = 10;
+
+    private final UndoStack stack;
+    private final Path snapshot;
+    private final Path log;
+    private final Function<UndoStack, UndoPacket.Builder> packet;
+
+    /**
+     * Records made since the last flush.
+     */
+    private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private final DataOutputStream records = new DataOutputStream(pending);
+
+    /**
+     * Offset in {@link #pending} of the macro being recorded; -1 if there is no macro.
+     * {@link #flush} holds the macro back until it ends, so the log never ends inside a macro.
+     */
+    private int macroStart = -1;
+
+    private FileChannel channel;
+    private long generation;
+    private long snapshotSize;
+    private long compactThreshold;
+
+    /**
+     * Index of the stack known to the log.
+     */
+    private int loggedIdx;
+
+    /**
+     * Starts journal for the stack: stores the snapshot, creates empty log and begins to record.
+     * <p>Use it after {@link #restore} too, to continue journal of the restored stack.
+     *
+     * @param stack    the stack to record. Required.
+     * @param snapshot file for the snapshot. Required.
+     * @param log      file for the log. Required.
+     * @param packet   maker of packets for snapshots, e.g. {@code s -> UndoPacket.make(s, "doc", 1).zipped(true)}.
+     *                 Required.
+     * @return Started journal.
+     * @throws Exception If something goes wrong.
+     */
+    public static UndoJournal start(UndoStack stack, Path snapshot, Path log,
+                                    Function<UndoStack, UndoPacket.Builder> packet) throws Exception {
+        if (null == stack) {
+            throw new NullPointerException("stack");
+        } else if (null == snapshot) {
+            throw new NullPointerException("snapshot");
+        } else if (null == log) {
+            throw new NullPointerException("log");
+        } else if (null == packet) {
+            throw new NullPointerException("packet");
+        }
+        if (null != stack.journal) {
+            throw new IllegalStateException("stack already has journal");
+        }
+        UndoJournal journal = new UndoJournal(stack, snapshot, log, packet);
+        journal.compact();
+        stack.journal = journal;
+        return journal;
+    }
+
+    /**
+     * Restores the stack from the snapshot and replays the log on it.
+     * <p>The records torn by a crash at the end of the log are ignored.
+     * <p>Limits of the stack that are not stored with it (e.g. {@link UndoStack#setSizeEstimator}) should be
+     * set in onPrepare, as they affect the replay.
+     *
+     * @param snapshot  file of the snapshot. Required.
+     * @param log       file of the log. Optional: the snapshot alone is restored if there is no log.
+     * @param onRestore see {@link UndoPacket.Peeker#restore}. Optional.
+     * @param onPrepare see {@link UndoPacket#stack}; called before the replay. Optional.
+     * @return Restored stack.
+     * @throws Exception If something goes wrong.
+     */
+    public static UndoStack restore(Path snapshot, Path log, UndoPacket.OnRestore onRestore,
+                                    UndoPacket.OnPrepareStack onPrepare) throws Exception {
+        if (null == snapshot) {
+            throw new NullPointerException("snapshot");
+        }
+        // Read into the heap, not mapped: the stubs of a lazy restore would keep the mapping
+        // and then the snapshot could not be replaced by compact() on some systems.
+        UndoPacket.Peeker peeker = UndoPacket.peekFrom(ByteBuffer.wrap(Files.readAllBytes(snapshot)), null);
+        UndoStack stack = peeker.restore(onRestore).stack(onPrepare);
+        Serializable generation = null == peeker.subjInfo.extras ? null : peeker.subjInfo.extras.get(GENERATION_KEY);
+
+        if (null != log && Files.exists(log)) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(log)))) {
+                if (in.readInt() != MAGIC) {
+                    throw new IOException("not an UndoJournal log");
+                }
+                if (Long.valueOf(in.readLong()).equals(generation)) {
+                    byte[] batch;
+                    while (null != (batch = readBatch(in))) {
+                        replay(stack, batch);
+                    }
+                }
+            } catch (EOFException e) {
+                // Empty log.
+            }
+        }
+        return stack;
+    }
+
+    /**
+     * Appends records made since the last flush to the log, then compacts the journal if the log is too big.
+     * <p>Records of the macro being composed are held back until it ends, so the macro is either restored
+     * whole or not at all.
+     *
+     * @throws Exception If something goes wrong.
+     */
+    public void flush() throws Exception {
+        checkOpen();
+        if (macroStart < 0 && stack.getIdx() != loggedIdx) {
+            records.writeByte(INDEX);
+            records.writeInt(stack.getIdx());
+            loggedIdx = stack.getIdx();
+        }
+        int len = macroStart < 0 ? pending.size() : macroStart;
+        if (len > 0) {
+            byte[] all = pending.toByteArray();
+            byte[] batch = Arrays.copyOf(all, len);
+            CRC32 crc = new CRC32();
+            crc.update(batch);
+            ByteBuffer buf = ByteBuffer.allocate(8 + batch.length);
+            buf.putInt(batch.length).putInt((int) crc.getValue()).put(batch);
+            buf.flip();
+            while (buf.hasRemaining()) {
+                channel.write(buf);
+            }
+            channel.force(false);
+            pending.reset();
+            pending.write(all, len, all.length - len);
+            if (macroStart >= 0) {
+                macroStart = 0;
+            }
+        }
+        if (channel.size() > (compactThreshold > 0 ? compactThreshold : snapshotSize) && !stack.isInMacro()) {
+            compact();
+        }
+    }
+
+    /**
+     * Stores the fresh snapshot of the stack and empties the log.
+     * <p>Can't be done in the middle of a macro.
+     *
+     * @throws Exception If something goes wrong.
+     */
+    public void compact() throws Exception {
+        if (stack.isInMacro()) {
+            System.err.println("UndoJournal.compact(): cannot compact in the middle of a macro");
+            return;
+        }
+
+        Path tmp = snapshot.resolveSibling(snapshot.getFileName() + ".tmp");
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(tmp))) {
+            packet.apply(stack).extra(GENERATION_KEY, generation + 1).store(out);
+        }
+        Files.move(tmp, snapshot, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        ++generation;
+        snapshotSize = Files.size(snapshot);
+
+        if (null != channel) {
+            channel.close();
+        }
+        channel = FileChannel.open(log, CREATE, WRITE, TRUNCATE_EXISTING);
+        ByteBuffer header = ByteBuffer.allocate(12);
+        header.putInt(MAGIC).putLong(generation);
+        header.flip();
+        while (header.hasRemaining()) {
+            channel.write(header);
+        }
+        channel.force(false);
+        pending.reset();
+        macroStart = -1;
+        loggedIdx = stack.getIdx();
+    }
+
+    /**
+     * Sets the size of the log after which {@link #flush} compacts the journal.
+     *
+     * @param bytes size of the log in bytes. Zero or less means the size of the snapshot, which is the default.
+     */
+    public void setCompactThreshold(long bytes) {
+        this.compactThreshold = bytes;
+    }
+
+    /**
+     * @return Size of the log after which {@link #flush} compacts the journal. Zero means the size of the snapshot.
+     */
+    public long getCompactThreshold() {
+        return Math.max(0, compactThreshold);
+    }
+
+    /**
+     * Flushes records and stops the journal. The stack is not recorded anymore.
+     *
+     * @throws IOException If something goes wrong.
+     */
+    @Override
+    public void close() throws IOException {
+        if (null == channel) {
+            return;
+        }
+        try {
+            flush();
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException(e);
+        } finally {
+            stack.journal = null;
+            channel.close();
+            channel = null;
+        }
+    }
+
+    //-------------------------------------------------------------------------------------------------
+    // Records from the stack.
+
+    /**
+     * @param cmd command in the form of {@link CommandStreams#toBytes}, taken before it was applied.
+     */
+    void push(int idx, byte[] cmd, boolean mergeProperties) throws IOException {
+        moveTo(idx);
+        records.writeByte(mergeProperties ? PUSH_MERGING : PUSH);
+        writeBytes(cmd);
+    }
+
+    /**
+     * @param cmds commands in the form of {@link CommandStreams#toBytes}, taken before they were applied.
+     */
+    void pushAll(int idx, List<byte[]> cmds, boolean mergeProperties) throws IOException {
+        moveTo(idx);
+        records.writeByte(mergeProperties ? PUSH_ALL_MERGING : PUSH_ALL);
+        records.writeInt(cmds.size());
+        for (byte[] cmd : cmds) {
+            writeBytes(cmd);
+        }
+    }
+
+    // Records below are written to memory, so IOException can't really happen there.
+
+    void clean(int idx) {
+        try {
+            moveTo(idx);
+            records.writeByte(CLEAN);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    void beginMacro(int idx, String caption) {
+        try {
+            moveTo(idx);
+            macroStart = pending.size();
+            records.writeByte(BEGIN_MACRO);
+            records.writeBoolean(null != caption);
+            if (null != caption) {
+                writeBytes(caption.getBytes(StandardCharsets.UTF_8));
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    void endMacro() {
+        try {
+            records.writeByte(END_MACRO);
+            macroStart = -1;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    void dropMacro() {
+        try {
+            records.writeByte(DROP_MACRO);
+            macroStart = -1;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    void clear() {
+        try {
+            records.writeByte(CLEAR);
+            macroStart = -1;
+            loggedIdx = 0;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    //-------------------------------------------------------------------------------------------------
+
+    private UndoJournal(UndoStack stack, Path snapshot, Path log, Function<UndoStack, UndoPacket.Builder> packet) {
+        this.stack = stack;
+        this.snapshot = snapshot;
+        this.log = log;
+        this.packet = packet;
+        // Random start, so the log of another journal of the same files never matches the snapshot.
+        this.generation = ThreadLocalRandom.current().nextLong();
+    }
+
+    private void checkOpen() throws IOException {
+        if (null == channel) {
+            throw new IOException("journal is closed");
+        }
+    }
+
+    /**
+     * Records index change made by undo/redo, if any, before the next record.
+     */
+    private void moveTo(int idx) throws IOException {
+        if (idx != loggedIdx) {
+            records.writeByte(INDEX);
+            records.writeInt(idx);
+        }
+        // The record itself moves the index (and may evict commands), so the next one should tell
+        // the index again. It costs few bytes, and the replay skips it if the index is the same.
+        loggedIdx = -1;
+    }
+
+    private void writeBytes(byte[] bytes) throws IOException {
+        records.writeInt(bytes.length);
+        records.write(bytes);
+    }
+
+    /**
+     * Reads the batch written by {@link #flush}.
+     *
+     * @return Records of the batch; null if there are no more whole batches.
+     */
+    private static byte[] readBatch(DataInputStream in) throws IOException {
+        try {
+            int len = in.readInt();
+            int crc = in.readInt();
+            if (len < 0) {
+                return null;
+            }
+            byte[] batch = new byte[len];
+            in.readFully(batch);
+            CRC32 check = new CRC32();
+            check.update(batch);
+            return (int) check.getValue() == crc ? batch : null;
+        } catch (EOFException e) {
+            return null;
+        }
+    }
+
+    private static void replay(UndoStack stack, byte[] batch) throws Exception {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(batch));
+        while (in.available() > 0) {
+            byte op = in.readByte();
+            switch (op) {
+                case PUSH:
+                case PUSH_MERGING:
+                    stack.push(readCmd(in, stack), op == PUSH_MERGING);
+                    break;
+                case PUSH_ALL:
+                case PUSH_ALL_MERGING:
+                    UndoCommand[] cmds = new UndoCommand[in.readInt()];
+                    for (int i = 0; i < cmds.length; ++i) {
+                        cmds[i] = readCmd(in, stack);
+                    }
+                    stack.pushAll(Arrays.asList(cmds), op == PUSH_ALL_MERGING);
+                    break;
+                case CLEAN:
+                    stack.setClean();
+                    break;
+                case INDEX:
+                    int idx = in.readInt();
+                    if (idx != stack.getIdx()) {
+                        stack.setIndex(idx);
+                    }
+                    break;
+                case BEGIN_MACRO:
+                    stack.beginMacro(in.readBoolean() ? new String(readBytes(in), StandardCharsets.UTF_8) : null);
+                    break;
+                case END_MACRO:
+                    stack.endMacro();
+                    break;
+                case DROP_MACRO:
+                    stack.dropMacro();
+                    break;
+                case CLEAR:
+                    stack.clear();
+                    break;
+                default:
+                    throw new IOException("unknown record: " + op);
+            }
+        }
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    private static UndoCommand readCmd(DataInputStream in, UndoStack stack) throws Exception {
+        return CommandStreams.fromBytes(readBytes(in), stack);
+    }
+
+}
@@ -0,0 +1,965 @@
+package com.gdetotut.jundo;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.Base64;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.Predicate;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Class for control storing and restoring UndoStack's instances.
+ * <p>Has features to tune these processes for various types of subject:
+ * <ul>
+ *     <li>parameters {@link SubjInfo#id} and {@link SubjInfo#version} helps restore subject correctly
+ *     <li>function {@link Builder#onStore} helps manually tune the storing process for non-serializable subjects
+ *     <li>function {@link #peek} helps to check whether this string has needed type for restore
+ *     <li>functions {@link Builder#store(OutputStream)} and {@link #peekFrom(InputStream, Predicate)} do the same
+ *     in the binary form without holding the whole packet in memory
+ *     <li>functions {@link #peekFrom(ByteBuffer, Predicate)} and {@link #peekFrom(Path, Predicate)} read
+ *     the binary packet in place, e.g. from the memory-mapped file
+ *     <li>function {@link Peeker#restore} helps manually tune the restore process for non-serializable subjects
+ * </ul>
+ */
+public class UndoPacket {
+
+    /**
+     * Implement this interface in {@link Builder#onStore} to manually tune the storing process for non-serializable subjects.
+     */
+    @FunctionalInterface
+    public interface OnStore {
+
+        /**
+         * Used in {@link Builder#onStore} for manually convert {@link UndoStack#subj} to {@link Serializable} form if required.
+         * @param subj {@link UndoStack#subj}
+         * @return Converted {@link UndoStack#subj}
+         * @see Builder#onStore
+         */
+        Serializable handle(Object subj);
+    }
+
+    /**
+     * Implement this interface in {@link Peeker#restore} to manually tune the restoring process for non-serializable subjects.
+     */
+    @FunctionalInterface
+    public interface OnRestore {
+
+        /**
+         *
+         * @param processedSubj {@link UndoStack#subj} in the Serializable form that earlier processed in the {@link Builder#onStore}.
+         * @param subjInfo additional information stored with the stack
+         * @return Restored {@link UndoStack#subj}.
+         * @throws Exception If something goes wrong.
+         */
+        Object handle(Serializable processedSubj, SubjInfo subjInfo) throws Exception;
+    }
+
+    /**
+     * Implement this interface in {@link #stack} to tune restored stack (i.e. to set local contexts).
+     */
+    @FunctionalInterface
+    public interface OnPrepareStack {
+
+        /**
+         * @param stack restored stack.
+         * @param subjInfo additional information stored with the stack
+         */
+        void apply(UndoStack stack, SubjInfo subjInfo);
+    }
+
+    /**
+     * Additional subject's information stored with the stack.
+     */
+    public static class SubjInfo implements Serializable {
+
+        private static final long serialVersionUID = -7517648406339560086L;
+
+        /**
+         * Identifier for the subject.
+         * <p>It is a good practice to save it with stack. It helps restore things correctly.
+         */
+        public final String id;
+
+        /**
+         * Subject's version.
+         * <p>It is a good practice to save it with stack. It helps restore things correctly and make migration
+         * if necessary.
+         */
+        public final int version;
+
+        /**
+         * Some extra information. Optional.
+         */
+        public final Map<String, Serializable> extras;
+
+        public SubjInfo(String id, int version, Map<String, Serializable> extras) {
+            this.id = id;
+            this.version = version;
+            this.extras = extras;
+        }
+    }
+
+    /**
+     * Builder to make store handy.
+     */
+    public static class Builder {
+
+        /**
+         * Size of the legacy string packet's header: decimal length of SubjInfo part padded with
+         * {@link #HEADER_FILLER}. Such packets are still peeked and restored by {@link UndoPacket#peek}.
+         */
+        private static final int HEADER_SIZE = 40;
+        private static final char HEADER_FILLER = 'Z';
+
+        /**
+         * Signature of the binary packet: "JUND".
+         */
+        private static final int MAGIC = 0x4A554E44;
+
+        /**
+         * Version of the binary packet's layout:
+         * <pre>
+         * int    {@link #MAGIC}
+         * byte   format version
+         * byte   flags: {@link #FLAG_EXTRAS}
+         * byte   {@link Codec#id} of extras and data parts
+         * int    {@link SubjInfo#version}
+         * int    length of {@link SubjInfo#id} in UTF-8 bytes, -1 for null
+         * bytes  {@link SubjInfo#id} in UTF-8
+         * int    length of serialized {@link SubjInfo#extras}; only with {@link #FLAG_EXTRAS}
+         * bytes  serialized {@link SubjInfo#extras}; only with {@link #FLAG_EXTRAS}
+         * long   length of data part, -1 if it lasts up to the end of the packet
+         * bytes  data part: serialized stack
+         * </pre>
+         * So the header is read by a few primitive reads. Extras (if any) are kept in the serialized form
+         * until they are accessed, see {@link LazyExtras}.
+         */
+        private static final int FORMAT_VERSION = 3;
+
+        /**
+         * Flag of the binary packet: there are extras in the header.
+         */
+        private static final int FLAG_EXTRAS = 2;
+
+        /**
+         * Size of buffer for channels.
+         */
+        private static final int BUFFER_SIZE = 1 << 16;
+
+        private final UndoStack stack;
+        private final String id;
+        private final int version;
+        private Map<String, Serializable> extras = null;
+        private Codec codec = Codec.NONE;
+        private boolean lazy = false;
+        private OnStore onStore = null;
+
+        /**
+         * Adds key-value pair to map of additional information.
+         * <p>If key exists replaces value.
+         *
+         * @param key key for additional parameter.
+         * @param value value of additional parameter.
+         * @return Instance of Builder.
+         */
+        public Builder extra(String key, Serializable value) {
+            if (key == null) {
+                throw new NullPointerException("key");
+            }
+            if (extras == null) {
+                extras = new TreeMap<>();
+            }
+            extras.put(key, value);
+            return this;
+        }
+
+        /**
+         * Sets flag for gzip when store.
+         * <p>The same as {@link #codec} with {@link Codec#GZIP} or {@link Codec#NONE}.
+         *
+         * @param value true if wanna to gzip; otherwise pass false.
+         * @return Instance of Builder.
+         */
+        public Builder zipped(boolean value) {
+            this.codec = value ? Codec.GZIP : Codec.NONE;
+            return this;
+        }
+
+        /**
+         * Sets codec to compress extras and data parts. Default is {@link Codec#NONE}.
+         * <p>E.g. {@code Codec.deflate(Deflater.BEST_SPEED)} for frequent autosave,
+         * {@code Codec.deflateWithDictionary(Deflater.BEST_COMPRESSION)} for archive.
+         *
+         * @param codec codec. Required.
+         * @return Instance of Builder.
+         */
+        public Builder codec(Codec codec) {
+            if (null == codec) {
+                throw new NullPointerException("codec");
+            }
+            this.codec = codec;
+            return this;
+        }
+
+        /**
+         * Sets flag to store every command separately, so {@link Peeker#restore(OnRestore, boolean)} can
+         * restore the stack without deserializing its commands until they are reached.
+         * <p>Separately stored command keeps references to its stack and the stack's subject, but not to
+         * other objects shared with the subject or other commands: they are restored as the command's own copies.
+         * So use it for commands that reach the subject's parts through the subject only.
+         *
+         * @param value true to store commands separately; otherwise pass false.
+         * @return Instance of Builder.
+         */
+        public Builder lazy(boolean value) {
+            this.lazy = value;
+            return this;
+        }
+
+        /**
+         * Sets event handler for manual tune to store non-serializable subject.
+         *
+         * @param onStore if not null user can manually convert non-serializable subject to {@link Serializable} form.
+         * @return Instance of Builder.
+         */
+        public Builder onStore(OnStore onStore) {
+            this.onStore = onStore;
+            return this;
+        }
+
+        /**
+         * Terminal method for the storing chain process.
+         * <p> Converts {@link UndoStack} to Base64 string using events (if set), gzip (if set) and other information.
+         * <p>The string is the binary packet (see {@link #store(OutputStream)}) in the Base64 form.
+         * @return Converted stack in the Base64 form.
+         * @throws Exception If something goes wrong.
+         */
+        public String store() throws Exception {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            try (OutputStream out = Base64.getUrlEncoder().wrap(baos)) {
+                store(out);
+            }
+            return new String(baos.toByteArray(), StandardCharsets.ISO_8859_1);
+        }
+
+        /**
+         * Terminal method for the storing chain process.
+         * <p>Writes {@link UndoStack} to the stream in the binary form: the header with {@link SubjInfo},
+         * then the stack itself, which is serialized (and gzipped if set) directly into the stream.
+         * <p>The stream is not closed. Use {@link UndoPacket#peekFrom(InputStream, Predicate)} to read it.
+         *
+         * @param out stream to write to. Required.
+         * @throws Exception If something goes wrong.
+         */
+        public void store(OutputStream out) throws Exception {
+            if (null == out) {
+                throw new NullPointerException("out");
+            }
+
+            Data data = makeData();
+            byte[] idBytes = null == id ? null : id.getBytes(StandardCharsets.UTF_8);
+            byte[] extrasBytes = null == extras ? null : toBytes((Serializable) extras);
+
+            DataOutputStream header = new DataOutputStream(out);
+            header.writeInt(MAGIC);
+            header.writeByte(FORMAT_VERSION);
+            header.writeByte(null != extrasBytes ? FLAG_EXTRAS : 0);
+            header.writeByte(codec.id());
+            header.writeInt(version);
+            if (null == idBytes) {
+                header.writeInt(-1);
+            } else {
+                header.writeInt(idBytes.length);
+                header.write(idBytes);
+            }
+            if (null != extrasBytes) {
+                header.writeInt(extrasBytes.length);
+                header.write(extrasBytes);
+            }
+            // The stack is streamed, so its length is unknown.
+            header.writeLong(-1);
+            header.flush();
+
+            try (ObjectOutputStream oos = new CommandStreams.Output(codec.encode(new KeepOpenOutput(out)), null)) {
+                stack.writeLazy = lazy;
+                oos.writeObject(data);
+            } finally {
+                stack.writeLazy = false;
+            }
+        }
+
+        /**
+         * Terminal method for the storing chain process.
+         * <p>Does the same as {@link #store(OutputStream)} for the channel. The channel is not closed.
+         *
+         * @param channel channel to write to. Required.
+         * @throws Exception If something goes wrong.
+         */
+        public void store(WritableByteChannel channel) throws Exception {
+            if (null == channel) {
+                throw new NullPointerException("channel");
+            }
+            OutputStream out = new BufferedOutputStream(Channels.newOutputStream(channel), BUFFER_SIZE);
+            store(out);
+            out.flush();
+        }
+
+        /**
+         * @return Subject's identifier.
+         */
+        String subjId() {
+            return id;
+        }
+
+        private Data makeData() throws Exception {
+            Data data = new Data();
+            data.stack = stack;
+
+            // Обработчик есть: обрабатываем в строку
+            //  иначе если не сериализуется ошибка
+            //  иначе назначаем напрямую
+            if (null != onStore) {
+                data.subj = onStore.handle(stack.getSubj());
+                data.subjHandled = true;
+            } else if (!(stack.getSubj() instanceof Serializable)) {
+                throw new Exception("UndoStack's subject not serializable");
+            } else {
+                data.subj = (Serializable) stack.getSubj();
+                data.subjHandled = false;
+            }
+            //~
+            return data;
+        }
+
+        private Builder(UndoStack stack, String id, int version) {
+            if (null == stack) {
+                throw new NullPointerException("stack");
+            }
+            this.stack = stack;
+            this.id = id;
+            this.version = version;
+        }
+
+        private byte[] toBytes(Serializable value) throws IOException {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            try (final ObjectOutputStream oos = new CommandStreams.Output(codec.encode(baos), null)) {
+                oos.writeObject(value);
+            }
+            return baos.toByteArray();
+        }
+
+    }
+
+    //----------------------------------------------------------------------------------------------------
+
+    /**
+     * Helper structure to store {@link UndoStack}
+     */
+    private static class Data implements Serializable {
+
+        private static final long serialVersionUID = 390014163582908226L;
+
+        UndoStack stack;
+        Serializable subj;
+        // True if subj handled via handler; otherwise false.
+        boolean subjHandled;
+    }
+
+    /**
+     * Binary packet's header.
+     */
+    private static class Header {
+        SubjInfo subjInfo;
+        Codec codec;
+        // Length of data part; -1 if it lasts up to the end of the packet.
+        long dataLength;
+        // Size of the header itself.
+        int size;
+    }
+
+    /**
+     * Opens the stream of the packet's data part (unzipped).
+     */
+    @FunctionalInterface
+    private interface Source {
+        InputStream open() throws IOException;
+    }
+
+    /**
+     * Stream of chars of the string's part. Used for Base64 chars only, so every char is a byte.
+     */
+    private static class CharsInput extends InputStream {
+
+        private final String chars;
+        private final int end;
+        private int pos;
+
+        CharsInput(String chars, int start, int end) {
+            this.chars = chars;
+            this.pos = start;
+            this.end = end;
+        }
+
+        @Override
+        public int read() {
+            return pos < end ? chars.charAt(pos++) & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            } else if (pos >= end) {
+                return -1;
+            }
+            int n = Math.min(len, end - pos);
+            for (int i = 0; i < n; ++i) {
+                b[off + i] = (byte) chars.charAt(pos++);
+            }
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return end - pos;
+        }
+    }
+
+    /**
+     * Stream of the buffer's remaining bytes. Reading moves the buffer's position.
+     */
+    private static class ByteBufferInput extends InputStream {
+
+        private final ByteBuffer buf;
+
+        ByteBufferInput(ByteBuffer buf) {
+            this.buf = buf;
+        }
+
+        @Override
+        public int read() {
+            return buf.hasRemaining() ? buf.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            } else if (!buf.hasRemaining()) {
+                return -1;
+            }
+            int n = Math.min(len, buf.remaining());
+            buf.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return buf.remaining();
+        }
+    }
+
+    /**
+     * Stream that does not close the underlying one, so caller's stream stays open.
+     */
+    private static class KeepOpenInput extends FilterInputStream {
+
+        KeepOpenInput(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * Stream that does not close the underlying one, so caller's stream stays open. Flushes it instead.
+     */
+    private static class KeepOpenOutput extends FilterOutputStream {
+
+        KeepOpenOutput(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+
+    //-------------------------------------------------------------------------------------------------
+
+    /**
+     * Additional information about {@link UndoStack#subj}.
+     */
+    public final SubjInfo subjInfo;
+
+    /**
+     * {@link UndoStack} itself. Available only through {@link UndoPacket#stack} method.
+     */
+    private final UndoStack stack;
+
+    //-------------------------------------------------------------------------------------------------
+
+    /**
+     * Initial method in storing chain.
+     * @param stack {@link UndoStack} to store. Required.
+     * @param id subject identifier. Desirable.
+     * @param version subject version. Desirable.
+     * @return {@link Builder} instance.
+     */
+    public static Builder make(UndoStack stack, String id, int version) {
+        return new Builder(stack, id, version);
+    }
+
+    /**
+     * Helper class to provide chain of restore methods.
+     */
+    public static class Peeker {
+
+        public final SubjInfo subjInfo;
+        private final Source source;
+        private final boolean allow;
+
+        private Peeker(Source source, SubjInfo subjInfo, boolean allow) throws Exception {
+            if (null == subjInfo) {
+                throw new Exception("subjInfo");
+            }
+
+            this.source = source;
+            this.subjInfo = subjInfo;
+            this.allow = allow;
+        }
+
+        /**
+         * Creates {@link UndoPacket} instance. Via parameter (if set) allows manually tune subject restore.
+         * <p>If the packet is peeked from the stream or channel, it can be restored only once.
+         * @param handler event handler. Optional.
+         * @return {@link UndoPacket} instance.
+         * @throws Exception If something goes wrong.
+         */
+        public UndoPacket restore(OnRestore handler) throws Exception {
+            return restore(handler, false);
+        }
+
+        /**
+         * Creates {@link UndoPacket} instance, optionally without deserializing the stack's commands.
+         * <p>If lazy is set and the packet was stored with {@link Builder#lazy}, only the stack itself and
+         * captions of its commands are restored here. Every command is deserialized when it is reached first
+         * (by {@link UndoStack#undo}, {@link UndoStack#redo}, {@link UndoStack#getCommand} etc).
+         * Otherwise all the commands are restored at once.
+         * @param handler event handler. Optional.
+         * @param lazy    true to deserialize commands when they are reached.
+         * @return {@link UndoPacket} instance.
+         * @throws Exception If something goes wrong.
+         */
+        public UndoPacket restore(OnRestore handler, boolean lazy) throws Exception {
+
+            try (ObjectInputStream ois = new CommandStreams.Input(source.open(), null)) {
+
+                boolean isExp = true;
+                Data data = (Data) ois.readObject();
+                UndoStack stack = data.stack;
+                Object subj = data.subj;
+
+                // Если хендлер назначен, надо его использовать
+                if (null != handler) {
+                    subj = handler.handle(data.subj, subjInfo);
+                } else if (data.subjHandled) {
+                    throw new Exception("need subject handler");
+                }
+
+                if (null == subj) {
+                    isExp = false;
+                    subj = new Object();
+                }
+                stack.setSubj(subj);
+                if (!lazy) {
+                    stack.materializeAll();
+                }
+                UndoPacket packet = new UndoPacket(stack, isExp, subjInfo);
+                return packet;
+            }
+        }
+
+
+    }
+
+    /**
+     * Initial method in restore chain.
+     * <p>At this moment only {@link SubjInfo} element is restored and using predicate function user can solve whether we need restore entire {@link UndoStack}.
+     * It is possible we have wrong input string so we can save resources when interrupt process on time.
+     * @param candidate input Base64 string.
+     * @param p predicate.
+     * @return Helper Peeker's instance.
+     * @throws Exception If something goes wrong.
+     */
+    public static Peeker peek(String candidate, Predicate<SubjInfo> p) throws Exception {
+        if (null == candidate) {
+            throw new NullPointerException("candidate");
+        }
+        if (!candidate.isEmpty() && Character.isDigit(candidate.charAt(0))) {
+            return peekLegacy(candidate, p);
+        }
+
+        // The packet is decoded from the string in place, without copying it out.
+        Header header = readHeader(new DataInputStream(Base64.getUrlDecoder()
+                .wrap(new CharsInput(candidate, 0, candidate.length()))));
+        SubjInfo obj = header.subjInfo;
+
+        Peeker peeker = new Peeker(() -> {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(Base64.getUrlDecoder()
+                    .wrap(new CharsInput(candidate, 0, candidate.length())), Builder.BUFFER_SIZE));
+            in.readFully(new byte[header.size]);
+            return header.codec.decode(in);
+        }, obj, null == p || p.test(obj));
+        return peeker;
+    }
+
+    /**
+     * Does the same as {@link #peek} for the string made before the binary packet was introduced:
+     * 40-chars header with the length of SubjInfo part, then Base64 forms of SubjInfo and data, each gzipped
+     * if the packet was zipped.
+     * <p>The data part is {@link Data} in plain Java serialization. The classes it holds keep the serialVersionUIDs
+     * of that version and convert their old fields when read, so the whole stack is restored.
+     */
+    private static Peeker peekLegacy(String candidate, Predicate<SubjInfo> p) throws Exception {
+        if (candidate.length() < Builder.HEADER_SIZE) {
+            throw new Exception("too small size");
+        }
+        int fillerPos = candidate.indexOf(Builder.HEADER_FILLER);
+        if (fillerPos <= 0 || fillerPos >= Builder.HEADER_SIZE) {
+            throw new Exception("wrong header");
+        }
+        long len = Long.valueOf(candidate.substring(0, fillerPos));
+        if (len <= 0 || Builder.HEADER_SIZE + len > candidate.length()) {
+            throw new Exception("wrong header");
+        }
+
+        int dataStart = (int) (Builder.HEADER_SIZE + len);
+        SubjInfo obj;
+        try (ObjectInputStream ois = new ObjectInputStream(unzipIfNeeded(Base64.getUrlDecoder()
+                .wrap(new CharsInput(candidate, Builder.HEADER_SIZE, dataStart))))) {
+            obj = (SubjInfo) ois.readObject();
+        }
+
+        Peeker peeker = new Peeker(() -> unzipIfNeeded(Base64.getUrlDecoder()
+                .wrap(new CharsInput(candidate, dataStart, candidate.length()))),
+                obj, null == p || p.test(obj));
+        return peeker;
+    }
+
+    /**
+     * Initial method in restore chain for the binary packet made by {@link Builder#store(OutputStream)}.
+     * <p>Only the header with {@link SubjInfo} is read here; the stack is read directly from the stream
+     * in {@link Peeker#restore}. The stream is not closed.
+     * @param in input stream positioned at the packet's start. Required.
+     * @param p predicate.
+     * @return Helper Peeker's instance.
+     * @throws Exception If something goes wrong.
+     */
+    public static Peeker peekFrom(InputStream in, Predicate<SubjInfo> p) throws Exception {
+        if (null == in) {
+            throw new NullPointerException("in");
+        }
+        Header header = readHeader(new DataInputStream(in));
+        SubjInfo obj = header.subjInfo;
+
+        Peeker peeker = new Peeker(() -> header.codec.decode(new KeepOpenInput(in)),
+                obj, null == p || p.test(obj));
+        return peeker;
+    }
+
+    /**
+     * Initial method in restore chain for the binary packet made by {@link Builder#store(WritableByteChannel)}.
+     * <p>Does the same as {@link #peekFrom(InputStream, Predicate)} for the channel. The channel is not closed.
+     * @param channel channel positioned at the packet's start. Required.
+     * @param p predicate.
+     * @return Helper Peeker's instance.
+     * @throws Exception If something goes wrong.
+     */
+    public static Peeker peekFrom(ReadableByteChannel channel, Predicate<SubjInfo> p) throws Exception {
+        if (null == channel) {
+            throw new NullPointerException("channel");
+        }
+        return peekFrom(new BufferedInputStream(Channels.newInputStream(channel), Builder.BUFFER_SIZE), p);
+    }
+
+    /**
+     * Initial method in restore chain for the binary packet made by {@link Builder#store(OutputStream)}.
+     * <p>The packet is read in place, starting from the buffer's position: the data part is not copied
+     * out of the buffer. The buffer's position is not changed.
+     * @param buffer buffer with the packet. Required.
+     * @param p predicate.
+     * @return Helper Peeker's instance.
+     * @throws Exception If something goes wrong.
+     */
+    public static Peeker peekFrom(ByteBuffer buffer, Predicate<SubjInfo> p) throws Exception {
+        if (null == buffer) {
+            throw new NullPointerException("buffer");
+        }
+        ByteBuffer buf = buffer.duplicate().order(ByteOrder.BIG_ENDIAN);
+        Header header = readHeader(new DataInputStream(new ByteBufferInput(buf)));
+        if (header.dataLength > buf.remaining()) {
+            throw new Exception("wrong header");
+        }
+        ByteBuffer data = buf.slice();
+        if (header.dataLength >= 0) {
+            data.limit((int) header.dataLength);
+        }
+        SubjInfo obj = header.subjInfo;
+
+        Peeker peeker = new Peeker(() -> header.codec.decode(new ByteBufferInput(data.duplicate())),
+                obj, null == p || p.test(obj));
+        return peeker;
+    }
+
+    /**
+     * Initial method in restore chain for the file with the binary packet made by {@link Builder#store(OutputStream)}.
+     * <p>The file is memory-mapped and read in place as in {@link #peekFrom(ByteBuffer, Predicate)}.
+     * @param file file with the packet. Required.
+     * @param p predicate.
+     * @return Helper Peeker's instance.
+     * @throws Exception If something goes wrong.
+     */
+    public static Peeker peekFrom(Path file, Predicate<SubjInfo> p) throws Exception {
+        if (null == file) {
+            throw new NullPointerException("file");
+        }
+        MappedByteBuffer map;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new Exception("too big size");
+            }
+            // The mapping stays valid after the channel is closed.
+            map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        return peekFrom(map, p);
+    }
+
+    /**
+     * Registers the serializer for objects of exactly this class (not its subclasses).
+     * <p>Such objects are written in the compact form by the serializer instead of Java serialization.
+     * Register it before both store and restore. Built-in serializers cover {@link UndoCommand},
+     * {@link RefCmd} with its primitive variants and {@link SubjInfo}.
+     * @param type class of objects. Required.
+     * @param id serializer's identifier, 16 or greater. It is written instead of the class, so it should
+     *           stay the same for the class between versions of the application.
+     * @param serializer serializer. Required.
+     * @param <T> the type of objects.
+     */
+    public static <T> void registerSerializer(Class<T> type, int id, UndoSerializer<T> serializer) {
+        if (null == type) {
+            throw new NullPointerException("type");
+        }
+        if (null == serializer) {
+            throw new NullPointerException("serializer");
+        }
+        Serializers.register(type, id, serializer);
+    }
+
+    /**
+     * Registers the custom codec, so packets stored with it can be restored.
+     * <p>Built-in codecs need no registration.
+     * @param codec codec with {@link Codec#id} from 16 to 255. Required.
+     */
+    public static void registerCodec(Codec codec) {
+        if (null == codec) {
+            throw new NullPointerException("codec");
+        }
+        Codecs.register(codec);
+    }
+
+    /**
+     * Terminal method in restore chain.
+     * <p>The stack is stored without its group, so it is restored out of any group.
+     * @param handler if not null user can tune finally stack (e.g. set local contexts).
+     * @return UndoStack instance.
+     */
+    public UndoStack stack(OnPrepareStack handler) {
+        return stack(handler, null);
+    }
+
+    /**
+     * Terminal method in restore chain that adds the stack to the group.
+     * @param handler if not null user can tune finally stack (e.g. set local contexts).
+     * @param group if not null the stack is added to this group after handler is called.
+     * @return UndoStack instance.
+     */
+    public UndoStack stack(OnPrepareStack handler, UndoGroup group) {
+        if (null != handler) {
+            handler.apply(stack, subjInfo);
+        }
+        if (null != group) {
+            group.add(stack);
+        }
+        return stack;
+    }
+
+    /**
+     * Reads the binary packet's header (see {@link Builder#FORMAT_VERSION}).
+     * @param in stream positioned at the packet's start.
+     * @return Header.
+     * @throws Exception If the header is wrong.
+     */
+    private static Header readHeader(DataInputStream in) throws Exception {
+        if (in.readInt() != Builder.MAGIC) {
+            throw new Exception("not an UndoPacket");
+        }
+        int format = in.readUnsignedByte();
+        if (format != Builder.FORMAT_VERSION) {
+            throw new Exception("unsupported format version: " + format);
+        }
+        int flags = in.readUnsignedByte();
+        Codec codec = Codecs.get(in.readUnsignedByte());
+        int size = 15;
+        int version = in.readInt();
+
+        String id = null;
+        int idLength = in.readInt();
+        if (idLength >= 0) {
+            byte[] idBytes = new byte[idLength];
+            in.readFully(idBytes);
+            id = new String(idBytes, StandardCharsets.UTF_8);
+            size += idLength;
+        } else if (idLength != -1) {
+            throw new Exception("wrong header");
+        }
+
+        Map<String, Serializable> extras = null;
+        if ((flags & Builder.FLAG_EXTRAS) != 0) {
+            int extrasLength = in.readInt();
+            if (extrasLength <= 0) {
+                throw new Exception("wrong header");
+            }
+            byte[] extrasBytes = new byte[extrasLength];
+            in.readFully(extrasBytes);
+            extras = new LazyExtras(extrasBytes, codec);
+            size += 4 + extrasLength;
+        }
+
+        Header header = new Header();
+        header.subjInfo = new SubjInfo(id, version, extras);
+        header.codec = codec;
+        header.dataLength = in.readLong();
+        header.size = size + 8;
+        if (header.dataLength < -1) {
+            throw new Exception("wrong header");
+        }
+        return header;
+    }
+
+    /**
+     * {@link SubjInfo#extras} of the binary packet, deserialized on the first access.
+     * <p>So {@link #peek} and {@link #peekFrom} read only the primitive part of the header, and the predicate
+     * that checks id and version does not pay for Java serialization of extras.
+     */
+    private static final class LazyExtras extends AbstractMap<String, Serializable> implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private transient byte[] bytes;
+        private transient Codec codec;
+        private transient Map<String, Serializable> map;
+
+        /**
+         * @param bytes serialized extras. Required.
+         * @param codec codec of the bytes. Required.
+         */
+        LazyExtras(byte[] bytes, Codec codec) {
+            this.bytes = bytes;
+            this.codec = codec;
+        }
+
+        @SuppressWarnings("unchecked")
+        private Map<String, Serializable> map() {
+            if (null == map) {
+                try {
+                    map = (Map<String, Serializable>) fromBytes(bytes, codec);
+                } catch (IOException | ClassNotFoundException e) {
+                    throw new IllegalStateException("cannot read extras: " + e.getLocalizedMessage(), e);
+                }
+                bytes = null;
+                codec = null;
+            }
+            return map;
+        }
+
+        @Override
+        public Set<Entry<String, Serializable>> entrySet() {
+            return map().entrySet();
+        }
+
+        @Override
+        public Serializable get(Object key) {
+            return map().get(key);
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return map().containsKey(key);
+        }
+
+        @Override
+        public Serializable put(String key, Serializable value) {
+            return map().put(key, value);
+        }
+
+        @Override
+        public Serializable remove(Object key) {
+            return map().remove(key);
+        }
+
+        /**
+         * Written as the plain map, so SubjInfo is read back without the codec.
+         */
+        private Object writeReplace() {
+            return new TreeMap<>(map());
+        }
+    }
+
+    /**
+     * Checks the gzip signature at the stream's start.
+     * @param in stream to check.
+     * @return Unzipping stream if the signature is found; otherwise the stream itself.
+     * @throws IOException If something goes wrong.
+     */
+    private static InputStream unzipIfNeeded(InputStream in) throws IOException {
+        BufferedInputStream bis = new BufferedInputStream(in, Builder.BUFFER_SIZE);
+        bis.mark(2);
+        final boolean zipped = bis.read() == (GZIPInputStream.GZIP_MAGIC & 0xFF)
+                && bis.read() == (GZIPInputStream.GZIP_MAGIC >> 8);
+        bis.reset();
+        return zipped ? new GZIPInputStream(bis, Builder.BUFFER_SIZE) : bis;
+    }
+
+    private static Object fromBytes(byte[] data, Codec codec) throws IOException, ClassNotFoundException {
+        try (ObjectInputStream ois = new CommandStreams.Input(codec.decode(new ByteArrayInputStream(data)), null)) {
+            return ois.readObject();
+        }
+    }
+
+    private UndoPacket(UndoStack stack, boolean isExpected, SubjInfo subjInfo) {
+        this.stack = stack;
+        this.subjInfo = subjInfo;
+    }
+
+}
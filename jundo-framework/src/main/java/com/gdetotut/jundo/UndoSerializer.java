@@ -0,0 +1,33 @@
+package com.gdetotut.jundo;
+
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+
+/**
+ * Interface for compact serialization of objects of the exact class. Used in {@link UndoPacket#registerSerializer}.
+ * <p>Serializer writes object's state only, without class descriptors and field names. Registered objects
+ * are written this way everywhere the library serializes commands: in {@link UndoPacket}, {@link UndoJournal},
+ * spill file etc. Other objects are written by Java serialization.
+ * <p>Write nested objects like the command's owner, children or values by {@link ObjectOutput#writeObject},
+ * so they keep references shared with the rest of the stream.
+ *
+ * @param <T> the type of objects.
+ */
+public interface UndoSerializer<T> {
+
+    /**
+     * @param obj object to write. Not null.
+     * @param out stream to write to.
+     * @throws IOException If something goes wrong.
+     */
+    void write(T obj, ObjectOutput out) throws IOException;
+
+    /**
+     * @param in stream to read from, positioned where {@link #write} started.
+     * @return Restored object.
+     * @throws IOException            If something goes wrong.
+     * @throws ClassNotFoundException If the class of nested object is not found.
+     */
+    T read(ObjectInput in) throws IOException, ClassNotFoundException;
+}
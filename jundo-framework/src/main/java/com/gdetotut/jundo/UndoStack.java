@@ -0,0 +1,1742 @@
+package com.gdetotut.jundo;
+
+import java.io.*;
+import java.lang.reflect.Constructor;
+import java.nio.file.Path;
+import java.util.*;
+
+/**
+ * Stack of entire {@link UndoCommand} chain for subject.
+ * <b>Main characteristic of {@link UndoStack} is that two different stacks should not share one subject.</b>
+ * <p>Otherwise {@link UndoGroup} may not add them both, and there will be collision when undoing one subject
+ * via different stacks.
+ */
+public class UndoStack implements Serializable {
+
+    private static final long serialVersionUID = 2513299857194703902L;
+
+    /**
+     * Group of stacks that owns this stack. Optional.
+     * <p>Not serialized, so the stack is stored without its siblings. Restored stack is added to the group
+     * via {@link UndoPacket#stack(UndoPacket.OnPrepareStack, UndoGroup)}.
+     */
+    transient UndoGroup group;
+
+    /**
+     * Keeps the subject for whom {@link #commands} are behave. Required.
+     */
+    private transient Object subj;
+
+    /**
+     * Index of current command that redo.
+     */
+    private int idx;
+
+    /**
+     * Index of clean state command.
+     */
+    private int cleanIdx;
+
+    /**
+     * List of commands. Circular buffer makes eviction of the bottom commands cheap.
+     */
+    private RingList<UndoCommand> commands;
+
+    /**
+     * Macro that is been building at this moment.
+     */
+    private UndoCommand macroCmd;
+
+    /**
+     * List of macros.
+     */
+    private List<UndoCommand> macros;
+
+    /**
+     * Limit for command's stack.
+     */
+    private int undoLimit;
+
+    /**
+     * Limit for the estimated size of commands in bytes.
+     */
+    private long memoryLimit;
+
+    /**
+     * Max time in milliseconds between pushes of merged property commands; 0 if they are not merged.
+     */
+    private long propertyMergeWindow;
+
+    /**
+     * Index after the last push; -1 if it was changed since then by undo, redo etc.
+     */
+    private transient int pushIdx = -1;
+
+    /**
+     * Time of the last push by {@link System#nanoTime}.
+     */
+    private transient long pushTime;
+
+    /**
+     * True while the pushed command may be merged by {@link PropertyCmd#mergeWith}.
+     */
+    transient boolean mergeProperties;
+
+    /**
+     * Estimator of command's size. Optional.
+     */
+    private transient SizeEstimator sizeEstimator;
+
+    /**
+     * Client that watching events. Optional.
+     */
+    private transient UndoWatcher watcher;
+
+    /**
+     * Journal recording this stack. See {@link UndoJournal#start}.
+     */
+    transient UndoJournal journal;
+
+    /**
+     * If set, commands are written as {@link LazyCmd} stubs. See {@link UndoPacket.Builder#lazy}.
+     */
+    transient boolean writeLazy;
+
+    /**
+     * Mode of notifying {@link #watcher}. Null means {@link WatchMode#ALL}.
+     */
+    private transient WatchMode watchMode;
+
+    /**
+     * State last fired to {@link #watcher} in modes other than {@link WatchMode#ALL}.
+     */
+    private transient UndoState published;
+
+    /**
+     * List of local contexts. Optional.
+     */
+    private transient Map<String, Object> localContexts;
+
+    /**
+     * Flag for get rid of parasite commands.
+     */
+    private boolean suspend = false;
+
+    /**
+     * File for the cold part of history. Optional.
+     */
+    private transient SpillFile spillFile;
+
+    /**
+     * Count of the top commands that are kept in memory while {@link #spillFile} is set.
+     * It is also the count of spilled commands that may be paged in at the same time.
+     */
+    private transient int hotWindow;
+
+    /**
+     * Commands below this index are already spilled.
+     */
+    private transient int coldEnd;
+
+    /**
+     * Spilled commands that are paged in, in order of paging.
+     */
+    private transient ArrayDeque<SpilledCmd> pagedIn;
+
+    /**
+     * Count of commands evicted from the bottom since the stack was cleared.
+     * Adding it to index gives position that is not shifted by eviction.
+     */
+    private transient long evicted;
+
+    /**
+     * Maker of subject's snapshots for checkpoints. Optional.
+     */
+    private transient Snapshotter snapshotter;
+
+    /**
+     * Checkpoints are taken at positions that are multiples of this step.
+     */
+    private transient long checkpointStep;
+
+    /**
+     * Maximum total size of checkpoints, as measured by {@link Snapshotter#size}.
+     */
+    private transient long checkpointsLimit;
+
+    /**
+     * Total size of checkpoints, as measured by {@link Snapshotter#size}.
+     */
+    private transient long checkpointsSize;
+
+    /**
+     * Subject's snapshots by position (see {@link #evicted}) of the state they were taken at.
+     */
+    private transient TreeMap<Long, Object> checkpoints;
+
+    /**
+     * Copiers registered for command classes. Optional.
+     */
+    private transient Map<Class<?>, Copier<?>> copiers;
+
+    /**
+     * Copier of the last resort: serialization round trip.
+     */
+    private static final Copier<UndoCommand> SERIAL_COPIER =
+            cmd -> CommandStreams.fromBytes(CommandStreams.toBytes(cmd), cmd.owner);
+
+    /**
+     * The cheapest copier found for command class when neither copier nor {@link CommandCodec} is registered.
+     */
+    private static final ClassValue<Copier<UndoCommand>> AUTO_COPIERS = new ClassValue<Copier<UndoCommand>>() {
+        @Override
+        protected Copier<UndoCommand> computeValue(Class<?> type) {
+            try {
+                final Constructor<?> ctor = type.getDeclaredConstructor(type);
+                ctor.setAccessible(true);
+                return cmd -> (UndoCommand) ctor.newInstance(cmd);
+            } catch (NoSuchMethodException | RuntimeException e) {
+                // No accessible copy constructor, look further.
+            }
+            if (Cloneable.class.isAssignableFrom(type)) {
+                return UndoCommand::cloneShallow;
+            }
+            return SERIAL_COPIER;
+        }
+    };
+
+    /**
+     * Constructs an empty undo stack. The stack will initially be in the clean state.
+     * If group is not a null the stack is automatically added to the group.
+     *
+     * @param subj  for whom this stack was made. Can be null if no way to make it serializable. Required.
+     * @param group possible group for this {@link UndoStack}.
+     */
+    public UndoStack(Object subj, UndoGroup group) {
+        if (subj == null) {
+            throw new NullPointerException("subj");
+        } else {
+            this.subj = subj;
+            if (null != group) {
+                group.add(this);
+            }
+
+        }
+    }
+
+    /**
+     * @return List of local contexts.
+     */
+    public Map<String, Object> getLocalContexts() {
+        if (localContexts == null) {
+            localContexts = new HashMap<>();
+        }
+        return localContexts;
+    }
+
+    /**
+     * Clears the command stack by deleting all commands on it, and returns the stack to the clean state.
+     * <p>Commands are not undone or redone; the state of the edited object remains  unchanged.
+     * <p>This function is usually used when the contents of the document are abandoned.
+     */
+    public void clear() {
+        if (commands == null || commands.isEmpty()) {
+            return;
+        }
+
+        boolean wasClean = isClean();
+        for (UndoCommand cmd : commands) {
+            cmd.children = null;
+        }
+        commands.clear();
+        if (null != journal) {
+            journal.clear();
+        }
+        idx = 0;
+        cleanIdx = 0;
+        coldEnd = 0;
+        evicted = 0;
+        if (null != checkpoints) {
+            checkpoints.clear();
+            checkpointsSize = 0;
+        }
+        if (null != pagedIn) {
+            pagedIn.clear();
+        }
+        if (null != spillFile) {
+            spillFile.clear();
+        }
+
+        if (isWatchedAll()) {
+            watcher.indexChanged(0);
+            watcher.canUndoChanged(false);
+            watcher.undoTextChanged("");
+            watcher.canRedoChanged(false);
+            watcher.redoTextChanged("");
+            if (!wasClean) {
+                watcher.cleanChanged(true);
+            }
+        } else {
+            publishState();
+        }
+    }
+
+    /**
+     * Pushes cmd on the stack or merges it with the most recently executed command.
+     * In either case, executes cmd by calling its {@link UndoCommand#redo} function.
+     * <p>If cmd's id is not {@link UndoCommand#NO_MERGING}, and if the id is the same
+     * as that of the most recently executed command, UndoStack will attempt to merge the two
+     * commands by calling {@link UndoCommand#mergeWith} on the most recently executed
+     * command. If {@link UndoCommand#mergeWith} returns true, cmd is deleted.
+     * <p>{@link RefCmd} and its primitive variants are merged this way if {@link #setPropertyMergeWindow} is set.
+     * <p>In all other cases cmd is simply pushed on the stack.
+     * <p>If commands were undone before cmd was pushed, the current command and
+     * all commands above it are deleted. Hence cmd always ends up being the top-most on the stack.
+     * <p>Once a command is pushed, the stack takes ownership of it.
+     * There are no getters to return the command, since modifying it after it has
+     * been executed will almost always lead to corruption of the document's state.
+     * <p>The command is copied via {@link #clone} only while a macro is recorded (see {@link #beginMacro}),
+     * so outside of macro pushing does not pay for serialization.
+     *
+     * @param cmd new command to execute. Required.
+     */
+    public void push(UndoCommand cmd) throws Exception {
+        push(cmd, canMergeProperties());
+    }
+
+    /**
+     * Does the same as {@link #push(UndoCommand)}; used directly by {@link UndoJournal} to repeat
+     * the merging of property commands on replay.
+     *
+     * @param cmd             new command to execute. Required.
+     * @param mergeProperties true if cmd may be merged by {@link PropertyCmd#mergeWith}.
+     */
+    void push(UndoCommand cmd, boolean mergeProperties) throws Exception {
+
+        if (cmd == null) {
+            throw new NullPointerException("cmd");
+        } else if (!suspend) {
+
+            // Command is recorded for the journal as it is before redo(), but written there
+            // only when it is applied.
+            byte[] recorded = null != journal ? CommandStreams.toJournalBytes(cmd) : null;
+
+            boolean onMacro = null != macroCmd;
+
+            // Copy is recorded into the macro only, so take it while recording and never otherwise.
+            // It is taken before redo() because redo() may change command's state.
+            UndoCommand copy = onMacro ? clone(cmd) : null;
+
+            checkpoint(idx);
+            cmd.trimChildren();
+            cmd.redo();
+
+            if (null != journal) {
+                journal.push(idx, recorded, mergeProperties);
+            }
+
+            if (commands == null) {
+                commands = new RingList<>();
+            }
+
+            UndoCommand cur = idx > 0 ? cmdAt(idx - 1) : null;
+
+            unpage(idx, commands.size());
+            commands.truncate(idx);
+            coldEnd = Math.min(coldEnd, idx);
+            dropCheckpoints(idx);
+
+            if (cleanIdx > idx) {
+                cleanIdx = -1;
+            }
+
+            boolean canMerge = cur != null
+                    && cur.id() != -1
+                    && cur.id() == cmd.id()
+                    && onMacro || idx != cleanIdx;
+
+            // Property commands have no merge id: they are merged within the merge window
+            // (see canMergeProperties), and never across the clean state.
+            this.mergeProperties = mergeProperties && !onMacro;
+            boolean canMergeProperty = this.mergeProperties && cur instanceof PropertyCmd && idx != cleanIdx;
+
+            if ((canMerge || canMergeProperty) && cur != null && cur.mergeWith(cmd)) {
+                dropCheckpoints(idx - 1);
+                if (null != sizeEstimator) {
+                    commands.setWeight(idx - 1, sizeEstimator.estimate(cur));
+                }
+                if (!onMacro) {
+                    fireMerged();
+                    pushed();
+                }
+            } else {
+                if (onMacro) {
+                    if (null != copy) {
+                        macroCmd.addChild(copy);
+                    } else {
+                        dropMacro();
+                    }
+
+                    cur.addChild(cmd);
+                    if (null == macroCmd) {
+                        // The macro is dropped, so nothing is added to the command any more.
+                        cur.trimChildren();
+                    }
+                    if (null != sizeEstimator) {
+                        commands.setWeight(idx - 1, commands.weight(idx - 1) + sizeEstimator.estimate(cmd));
+                    }
+
+                } else {
+                    // And last actions
+                    commands.add(cmd);
+                    if (null != sizeEstimator) {
+                        commands.setWeight(commands.size() - 1, sizeEstimator.estimate(cmd));
+                    }
+                    checkUndoLimit();
+                    spillCold();
+                    setIndex(idx + 1, false);
+                    pushed();
+                }
+            }
+        }
+    }
+
+    /**
+     * Pushes commands one by one as {@link #push} does, but as a single batch: the undone commands
+     * are deleted once, the limits are checked once and the watcher is notified once at the end.
+     * <p>Every command is merged with the previous one, whether it is in the batch or not, by the same rules
+     * as in {@link #push}.
+     * <p>While a macro is recorded, commands are just pushed one by one.
+     * <p>If redo() of some command throws, the commands before it stay pushed (and journaled),
+     * and the exception is passed on.
+     *
+     * @param cmds new commands to execute in order. Required, as well as every command.
+     */
+    public void pushAll(Collection<? extends UndoCommand> cmds) throws Exception {
+        pushAll(cmds, canMergeProperties());
+    }
+
+    /**
+     * Does the same as {@link #pushAll(Collection)}; used directly by {@link UndoJournal} to repeat
+     * the merging of property commands on replay.
+     *
+     * @param cmds            new commands to execute in order. Required, as well as every command.
+     * @param mergeProperties true if the first command may be merged by {@link PropertyCmd#mergeWith}.
+     *                        The rest are merged if the merging is on.
+     */
+    void pushAll(Collection<? extends UndoCommand> cmds, boolean mergeProperties) throws Exception {
+
+        if (cmds == null) {
+            throw new NullPointerException("cmds");
+        } else if (null != macroCmd) {
+            for (UndoCommand cmd : cmds) {
+                push(cmd);
+            }
+        } else if (!suspend && !cmds.isEmpty()) {
+
+            // Commands are recorded for the journal as they are before redo(), but written there
+            // only when they are applied.
+            List<byte[]> recorded = null != journal ? new ArrayList<>(cmds.size()) : null;
+            for (UndoCommand cmd : cmds) {
+                if (cmd == null) {
+                    throw new NullPointerException("cmd");
+                }
+                if (null != recorded) {
+                    recorded.add(CommandStreams.toJournalBytes(cmd));
+                }
+            }
+
+            if (commands == null) {
+                commands = new RingList<>();
+            }
+
+            final int start = idx;
+            final boolean wasClean = idx == cleanIdx;
+            int top = idx;
+            int applied = 0;
+            this.mergeProperties = mergeProperties;
+            try {
+                for (UndoCommand cmd : cmds) {
+                    checkpoint(top);
+                    cmd.trimChildren();
+                    cmd.redo();
+
+                    if (0 == applied) {
+                        // Undone commands are deleted once the batch has really changed the subject.
+                        unpage(idx, commands.size());
+                        commands.truncate(idx);
+                        coldEnd = Math.min(coldEnd, idx);
+                        dropCheckpoints(idx);
+                        if (cleanIdx > idx) {
+                            cleanIdx = -1;
+                        }
+                    }
+                    ++applied;
+
+                    // Merged by the same ids as in push(), and property commands by the merge window.
+                    UndoCommand cur = top > 0 ? cmdAt(top - 1) : null;
+                    boolean canMerge = cur != null && top != cleanIdx
+                            && (cur.id() != UndoCommand.NO_MERGING && cur.id() == cmd.id()
+                            || this.mergeProperties && cur instanceof PropertyCmd);
+                    if (canMerge && cur.mergeWith(cmd)) {
+                        dropCheckpoints(top - 1);
+                        if (null != sizeEstimator) {
+                            commands.setWeight(top - 1, sizeEstimator.estimate(cur));
+                        }
+                    } else {
+                        commands.add(cmd);
+                        if (null != sizeEstimator) {
+                            commands.setWeight(top, sizeEstimator.estimate(cmd));
+                        }
+                        ++top;
+                    }
+                    this.mergeProperties = propertyMergeWindow > 0;
+                }
+            } finally {
+                // If some redo() throws, the commands applied before it stay pushed.
+                this.mergeProperties = false;
+                if (applied > 0) {
+                    if (null != journal) {
+                        journal.pushAll(start, recorded.subList(0, applied), mergeProperties);
+                    }
+                    if (top == idx) {
+                        fireMerged();
+                    } else {
+                        // idx may go below zero here, if the batch itself exceeds the limits.
+                        final int added = top - idx;
+                        checkUndoLimit();
+                        spillCold();
+                        setIndex(idx + added, false, wasClean);
+                    }
+                    pushed();
+                }
+            }
+        }
+    }
+
+    /**
+     * Marks the stack as clean and emits {@link UndoWatcher#cleanChanged} if the stack was not already clean.
+     * <p>Whenever the stack returns to this state through the use of undo/redo commands,
+     * it emits the signal {@link UndoWatcher#cleanChanged}.
+     * This signal is also emitted when the stack leaves the clean state.
+     */
+    public void setClean() {
+        if (null != macroCmd) {
+            System.err.println("UndoStack.setClean(): cannot set clean in the middle of a macro");
+            return;
+        }
+        if (null != journal) {
+            journal.clean(idx);
+        }
+        setIndex(idx, true);
+    }
+
+    /**
+     * @return If the stack is in the clean state, returns true; otherwise returns false.
+     */
+    public boolean isClean() {
+        if (null != macroCmd) {
+            return false;
+        }
+        return cleanIdx == idx;
+    }
+
+    /**
+     * @return True if a macro is recorded now.
+     */
+    boolean isInMacro() {
+        return null != macroCmd;
+    }
+
+    /**
+     * @return Returns the clean index. This is the index at which {@link #setClean} was called.
+     * <p>A stack may not have a clean index. This happens if a document is saved, some commands are undone,
+     * then a new command is pushed. Since {@link #push} deletes all the undone commands before pushing
+     * the new command, the stack can't return to the clean state again.
+     * In this case, this function returns -1.
+     */
+    public int getCleanIdx() {
+        return cleanIdx;
+    }
+
+    /**
+     * Undoes the command below the current command by calling {@link UndoCommand#undo}.
+     * Decrements the current command index.
+     * <p>If the stack is empty, or if the bottom command on the stack has already been undone,
+     * this function does nothing.
+     */
+    public void undo() {
+        if (commands == null || idx == 0) {
+            return;
+        }
+
+        if (null != macroCmd) {
+            System.err.println("UndoStack.undo(): cannot undo in the middle of a macro");
+            return;
+        }
+
+        try {
+            suspend = true;
+            int idx = this.idx - 1;
+            cmdAt(idx).undo();
+            setIndex(idx, false);
+        } finally {
+            suspend = false;
+        }
+
+    }
+
+    /**
+     * Redoes the current command by calling {@link UndoCommand#redo}. Increments the current command index.
+     * <p>If the stack is empty, or if the top command on the stack has already been redone,
+     * this function does nothing.
+     */
+    public void redo() {
+        if (macroCmd != null) {
+            System.err.println("UndoStack.redo(): cannot redo in the middle of a macro");
+            return;
+        }
+
+        if (commands == null || idx == commands.size()) {
+            return;
+        }
+
+        try {
+            suspend = true;
+            cmdAt(idx).redo();
+            setIndex(idx + 1, false);
+        } finally {
+            suspend = false;
+        }
+    }
+
+    /**
+     * @return Returns the number of commands on the stack.
+     */
+    public int count() {
+        return commands == null ? 0 : commands.size();
+    }
+
+    /**
+     * @return Returns the index of the current command.
+     * This is the command that will be executed on the next call to {@link #redo}.
+     * It is not always the top-most command on the stack, since a number of commands may have been undone.
+     */
+    public int getIdx() {
+        return idx;
+    }
+
+    /**
+     * Repeatedly calls {@link #undo} or {@link #redo} until the current command index reaches idx.
+     * This function can be used to roll the state of the document forwards of backwards.
+     * <p>If checkpoints are on (see {@link #setCheckpoints}) and one of them is closer to idx than
+     * the current index, the subject is restored from it first, and only the rest of commands are called.
+     * <p>Consecutive {@link RefCmd}s (and its primitive variants like {@link IntRefCmd}) for the same property
+     * are not called one by one: only the final value
+     * of the property is set. Other commands are called in order.
+     * <p>{@link UndoWatcher#indexChanged} is emitted only once.
+     *
+     * @param idx index to achieve.
+     */
+    public void setIndex(int idx) {
+
+        if (null != macroCmd) {
+            System.err.println("UndoStack.setIndex(): cannot set index in the middle of a macro");
+            return;
+        }
+
+        if (commands == null) {
+            return;
+        }
+
+        if (idx < 0) {
+            idx = 0;
+        } else if (idx > commands.size()) {
+            idx = commands.size();
+        }
+
+        int i = this.idx;
+        if (null != checkpoints && !checkpoints.isEmpty()) {
+            long target = evicted + idx;
+            Map.Entry<Long, Object> below = checkpoints.floorEntry(target);
+            Map.Entry<Long, Object> above = checkpoints.ceilingEntry(target);
+            Map.Entry<Long, Object> nearest = null == below
+                    || (null != above && above.getKey() - target < target - below.getKey()) ? above : below;
+            if (Math.abs(nearest.getKey() - target) < Math.abs(i - idx)) {
+                snapshotter.restore(subj, nearest.getValue());
+                i = (int) (nearest.getKey() - evicted);
+            }
+        }
+        // Runs of property commands are applied by their net effect: the last visited command for every property.
+        // Going back the last visited one is the earliest, so its old value is the one to set.
+        boolean forward = i < idx;
+        Map<Object, PropertyCmd> net = new LinkedHashMap<>();
+        while (i != idx) {
+            UndoCommand cmd = forward ? cmdAt(i++) : cmdAt(--i);
+            if (cmd instanceof PropertyCmd && cmd.childCount() == 0) {
+                PropertyCmd ref = (PropertyCmd) cmd;
+                net.remove(ref.property());
+                net.put(ref.property(), ref);
+            } else {
+                applyNet(net, forward);
+                if (forward) {
+                    cmd.redo();
+                } else {
+                    cmd.undo();
+                }
+                checkpoint(i);
+            }
+        }
+        applyNet(net, forward);
+        checkpoint(i);
+
+        setIndex(idx, false);
+    }
+
+    /**
+     * @return Returns true if there is a command available for undo; otherwise returns false.
+     * <p>This function returns false if the stack is empty, or if the bottom command on the stack
+     * has already been undone.
+     * <p>Synonymous with {@link #getIdx()} == 0.
+     */
+    public boolean canUndo() {
+        if (null != macroCmd) {
+            return false;
+        }
+        return idx > 0;
+    }
+
+    /**
+     * @return Returns true if there is a command available for redo; otherwise returns false.
+     * <p>This function returns false if the stack is empty or if the top command on the stack
+     * has already been redone.
+     * <p>Synonymous with {@link #getIdx()}  == {@link #count()}).
+     */
+    public boolean canRedo() {
+        if (null != macroCmd) {
+            return false;
+        }
+        return commands != null && idx < commands.size();
+    }
+
+    /**
+     * @return The caption of the command which will be undone in the next call to {@link #undo()}.
+     */
+    public String undoCaption() {
+        UndoCommand cmd = nextUndo();
+        return null != cmd ? cmd.getCaption() : "";
+    }
+
+    /**
+     * @return The caption of the command which will be redone in the next call to {@link #redo()}.
+     */
+    public String redoCaption() {
+        UndoCommand cmd = nextRedo();
+        return null != cmd ? cmd.getCaption() : "";
+    }
+
+    /**
+     * @return The command (or its stub) which will be undone next; null if there is none or a macro is recorded.
+     */
+    UndoCommand nextUndo() {
+        return null == macroCmd && commands != null && idx > 0 ? commands.get(idx - 1) : null;
+    }
+
+    /**
+     * @return The command (or its stub) which will be redone next; null if there is none or a macro is recorded.
+     */
+    UndoCommand nextRedo() {
+        return null == macroCmd && commands != null && idx < commands.size() ? commands.get(idx) : null;
+    }
+
+    /**
+     * Begins composition of a macro command with the given description.
+     * <p>An empty command described by the specified caption is pushed on the stack.
+     * Any subsequent commands pushed on the stack will be appended to the empty command's children
+     * until {@link #endMacro()} is called.
+     * <p>Calls to beginMacro() and {@link #endMacro()} may be nested, but every call to beginMacro()
+     * must have a matching call to {@link #endMacro()}.
+     * <p>While a macro is composed, the stack is disabled. This means that:
+     * <ul>
+     * <li>{@link UndoWatcher#indexChanged} and {@link UndoWatcher#cleanChanged} are not emitted,
+     * <li>{@link #canUndo()} and {@link #canRedo()} return false,
+     * <li>calling {@link #undo()} or {@link #redo()} has no effect,
+     * <li>the undo/redo actions are disabled
+     * </ul>
+     * <p>The stack becomes enabled and appropriate signals are emitted when {@link #endMacro()} is called
+     * for the outermost macro.
+     *
+     * @param caption description for this macro. Optional.
+     */
+    public void beginMacro(String caption) {
+
+        if (null != macroCmd) {
+            System.err.println("UndoStack.beginMacro(): cannot set new beginMacro in the middle of a macro");
+            return;
+        }
+        if (null != journal) {
+            journal.beginMacro(idx, caption);
+        }
+
+        UndoCommand startMacro = new UndoCommand(this, caption, null);
+
+        try {
+            macroCmd = clone(startMacro);
+        } catch (Exception  e) {
+            System.err.println(e.getLocalizedMessage());
+            endMacro();
+        }
+
+        if (null == commands) {
+            commands = new RingList<>();
+        }
+
+        unpage(idx, commands.size());
+        commands.truncate(idx);
+        coldEnd = Math.min(coldEnd, idx);
+        dropCheckpoints(idx);
+        if (cleanIdx > idx) {
+            cleanIdx = -1;
+        }
+        commands.add(startMacro);
+        checkUndoLimit();
+        setIndex(idx + 1, false);
+
+        if (watcher != null) {
+            watcher.macroChanged(true);
+            if (isWatchedAll()) {
+                watcher.canUndoChanged(false);
+                watcher.undoTextChanged("");
+                watcher.canRedoChanged(false);
+                watcher.redoTextChanged("");
+            } else {
+                publishState();
+            }
+        }
+    }
+
+    /**
+     * Ends composition of a macro command.
+     * <p>If this is the outermost macro in a set nested macros, this function
+     * emits {@link UndoWatcher#indexChanged} once for the entire macro command.
+     */
+    public void endMacro() {
+        if (null == macroCmd) {
+            System.err.println("UndoStack.endMacro(): no matching beginMacro()");
+        }
+        if (null != journal) {
+            journal.endMacro();
+        }
+        if (null != macroCmd) {
+            macroCmd.trimChildren();
+            if (idx > 0) {
+                cmdAt(idx - 1).trimChildren();
+            }
+        }
+        if (null == macros) {
+            macros = new ArrayList<>();
+        }
+        macros.add(macroCmd);
+        macroCmd = null;
+        if (null != watcher) {
+            watcher.macroChanged(false);
+            publishState();
+        }
+    }
+
+    /**
+     * Drops macro creation.
+     */
+    public void dropMacro() {
+        if (null != journal) {
+            journal.dropMacro();
+        }
+        if (null != macroCmd && idx > 0) {
+            cmdAt(idx - 1).trimChildren();
+        }
+        macroCmd = null;
+        if (null != watcher) {
+            watcher.macroChanged(false);
+            publishState();
+        }
+    }
+
+    /**
+     * Returns a reference to the command at idx.
+     * <p>Be aware to modify it because modifying a command, once it has been pushed onto the stack and executed,
+     * almost always causes corruption of the state of the document, if the command is later undone or redone.
+     *
+     * @param idx the index of command has been retrieved.
+     * @return Command or null.
+     */
+    public UndoCommand getCommand(int idx) {
+        if (commands == null || idx < 0 || idx >= commands.size()) {
+            return null;
+        }
+        return cmdAt(idx);
+    }
+
+    /**
+     * Returns the caption of the command at index idx.
+     *
+     * @param idx the index of command's caption has been retrieved.
+     * @return Text or empty string.
+     */
+    public String caption(int idx) {
+        if (commands == null || idx < 0 || idx >= commands.size()) {
+            return "";
+        }
+        return commands.get(idx).getCaption();
+    }
+
+    /**
+     * When the number of commands on a stack exceeds the stack's {@link #undoLimit}, commands are deleted
+     * from the bottom of the stack. The default value is 0, which means that there is no limit.
+     * <p>This property may only be set when the undo stack is empty, since setting it on a non-empty stack
+     * might delete the command at the current index. Calling {@link #setUndoLimit} on a non-empty stack
+     * prints a warning and does nothing.
+     *
+     * @param value new undo limit.
+     */
+    public void setUndoLimit(int value) {
+
+        if (commands != null && commands.size() > 0) {
+            System.err.println("UndoStack.setUndoLimit(): an undo limit can only be set when the stack is empty");
+            return;
+        }
+
+        if (value == undoLimit) {
+            return;
+        }
+        undoLimit = value;
+        checkUndoLimit();
+    }
+
+    /**
+     * @return Undo limit.
+     */
+    public int getUndoLimit() {
+        return undoLimit;
+    }
+
+    /**
+     * When the estimated size of commands on a stack exceeds the stack's {@link #memoryLimit}, commands are deleted
+     * from the bottom of the stack. The top command is never deleted. The default value is 0, which means
+     * that there is no limit.
+     * <p>Sizes are estimated by {@link SizeEstimator} set via {@link #setSizeEstimator};
+     * without estimator the limit has no effect.
+     * <p>Like {@link #setUndoLimit} this property may only be set when the undo stack is empty.
+     *
+     * @param value new memory limit in bytes.
+     */
+    public void setMemoryLimit(long value) {
+
+        if (commands != null && commands.size() > 0) {
+            System.err.println("UndoStack.setMemoryLimit(): a memory limit can only be set when the stack is empty");
+            return;
+        }
+
+        memoryLimit = value;
+    }
+
+    /**
+     * @return Memory limit in bytes.
+     */
+    public long getMemoryLimit() {
+        return memoryLimit;
+    }
+
+    /**
+     * Turns on merging of consecutive {@link RefCmd}s (and its primitive variants like {@link IntRefCmd})
+     * for the same property: the command pushed right after another one is folded into it, and the merged
+     * command keeps the first old value and the latest new value. So dragging a slider makes a single command.
+     * <p>Commands are for the same property if they have the same key, or the same setter's instance
+     * if there is no key. Commands are not merged across undo, redo, macro or the clean state,
+     * as well as if the next command is pushed later than the window after the previous one.
+     *
+     * @param window max time in milliseconds between pushes of merged commands;
+     *               {@link Long#MAX_VALUE} for no limit. The default value is 0, which turns merging off.
+     */
+    public void setPropertyMergeWindow(long window) {
+        if (window < 0) {
+            System.err.println("UndoStack.setPropertyMergeWindow(): window should not be negative");
+            return;
+        }
+        propertyMergeWindow = window;
+    }
+
+    /**
+     * @return Max time in milliseconds between pushes of merged property commands; 0 if merging is off.
+     */
+    public long getPropertyMergeWindow() {
+        return propertyMergeWindow;
+    }
+
+    /**
+     * Sets estimator for {@link #setMemoryLimit}. Sizes of commands already on the stack are estimated at once.
+     * <p>Commands that are not read yet (restored lazily or spilled to the file) keep their sizes estimated
+     * before, if any, and are estimated when they are read.
+     * <p>The estimator is not stored with the stack, so set it again after restore.
+     *
+     * @param estimator estimator of command's size. Setting parameter to null turns memory limit off.
+     */
+    public void setSizeEstimator(SizeEstimator estimator) {
+        sizeEstimator = estimator;
+        if (null != commands) {
+            for (int i = 0; i < commands.size(); ++i) {
+                UndoCommand cmd = commands.get(i);
+                if (cmd instanceof SpilledCmd) {
+                    cmd = ((SpilledCmd) cmd).cmd;
+                }
+                if (null == estimator) {
+                    commands.setWeight(i, 0);
+                } else if (null != cmd && !(cmd instanceof LazyCmd)) {
+                    commands.setWeight(i, estimator.estimate(cmd));
+                }
+            }
+        }
+    }
+
+    /**
+     * @return Estimated size of commands on the stack in bytes. Always 0 without {@link SizeEstimator}.
+     */
+    public long getMemoryUsed() {
+        return null == commands ? 0 : commands.weight();
+    }
+
+    /**
+     * @return Size of the data in the spill file in bytes, including the space freed for reuse.
+     * Always 0 without {@link #setSpillFile}.
+     */
+    public long getSpillFileSize() {
+        return null == spillFile ? 0 : spillFile.size();
+    }
+
+    /**
+     * Turns on spilling of the cold history to the file. Only the top hotWindow commands are kept in memory;
+     * older ones are written to the file and paged back in when {@link #undo}, {@link #setIndex}
+     * or {@link #getCommand} reaches them.
+     * <p>The file is created (or truncated) here and deleted when spilling is turned off. Space of the records
+     * of deleted commands is reused by the next ones.
+     * Commands are written the same way as {@link UndoPacket} writes them, so they should be restorable
+     * in the same way: command reaches the subject via {@link UndoCommand#owner}, the subject itself
+     * or local contexts. Commands whose functions capture other objects are kept in memory.
+     * <p>Spilling is not stored with the stack, so turn it on again after restore if needed.
+     *
+     * @param file      spill file. Setting parameter to null pages all the commands in and turns spilling off.
+     * @param hotWindow count of the top commands kept in memory.
+     * @throws IOException If something goes wrong.
+     */
+    public void setSpillFile(Path file, int hotWindow) throws IOException {
+        if (null != spillFile) {
+            // Nothing should be spilled back while paging all in.
+            this.hotWindow = Integer.MAX_VALUE;
+            if (null != commands) {
+                for (int i = 0; i < commands.size(); ++i) {
+                    commands.set(i, cmdAt(i));
+                }
+            }
+            pagedIn = null;
+            coldEnd = 0;
+            spillFile.close();
+            spillFile = null;
+        }
+        if (null != file) {
+            this.hotWindow = Math.max(0, hotWindow);
+            this.pagedIn = new ArrayDeque<>();
+            this.spillFile = new SpillFile(file);
+            spillCold();
+        }
+    }
+
+    /**
+     * Turns on checkpoints for {@link #setIndex(int)}: every interval commands the subject's snapshot
+     * is taken, so long jumps restore the nearest snapshot and call only the rest of commands.
+     * <p>When the total size of snapshots (see {@link Snapshotter#size}) exceeds memoryLimit, the interval
+     * is doubled and the snapshots that do not fit it are dropped, so they always cover the whole history
+     * evenly. The last snapshot stays even if it alone exceeds the limit.
+     * <p>Checkpoints are not stored with the stack, so turn them on again after restore if needed.
+     *
+     * @param snapshotter maker of subject's snapshots. Setting parameter to null turns checkpoints off.
+     * @param interval    count of commands between checkpoints. Should be positive.
+     * @param memoryLimit maximum total size of snapshots kept at the same time. Should be positive.
+     */
+    public void setCheckpoints(Snapshotter snapshotter, int interval, long memoryLimit) {
+        if (null != snapshotter && (interval <= 0 || memoryLimit <= 0)) {
+            throw new IllegalArgumentException("interval and memoryLimit should be positive");
+        }
+        this.snapshotter = snapshotter;
+        this.checkpointStep = interval;
+        this.checkpointsLimit = memoryLimit;
+        this.checkpointsSize = 0;
+        this.checkpoints = null == snapshotter ? null : new TreeMap<>();
+        checkpoint(idx);
+    }
+
+    /**
+     * @return True if this UndoStack not in group or active in group, otherwise false.
+     */
+    public boolean isActive() {
+        return group == null || group.getActive() == this;
+    }
+
+    /**
+     * An application often has multiple undo stacks, one for each opened document. The active stack is
+     * the one associated with the currently active document. If the stack belongs to a {@link UndoGroup},
+     * calls to {@link UndoGroup#undo()} or {@link UndoGroup#redo()} will be forwarded to this stack
+     * when it is active.
+     * If the stack does not belong to a {@link UndoGroup}, making it active has no effect.
+     * <p>It is the programmer's responsibility to specify which stack is active by calling setActive(),
+     * usually when the associated document window receives focus.
+     *
+     * @param active setting this UndoStack active in its group if it exists.
+     */
+    public void setActive(boolean active) {
+        if (group != null) {
+            if (active) {
+                group.setActive(this);
+            } else if (group.getActive() == this) {
+                group.setActive(null);
+            }
+        }
+    }
+
+    /**
+     * @return Subject via calling descendants real object.
+     */
+    public Object getSubj() {
+        return subj;
+    }
+
+    /**
+     * Reset subj. Used in {@link UndoPacket}.
+     * <p><b>Do not use it!</b>
+     *
+     * @param value new subject. Required.
+     */
+    public void setSubj(Object value) {
+        if (null == value) {
+            throw new NullPointerException("value");
+        } else {
+            subj = value;
+        }
+    }
+
+    /**
+     * @return List of macros.
+     */
+    public List<UndoCommand> getMacros() {
+        return macros;
+    }
+
+    /**
+     * @return The subscribed watcher if it exists or null.
+     */
+    public UndoWatcher getWatcher() {
+        return watcher;
+    }
+
+    /**
+     * Sets the watcher for signals emitted.
+     *
+     * @param watcher subscriber for signals. Setting parameter to null unsubscribe it.
+     */
+    public void setWatcher(UndoWatcher watcher) {
+        setWatcher(watcher, WatchMode.ALL);
+    }
+
+    /**
+     * Sets the watcher for signals emitted in the given mode.
+     * <p>In modes other than {@link WatchMode#ALL} the stack remembers the state it fired last,
+     * so the watcher is told only about real changes. The current state is taken as the fired one.
+     *
+     * @param watcher subscriber for signals. Setting parameter to null unsubscribe it.
+     * @param mode    mode of notifying. Required.
+     */
+    public void setWatcher(UndoWatcher watcher, WatchMode mode) {
+        if (null == mode) {
+            throw new NullPointerException("mode");
+        }
+        this.watcher = watcher;
+        this.watchMode = mode;
+        this.published = null == watcher || WatchMode.ALL == mode ? null : new UndoState(this);
+    }
+
+    /**
+     * @return Mode of notifying the watcher.
+     */
+    public WatchMode getWatchMode() {
+        return null == watchMode ? WatchMode.ALL : watchMode;
+    }
+
+    /**
+     * Registers copier for the commands of exactly this class. It is used in {@link #clone}
+     * instead of any other way of copying.
+     *
+     * @param type   command's class. Required.
+     * @param copier copier for the class. Setting parameter to null unregisters copier.
+     * @param <C>    the type of the command.
+     */
+    public <C extends UndoCommand> void setCopier(Class<C> type, Copier<C> copier) {
+        if (null == type) {
+            throw new NullPointerException("type");
+        }
+        if (null == copier) {
+            if (null != copiers) {
+                copiers.remove(type);
+            }
+        } else {
+            if (null == copiers) {
+                copiers = new HashMap<>();
+            }
+            copiers.put(type, copier);
+        }
+    }
+
+    /**
+     * Clones command. Use it for clone macro only!
+     * <p>Command is copied by the cheapest way available for its class:
+     * <ul>
+     * <li>copier registered via {@link #setCopier},
+     * <li>{@link CommandCodec}, e.g. generated for the class marked with {@link GenerateCodec},
+     * <li>copy constructor, i.e. constructor with the command's class as the only parameter,
+     * <li>{@link Object#clone} if the command implements {@link Cloneable},
+     * <li>serialization otherwise.
+     * </ul>
+     * <p>The command's owner is not copied: the clone refers to the same stack, so the cost of cloning
+     * does not depend on the size of the owner's history.
+     *
+     * @param cmd macro for clone.
+     * @return Cloned command.
+     * @throws Exception If something goes wrong.
+     */
+    @SuppressWarnings("unchecked")
+    public UndoCommand clone(UndoCommand cmd) throws Exception {
+
+        if (null == cmd) {
+            throw new NullPointerException("cmd");
+        }
+
+        Copier<UndoCommand> copier = null != copiers ? (Copier<UndoCommand>) copiers.get(cmd.getClass()) : null;
+        if (null == copier) {
+            // Codecs may be registered at any time, so they are not cached with the rest.
+            copier = Serializers.copier(cmd.getClass());
+        }
+        if (null == copier) {
+            copier = AUTO_COPIERS.get(cmd.getClass());
+        }
+
+        UndoCommand copy = copier.copy(cmd);
+        if (copier != SERIAL_COPIER) {
+            copy.owner = cmd.owner;
+            copy.children = null;
+            int count = cmd.childCount();
+            if (count > 0) {
+                copy.children = new UndoCommand[count];
+                for (int i = 0; i < count; ++i) {
+                    copy.children[i] = clone(cmd.children[i]);
+                }
+            }
+        }
+        return copy;
+    }
+
+    /**
+     * We use <b>getSubj() == stack.getSubj()</b> instead of <b>Objects.equals(getSubj(), stack.getSubj())</b>
+     * because semantic of <b>2 stack differs when they have different addresses in memory.</b>
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        UndoStack stack = (UndoStack) o;
+
+        return getIdx() == stack.getIdx() &&
+                getCleanIdx() == stack.getCleanIdx() &&
+                getUndoLimit() == stack.getUndoLimit() &&
+                suspend == stack.suspend &&
+                getSubj() == stack.getSubj() &&
+                Objects.equals(commands, stack.commands) &&
+                Objects.equals(macroCmd, stack.macroCmd);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(getSubj());
+    }
+
+    /**
+     * Returns command at index, paging it in if it is spilled.
+     *
+     * @param i index of command.
+     * @return Command.
+     */
+    private UndoCommand cmdAt(int i) {
+        UndoCommand cmd = commands.get(i);
+        if (cmd instanceof LazyCmd) {
+            cmd = materialize((LazyCmd) cmd);
+            commands.set(i, cmd);
+            weigh(i, cmd);
+        } else if (cmd instanceof SpilledCmd) {
+            boolean read = null == ((SpilledCmd) cmd).cmd;
+            cmd = pageIn((SpilledCmd) cmd);
+            if (read) {
+                weigh(i, cmd);
+            }
+        }
+        return cmd;
+    }
+
+    /**
+     * Estimates size of the command just read, if it has none yet. See {@link #setSizeEstimator}.
+     *
+     * @param i   index of command.
+     * @param cmd the command read from its stub. Required.
+     */
+    private void weigh(int i, UndoCommand cmd) {
+        if (null != sizeEstimator && 0 == commands.weight(i)) {
+            commands.setWeight(i, sizeEstimator.estimate(cmd));
+        }
+    }
+
+    /**
+     * Deserializes the command the stub stands for.
+     *
+     * @param stub stub of the command. Required.
+     * @return Command.
+     */
+    private UndoCommand materialize(LazyCmd stub) {
+        try {
+            return CommandStreams.fromBytes(stub.bytes, this);
+        } catch (IOException | ClassNotFoundException e) {
+            throw new IllegalStateException("cannot restore command: " + e.getLocalizedMessage(), e);
+        }
+    }
+
+    /**
+     * Deserializes all the commands restored lazily. See {@link UndoPacket.Builder#lazy}.
+     */
+    void materializeAll() {
+        if (null != commands) {
+            for (int i = 0; i < commands.size(); ++i) {
+                if (commands.get(i) instanceof LazyCmd) {
+                    UndoCommand cmd = materialize((LazyCmd) commands.get(i));
+                    commands.set(i, cmd);
+                    weigh(i, cmd);
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the stack. If {@link #writeLazy} is set, commands are written as {@link LazyCmd} stubs.
+     */
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        if (!writeLazy || null == commands) {
+            out.defaultWriteObject();
+            return;
+        }
+        RingList<UndoCommand> real = commands;
+        RingList<UndoCommand> stubs = new RingList<>();
+        for (int i = 0; i < real.size(); ++i) {
+            UndoCommand cmd = real.get(i);
+            if (cmd instanceof LazyCmd) {
+                stubs.add(cmd);
+            } else if (cmd instanceof SpilledCmd && null == ((SpilledCmd) cmd).cmd) {
+                SpilledCmd stub = (SpilledCmd) cmd;
+                stubs.add(new LazyCmd(stub, spillFile.read(stub.pos, stub.len)));
+            } else {
+                cmd = cmdAt(i);
+                stubs.add(new LazyCmd(cmd, CommandStreams.toBytes(cmd)));
+            }
+        }
+        commands = stubs;
+        try {
+            out.defaultWriteObject();
+        } finally {
+            commands = real;
+        }
+    }
+
+    /**
+     * Reads the stack field by field, since {@link #commands} was stored as ArrayList before it became
+     * {@link RingList}. Old packets are converted here.
+     */
+    @SuppressWarnings("unchecked")
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        idx = fields.get("idx", 0);
+        cleanIdx = fields.get("cleanIdx", 0);
+        Object list = fields.get("commands", null);
+        if (list instanceof RingList) {
+            commands = (RingList<UndoCommand>) list;
+        } else if (null != list) {
+            commands = new RingList<>();
+            commands.addAll((List<UndoCommand>) list);
+        }
+        macroCmd = (UndoCommand) fields.get("macroCmd", null);
+        macros = (List<UndoCommand>) fields.get("macros", null);
+        undoLimit = fields.get("undoLimit", 0);
+        memoryLimit = fields.get("memoryLimit", 0L);
+        propertyMergeWindow = fields.get("propertyMergeWindow", 0L);
+        suspend = fields.get("suspend", false);
+        // Restored stack has no last push to merge with.
+        pushIdx = -1;
+    }
+
+    /**
+     * Reads spilled command from the file if it is not paged in yet.
+     * <p>Spills back the earliest paged in commands when there are more than {@link #hotWindow} of them.
+     * Only the commands changed since they were paged in are written to the file again.
+     *
+     * @param stub stub of the command. Required.
+     * @return Command.
+     */
+    UndoCommand pageIn(SpilledCmd stub) {
+        if (null != stub.cmd) {
+            return stub.cmd;
+        }
+        if (null == spillFile) {
+            throw new IllegalStateException("spill file is closed");
+        }
+        try {
+            stub.bytes = spillFile.read(stub.pos, stub.len);
+            stub.cmd = CommandStreams.fromBytes(stub.bytes, this);
+            pagedIn.add(stub);
+            while (pagedIn.size() > Math.max(1, hotWindow)) {
+                SpilledCmd old = pagedIn.poll();
+                byte[] bytes;
+                try {
+                    bytes = CommandStreams.toJournalBytes(old.cmd);
+                } catch (NotSerializableException e) {
+                    // The command has captured an object since, so it stays in memory.
+                    old.bytes = null;
+                    continue;
+                }
+                if (!Arrays.equals(bytes, old.bytes)) {
+                    spillFile.free(old.pos, old.len);
+                    old.pos = spillFile.append(bytes);
+                    old.len = bytes.length;
+                }
+                old.cmd = null;
+                old.bytes = null;
+            }
+            return stub.cmd;
+        } catch (IOException | ClassNotFoundException e) {
+            throw new IllegalStateException("cannot page in command: " + e.getLocalizedMessage(), e);
+        }
+    }
+
+    /**
+     * Returns the record of spilled command without paging it in.
+     *
+     * @param stub stub of the command that is not paged in. Required.
+     * @return Command in the form of {@link CommandStreams#toBytes}.
+     */
+    byte[] spilledBytes(SpilledCmd stub) {
+        if (null == spillFile) {
+            throw new IllegalStateException("spill file is closed");
+        }
+        try {
+            return spillFile.read(stub.pos, stub.len);
+        } catch (IOException e) {
+            throw new IllegalStateException("cannot read command: " + e.getLocalizedMessage(), e);
+        }
+    }
+
+    /**
+     * Forgets paged in commands among the ones that are removed from the list and frees their records
+     * in the spill file. Called before the commands are removed, while {@link #coldEnd} still covers them.
+     *
+     * @param from index of the first removed command.
+     * @param to   index after the last removed command.
+     */
+    private void unpage(int from, int to) {
+        if (null == spillFile) {
+            return;
+        }
+        for (int i = Math.max(0, from); i < Math.min(to, coldEnd); ++i) {
+            UndoCommand cmd = commands.get(i);
+            if (cmd instanceof SpilledCmd) {
+                SpilledCmd stub = (SpilledCmd) cmd;
+                if (null != stub.cmd) {
+                    pagedIn.removeIf(paged -> paged == stub);
+                    stub.cmd = null;
+                    stub.bytes = null;
+                }
+                spillFile.free(stub.pos, stub.len);
+            }
+        }
+    }
+
+    /**
+     * Writes commands below the hot window to the spill file.
+     * <p>Commands that capture objects other than the subject (see {@link CommandStreams#toJournalBytes})
+     * are not spilled, since they would be paged in acting on copies of the objects.
+     *
+     * @throws IOException If something goes wrong.
+     */
+    private void spillCold() throws IOException {
+        if (null == spillFile || null == commands || null != macroCmd) {
+            return;
+        }
+        for (int end = commands.size() - hotWindow; coldEnd < end; ++coldEnd) {
+            UndoCommand cmd = commands.get(coldEnd);
+            if (!(cmd instanceof SpilledCmd)) {
+                // Not restored command is already in the form to spill.
+                byte[] bytes;
+                try {
+                    bytes = cmd instanceof LazyCmd ? ((LazyCmd) cmd).bytes : CommandStreams.toJournalBytes(cmd);
+                } catch (NotSerializableException e) {
+                    // The command captures an object that would be paged in as a copy, so it stays in memory.
+                    continue;
+                }
+                commands.set(coldEnd, new SpilledCmd(cmd, spillFile.append(bytes), bytes.length));
+            }
+        }
+    }
+
+    /**
+     * Applies and clears the net effect of property commands collected by {@link #setIndex(int)}.
+     *
+     * @param net     the last visited command for every property.
+     * @param forward true to set new values; false to set old ones.
+     */
+    private static void applyNet(Map<Object, PropertyCmd> net, boolean forward) {
+        for (PropertyCmd ref : net.values()) {
+            if (forward) {
+                ref.doRedo();
+            } else {
+                ref.doUndo();
+            }
+        }
+        net.clear();
+    }
+
+    /**
+     * Takes subject's snapshot if checkpoints are on and index is at the checkpoint's position.
+     *
+     * @param index index of the subject's current state.
+     */
+    private void checkpoint(int index) {
+        if (null == snapshotter || null != macroCmd) {
+            return;
+        }
+        long pos = evicted + index;
+        if (pos % checkpointStep != 0 || checkpoints.containsKey(pos)) {
+            return;
+        }
+        Object snapshot = snapshotter.take(subj);
+        checkpoints.put(pos, snapshot);
+        checkpointsSize += snapshotter.size(snapshot);
+        while (checkpointsSize > checkpointsLimit && checkpoints.size() > 1) {
+            checkpointStep *= 2;
+            Iterator<Map.Entry<Long, Object>> it = checkpoints.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<Long, Object> e = it.next();
+                if (e.getKey() % checkpointStep != 0) {
+                    checkpointsSize -= snapshotter.size(e.getValue());
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Drops checkpoints of the states above index, as those states are about to change.
+     *
+     * @param index index of the last state that stays.
+     */
+    private void dropCheckpoints(int index) {
+        if (null != checkpoints) {
+            dropCheckpoints(checkpoints.tailMap(evicted + index, false));
+        }
+    }
+
+    /**
+     * Drops checkpoints of the view.
+     *
+     * @param view part of {@link #checkpoints}.
+     */
+    private void dropCheckpoints(SortedMap<Long, Object> view) {
+        for (Object snapshot : view.values()) {
+            checkpointsSize -= snapshotter.size(snapshot);
+        }
+        view.clear();
+    }
+
+    /**
+     * Sets the current index to idx, emitting appropriate signals. If clean is true,
+     * makes idx the clean index as well.
+     *
+     * @param index index to achieve.
+     * @param clean flag to set/unset clean state.
+     */
+    private void setIndex(int index, boolean clean) {
+        setIndex(index, clean, idx == cleanIdx);
+    }
+
+    /**
+     * Does the same as {@link #setIndex(int, boolean)} for the case when the stack was changed before and
+     * its clean state can't be found from the current index anymore.
+     *
+     * @param index    index to achieve.
+     * @param clean    flag to set/unset clean state.
+     * @param wasClean true if the stack was in clean state before the change.
+     */
+    private void setIndex(int index, boolean clean, boolean wasClean) {
+
+        final boolean watchedAll = isWatchedAll();
+
+        if (this.idx != index) {
+            this.idx = index;
+            pushIdx = -1;
+            checkpoint(idx);
+            if (watchedAll) {
+                watcher.indexChanged(idx);
+                watcher.canUndoChanged(canUndo());
+                watcher.undoTextChanged(undoCaption());
+                watcher.canRedoChanged(canRedo());
+                watcher.redoTextChanged(redoCaption());
+            }
+        }
+
+        if (clean) {
+            cleanIdx = idx;
+        }
+
+        final boolean isClean = idx == cleanIdx;
+        if (isClean != wasClean && watchedAll) {
+            watcher.cleanChanged(isClean);
+        }
+        if (!watchedAll) {
+            publishState();
+        }
+    }
+
+    /**
+     * @return True if the command pushed now may be merged with the last pushed one by {@link PropertyCmd#mergeWith}.
+     */
+    private boolean canMergeProperties() {
+        return propertyMergeWindow > 0 && null == macroCmd && idx == pushIdx
+                && (System.nanoTime() - pushTime) / 1_000_000 <= propertyMergeWindow;
+    }
+
+    /**
+     * Remembers the last push for {@link #canMergeProperties}.
+     */
+    private void pushed() {
+        pushIdx = idx;
+        pushTime = System.nanoTime();
+        mergeProperties = false;
+    }
+
+    /**
+     * Notifies the watcher after the current command was merged with the new one.
+     */
+    private void fireMerged() {
+        if (isWatchedAll()) {
+            watcher.indexChanged(idx);
+            watcher.canUndoChanged(canUndo());
+            watcher.undoTextChanged(undoCaption());
+            watcher.canRedoChanged(canRedo());
+            watcher.redoTextChanged(redoCaption());
+        } else {
+            publishState();
+        }
+    }
+
+    /**
+     * @return True if there is a watcher in {@link WatchMode#ALL} mode.
+     */
+    private boolean isWatchedAll() {
+        return null != watcher && WatchMode.ALL == getWatchMode();
+    }
+
+    /**
+     * Fires the difference between current state and {@link #published} one, in modes other than
+     * {@link WatchMode#ALL}. Nothing fires if the state is the same.
+     */
+    private void publishState() {
+        if (null == watcher || null == published) {
+            return;
+        }
+        UndoState now = new UndoState(this);
+        UndoState old = published;
+        if (now.equals(old)) {
+            return;
+        }
+        published = now;
+        if (WatchMode.STATE == watchMode) {
+            watcher.stateChanged(old, now);
+            return;
+        }
+        if (now.getIdx() != old.getIdx()) {
+            watcher.indexChanged(now.getIdx());
+        }
+        if (now.canUndo() != old.canUndo()) {
+            watcher.canUndoChanged(now.canUndo());
+        }
+        if (!Objects.equals(now.getUndoCaption(), old.getUndoCaption())) {
+            watcher.undoTextChanged(now.getUndoCaption());
+        }
+        if (now.canRedo() != old.canRedo()) {
+            watcher.canRedoChanged(now.canRedo());
+        }
+        if (!Objects.equals(now.getRedoCaption(), old.getRedoCaption())) {
+            watcher.redoTextChanged(now.getRedoCaption());
+        }
+        if (now.isClean() != old.isClean()) {
+            watcher.cleanChanged(now.isClean());
+        }
+    }
+
+    /**
+     * If the number of commands on the stack exceeds the undo limit, or their estimated size
+     * exceeds the memory limit, deletes commands from the bottom of the stack.
+     */
+    private void checkUndoLimit() {
+
+        if ((commands == null) || (null != macroCmd)) {
+            return;
+        }
+
+        int delCnt = 0;
+        if (undoLimit > 0 && undoLimit < commands.size()) {
+            delCnt = commands.size() - undoLimit;
+        }
+
+        if (memoryLimit > 0 && null != sizeEstimator) {
+            long used = commands.weight();
+            for (int i = 0; i < delCnt; ++i) {
+                used -= commands.weight(i);
+            }
+            // The top command stays even if it alone exceeds the limit.
+            while (used > memoryLimit && delCnt < commands.size() - 1) {
+                used -= commands.weight(delCnt++);
+            }
+        }
+
+        if (delCnt == 0) {
+            return;
+        }
+
+        unpage(0, delCnt);
+        commands.removeFirst(delCnt);
+        coldEnd = Math.max(0, coldEnd - delCnt);
+        evicted += delCnt;
+        if (null != checkpoints) {
+            dropCheckpoints(checkpoints.headMap(evicted));
+        }
+
+        idx -= delCnt;
+        if (cleanIdx != -1) {
+            if (cleanIdx < delCnt) {
+                cleanIdx = -1;
+            } else {
+                cleanIdx -= delCnt;
+            }
+        }
+    }
+
+}
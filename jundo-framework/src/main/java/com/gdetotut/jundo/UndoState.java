@@ -0,0 +1,118 @@
+package com.gdetotut.jundo;
+
+import java.util.Objects;
+
+/**
+ * Immutable state of {@link UndoStack} as it is seen by {@link UndoWatcher}.
+ * <p>Captions are kept as the commands have them and made only when requested, so lazy captions
+ * (see {@link UndoCommand#setLazyCaption}) cost nothing unless the watcher shows them.
+ */
+public final class UndoState {
+
+    private final int idx;
+    private final boolean clean;
+    private final boolean canUndo;
+    private final boolean canRedo;
+    private final UndoCommand undoCmd;
+    private final UndoCommand redoCmd;
+
+    /**
+     * Caption of {@link #undoCmd} as the command had it; String once made.
+     */
+    private Object undoCaption;
+
+    /**
+     * Caption of {@link #redoCmd} as the command had it; String once made.
+     */
+    private Object redoCaption;
+
+    /**
+     * Takes current state of the stack.
+     *
+     * @param stack the stack. Required.
+     */
+    UndoState(UndoStack stack) {
+        this.idx = stack.getIdx();
+        this.clean = stack.isClean();
+        this.canUndo = stack.canUndo();
+        this.canRedo = stack.canRedo();
+        this.undoCmd = stack.nextUndo();
+        this.redoCmd = stack.nextRedo();
+        this.undoCaption = null != undoCmd ? undoCmd.rawCaption() : "";
+        this.redoCaption = null != redoCmd ? redoCmd.rawCaption() : "";
+    }
+
+    /**
+     * @return Index of current command. See {@link UndoStack#getIdx}.
+     */
+    public int getIdx() {
+        return idx;
+    }
+
+    /**
+     * @return True if the stack is in clean state. See {@link UndoStack#isClean}.
+     */
+    public boolean isClean() {
+        return clean;
+    }
+
+    /**
+     * @return True if the stack has command to undo. See {@link UndoStack#canUndo}.
+     */
+    public boolean canUndo() {
+        return canUndo;
+    }
+
+    /**
+     * @return True if the stack has command to redo. See {@link UndoStack#canRedo}.
+     */
+    public boolean canRedo() {
+        return canRedo;
+    }
+
+    /**
+     * @return Caption for next undo command. See {@link UndoStack#undoCaption}.
+     */
+    public String getUndoCaption() {
+        if (!(undoCaption instanceof String) && null != undoCaption) {
+            undoCaption = undoCmd.captionOf(undoCaption);
+        }
+        return (String) undoCaption;
+    }
+
+    /**
+     * @return Caption for next redo command. See {@link UndoStack#redoCaption}.
+     */
+    public String getRedoCaption() {
+        if (!(redoCaption instanceof String) && null != redoCaption) {
+            redoCaption = redoCmd.captionOf(redoCaption);
+        }
+        return (String) redoCaption;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        UndoState that = (UndoState) o;
+        // Commands are not compared: the same command may be seen through its stub and then by itself
+        // (see UndoStack.setSpillFile and UndoPacket.Builder.lazy). Captions are made only if they differ.
+        return idx == that.idx
+                && clean == that.clean
+                && canUndo == that.canUndo
+                && canRedo == that.canRedo
+                && (undoCaption == that.undoCaption || Objects.equals(getUndoCaption(), that.getUndoCaption()))
+                && (redoCaption == that.redoCaption || Objects.equals(getRedoCaption(), that.getRedoCaption()));
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(idx, clean, canUndo, canRedo);
+    }
+
+    @Override
+    public String toString() {
+        return "UndoState{idx=" + idx + ", clean=" + clean + ", canUndo=" + canUndo + ", canRedo=" + canRedo
+                + ", undoCaption='" + getUndoCaption() + "', redoCaption='" + getRedoCaption() + "'}";
+    }
+}
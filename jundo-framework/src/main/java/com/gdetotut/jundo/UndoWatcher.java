@@ -60,4 +60,14 @@ public interface UndoWatcher {
     default void macroChanged(boolean on) {
     }
 
+    /**
+     * This event fires once for every change of the stack's state in {@link WatchMode#STATE} mode
+     * instead of index, clean, undo and redo events.
+     *
+     * @param old state before the change.
+     * @param now state after the change.
+     */
+    default void stateChanged(UndoState old, UndoState now) {
+    }
+
 }
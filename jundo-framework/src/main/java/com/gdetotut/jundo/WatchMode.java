@@ -0,0 +1,22 @@
+package com.gdetotut.jundo;
+
+/**
+ * Modes of notifying {@link UndoWatcher}. Used in {@link UndoStack#setWatcher(UndoWatcher, WatchMode)}.
+ */
+public enum WatchMode {
+
+    /**
+     * Every change of index fires all the index, undo and redo events, even if their values are the same.
+     */
+    ALL,
+
+    /**
+     * Events fire only for values that differ from the last fired ones.
+     */
+    CHANGES,
+
+    /**
+     * Only {@link UndoWatcher#stateChanged} fires, once for every change of the stack's state.
+     */
+    STATE
+}
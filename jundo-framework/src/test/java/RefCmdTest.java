@@ -0,0 +1,223 @@
+import com.gdetotut.jundo.BooleanRefCmd;
+import com.gdetotut.jundo.DoubleRefCmd;
+import com.gdetotut.jundo.IntRefCmd;
+import com.gdetotut.jundo.LongRefCmd;
+import com.gdetotut.jundo.RefCmd;
+import com.gdetotut.jundo.RefHandles;
+import com.gdetotut.jundo.UndoCommand;
+import com.gdetotut.jundo.UndoPacket;
+import com.gdetotut.jundo.UndoStack;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import some.Point;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+public class RefCmdTest {
+
+    static final int X = RefHandles.register(Point.class, 1, Point::getX, Point::setX);
+    static final int Y = RefHandles.register(Point.class, 2, Point::getY, Point::setY);
+
+    Point subj = null;
+    UndoStack stack = null;
+
+    @Rule
+    public ExpectedException thrown = ExpectedException.none();
+
+    @Before
+    public void prepare() {
+        subj = new Point(1, 1);
+        stack = new UndoStack(subj, null);
+    }
+
+    @Test
+    public void testGetterNullEx(){
+        thrown.expect(NullPointerException.class);
+        new RefCmd<>(stack, "", null, subj::setX, 1, null);
+        thrown = ExpectedException.none();
+    }
+
+    @Test
+    public void testSetterNullEx(){
+        thrown.expect(NullPointerException.class);
+        new RefCmd<>(stack, "", subj::getX, null, 1, null);
+        thrown = ExpectedException.none();
+    }
+
+    @Test
+    public void testCompare(){
+        UndoCommand cmd1 = new RefCmd<>(stack, "", subj::getX, subj::setX, 1, null);
+        UndoCommand cmd2 = cmd1;
+        Assert.assertEquals(cmd1, cmd2);
+        UndoCommand cmd3 = new RefCmd<>(stack, "", subj::getX, subj::setX, 1, null);
+        Assert.assertNotEquals(cmd1, cmd3);
+    }
+
+    /**
+     * Subject with properties of primitive types.
+     */
+    static class Props implements Serializable {
+
+        private long l;
+        private double d;
+        private boolean b;
+
+        long getL() {
+            return l;
+        }
+
+        void setL(long l) {
+            this.l = l;
+        }
+
+        double getD() {
+            return d;
+        }
+
+        void setD(double d) {
+            this.d = d;
+        }
+
+        boolean isB() {
+            return b;
+        }
+
+        void setB(boolean b) {
+            this.b = b;
+        }
+    }
+
+    @Test
+    public void testPrimitives() throws Exception {
+        Props props = new Props();
+        UndoStack stack = new UndoStack(props, null);
+        stack.push(new LongRefCmd(stack, "l", props::getL, props::setL, 1L << 40, null));
+        stack.push(new DoubleRefCmd(stack, "d", props::getD, props::setD, 2.5, null));
+        stack.push(new BooleanRefCmd(stack, "b", props::isB, props::setB, true, null));
+        stack.push(new DoubleRefCmd(stack, "d", "d", props::getD, props::setD, 3.5, null));
+        Assert.assertEquals(1L << 40, props.getL());
+        Assert.assertEquals(3.5, props.getD(), 0);
+        Assert.assertTrue(props.isB());
+
+        stack.undo();
+        Assert.assertEquals(2.5, props.getD(), 0);
+        stack.setIndex(0);
+        Assert.assertEquals(0, props.getL());
+        Assert.assertEquals(0, props.getD(), 0);
+        Assert.assertFalse(props.isB());
+
+        stack.push(new IntRefCmd(stack, "x", subj::getX, subj::setX, 1000, null));
+        Assert.assertEquals(1, stack.count());
+
+        UndoCommand copy = stack.clone(stack.getCommand(0));
+        Assert.assertEquals(IntRefCmd.class, copy.getClass());
+
+        Props props1 = new Props();
+        UndoStack stack1 = new UndoStack(props1, null);
+        for (int i = 1; i <= 10; ++i) {
+            stack1.push(new DoubleRefCmd(stack1, "d", props1::getD, props1::setD, i / 2.0, null));
+            stack1.push(new LongRefCmd(stack1, "l", props1::getL, props1::setL, -i, null));
+        }
+        String str = UndoPacket.make(stack1, "props", 1).store();
+        UndoStack stack2 = UndoPacket.peek(str, null).restore(null).stack(null);
+        Props props2 = (Props) stack2.getSubj();
+        Assert.assertEquals(20, stack2.count());
+        Assert.assertEquals(5.0, props2.getD(), 0);
+        Assert.assertEquals(-10, props2.getL());
+        stack2.undo();
+        stack2.undo();
+        Assert.assertEquals(4.5, props2.getD(), 0);
+        Assert.assertEquals(-9, props2.getL());
+        stack2.setIndex(0);
+        Assert.assertEquals(0, props2.getD(), 0);
+        Assert.assertEquals(0, props2.getL());
+    }
+
+    @Test
+    public void testMerging() throws Exception {
+        stack.setPropertyMergeWindow(Long.MAX_VALUE);
+        for (int i = 1; i <= 10; ++i) {
+            stack.push(new RefCmd<>(stack, "x", "x", subj::getX, subj::setX, i, null));
+        }
+        Assert.assertEquals(1, stack.count());
+        Assert.assertEquals(10, subj.getX());
+        stack.undo();
+        Assert.assertEquals(1, subj.getX());
+        stack.redo();
+        Assert.assertEquals(10, subj.getX());
+
+        // Not merged after redo, for another property and for the same property without the key
+        stack.push(new IntRefCmd(stack, "x", "x", subj::getX, subj::setX, 11, null));
+        stack.push(new IntRefCmd(stack, "y", "y", subj::getY, subj::setY, 1, null));
+        stack.push(new IntRefCmd(stack, "x", "x", subj::getX, subj::setX, 12, null));
+        stack.push(new IntRefCmd(stack, "x", subj::getX, subj::setX, 13, null));
+        stack.push(new IntRefCmd(stack, "x", "x", subj::getX, subj::setX, 14, null));
+        Assert.assertEquals(6, stack.count());
+        stack.pushAll(Arrays.asList(
+                new IntRefCmd(stack, "x", "x", subj::getX, subj::setX, 15, null),
+                new IntRefCmd(stack, "x", "x", subj::getX, subj::setX, 16, null)));
+        Assert.assertEquals(6, stack.count());
+        stack.undo();
+        Assert.assertEquals(13, subj.getX());
+
+        // Not merged across the clean state and out of the window
+        stack.push(new IntRefCmd(stack, "x", "x", subj::getX, subj::setX, 17, null));
+        stack.setClean();
+        stack.push(new IntRefCmd(stack, "x", "x", subj::getX, subj::setX, 18, null));
+        Assert.assertEquals(7, stack.count());
+        stack.setPropertyMergeWindow(1);
+        Thread.sleep(20);
+        stack.push(new IntRefCmd(stack, "x", "x", subj::getX, subj::setX, 19, null));
+        Assert.assertEquals(8, stack.count());
+        stack.setIndex(0);
+        Assert.assertEquals(1, subj.getX());
+        Assert.assertEquals(1, subj.getY());
+    }
+
+    @Test
+    public void testHandles() throws Exception {
+        for (int i = 1; i <= 50; ++i) {
+            stack.push(new RefCmd<>(stack, "x", X, i, null));
+            stack.push(new RefCmd<>(stack, "y", Y, -i, null));
+        }
+        Assert.assertEquals(50, subj.getX());
+        Assert.assertEquals(-50, subj.getY());
+        stack.undo();
+        Assert.assertEquals(-49, subj.getY());
+        UndoCommand copy = stack.clone(stack.getCommand(0));
+        Assert.assertEquals(RefCmd.class, copy.getClass());
+
+        Point subj1 = new Point(1, 1);
+        UndoStack stack1 = new UndoStack(subj1, null);
+        for (int i = 1; i <= 50; ++i) {
+            stack1.push(new RefCmd<>(stack1, "x", subj1::getX, subj1::setX, i, null));
+            stack1.push(new RefCmd<>(stack1, "y", subj1::getY, subj1::setY, -i, null));
+        }
+        String str = UndoPacket.make(stack, "point", 1).zipped(false).store();
+        Assert.assertTrue(str.length() < UndoPacket.make(stack1, "point", 1).zipped(false).store().length());
+
+        UndoStack stack2 = UndoPacket.peek(str, null).restore(null).stack(null);
+        Point subj2 = (Point) stack2.getSubj();
+        Assert.assertEquals(stack.count(), stack2.count());
+        Assert.assertEquals(-49, subj2.getY());
+        stack2.setIndex(1);
+        Assert.assertEquals(1, subj2.getX());
+        Assert.assertEquals(1, subj2.getY());
+        stack2.undo();
+        Assert.assertEquals(1, subj2.getX());
+
+        // Commands with the same handle are for the same property
+        stack2.setPropertyMergeWindow(Long.MAX_VALUE);
+        stack2.push(new RefCmd<>(stack2, "y", Y, 5, null));
+        stack2.push(new RefCmd<>(stack2, "y", Y, 6, null));
+        Assert.assertEquals(1, stack2.count());
+
+        thrown.expect(IllegalArgumentException.class);
+        new RefCmd<>(stack, "z", 100, 1, null);
+    }
+
+}
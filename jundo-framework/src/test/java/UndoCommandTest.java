@@ -0,0 +1,139 @@
+import com.gdetotut.jundo.RefCmd;
+import com.gdetotut.jundo.UndoCommand;
+import com.gdetotut.jundo.UndoPacket;
+import com.gdetotut.jundo.UndoStack;
+import com.gdetotut.jundo.UndoState;
+import com.gdetotut.jundo.UndoWatcher;
+import com.gdetotut.jundo.WatchMode;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import some.Point;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+
+public class UndoCommandTest {
+
+    Point subj = null;
+    UndoStack stack = null;
+
+    @Rule
+    public ExpectedException thrown = ExpectedException.none();
+
+    @Before
+    public void prepare() {
+        subj = new Point(1, 1);
+        stack = new UndoStack(subj, null);
+    }
+
+    @Test
+    public void testCtrException(){
+        thrown.expect(NullPointerException.class);
+        new UndoCommand(null, "", null);
+        thrown = ExpectedException.none();
+    }
+
+    @Test
+    public void testMergeException(){
+        thrown.expect(NullPointerException.class);
+        new UndoCommand(stack,"", null).mergeWith(null);
+        thrown = ExpectedException.none();
+    }
+
+    @Test
+    public void testChild(){
+        UndoCommand parent = new UndoCommand(stack, "", null);
+        // for test coverage sake
+        parent.undo();
+        parent.redo();
+
+        assertEquals(null, parent.child(0));
+        assertEquals(null, parent.child(-1));
+        assertEquals(null, parent.child(1));
+        UndoCommand cmd1 = new RefCmd<>(stack, "1", subj::getX, subj::setX, 2, parent);
+        assertEquals(cmd1, parent.child(0));
+        UndoCommand cmd2 = new RefCmd<>(stack, "2", subj::getX, subj::setX, 3, parent);
+        assertEquals(cmd2, parent.child(1));
+    }
+
+    @Test
+    public void testChildrenAndCaptions() throws Exception {
+        UndoCommand parent = new UndoCommand(stack, "chain", null);
+        for (int i = 1; i <= 5; ++i) {
+            new RefCmd<>(stack, "x", subj::getX, subj::setX, i * 10, parent);
+        }
+        assertEquals(5, parent.childCount());
+        assertEquals(null, parent.child(5));
+        stack.push(parent);
+        assertEquals(50, subj.getX());
+        stack.undo();
+        assertEquals(1, subj.getX());
+
+        stack.beginMacro("macro");
+        for (int i = 1; i <= 3; ++i) {
+            stack.push(new RefCmd<>(stack, "y", subj::getY, subj::setY, i, null));
+        }
+        stack.endMacro();
+        assertEquals(1, stack.count());
+        assertEquals(3, stack.getCommand(0).childCount());
+        UndoCommand copy = stack.clone(stack.getCommand(0));
+        assertEquals(3, copy.childCount());
+
+        // Equal captions are shared
+        UndoCommand cmd1 = new UndoCommand(stack, new String("move"), null);
+        UndoCommand cmd2 = new UndoCommand(stack, new String("move"), null);
+        Assert.assertSame(cmd1.getCaption(), cmd2.getCaption());
+    }
+
+    @Test
+    public void testLazyCaption() throws Exception {
+        AtomicInteger made = new AtomicInteger();
+        List<UndoState> states = new ArrayList<>();
+        stack.setWatcher(new UndoWatcher() {
+            @Override
+            public void stateChanged(UndoState old, UndoState now) {
+                states.add(now);
+            }
+        }, WatchMode.STATE);
+        for (int i = 1; i <= 3; ++i) {
+            UndoCommand cmd = new RefCmd<>(stack, null, subj::getX, subj::setX, i, null);
+            final int n = i;
+            cmd.setLazyCaption(() -> {
+                made.incrementAndGet();
+                return "x = " + n;
+            });
+            stack.push(cmd);
+        }
+        assertEquals(0, made.get());
+        assertEquals("x = 3", stack.undoCaption());
+        assertEquals("x = 3", stack.undoCaption());
+        assertEquals(1, made.get());
+
+        // Watcher's states make captions only when asked
+        assertEquals(3, states.size());
+        assertEquals("x = 3", states.get(2).getUndoCaption());
+        assertEquals(1, made.get());
+        assertEquals("x = 2", states.get(1).getUndoCaption());
+        assertEquals(2, made.get());
+        stack.setWatcher(null);
+
+        UndoCommand cmd1 = new UndoCommand(stack, null, null);
+        cmd1.setLazyCaption("move %d, %d", 10, 20);
+        UndoCommand cmd2 = new UndoCommand(stack, null, null);
+        cmd2.setLazyCaption("move %d, %d", 10, 20);
+        Assert.assertSame(cmd1.getCaption(), cmd2.getCaption());
+        assertEquals("move 10, 20", cmd1.getCaption());
+
+        // Lazy captions are stored made
+        UndoStack stack1 = UndoPacket.peek(UndoPacket.make(stack, "point", 1).store(), null).restore(null).stack(null);
+        assertEquals("x = 2", stack1.getCommand(1).getCaption());
+        assertEquals(3, made.get());
+    }
+
+}
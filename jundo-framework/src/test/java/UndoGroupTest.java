@@ -5,11 +5,18 @@ import org.junit.rules.ExpectedException;
 import some.Point;
 import some.SimpleClass;
 import com.gdetotut.jundo.UndoGroup;
+import com.gdetotut.jundo.UndoGroupPacket;
+import com.gdetotut.jundo.UndoPacket;
 import com.gdetotut.jundo.UndoStack;
 
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 public class UndoGroupTest {
 
@@ -189,4 +196,78 @@ public class UndoGroupTest {
 
 
 
+    @Test
+    public void testArchive() throws Exception {
+        UndoGroup group = new UndoGroup();
+        for (int i = 0; i < 20; ++i) {
+            Point pt = new Point(i, 0);
+            UndoStack stack = new UndoStack(pt, group);
+            for (int j = 1; j <= i; ++j) {
+                stack.push(new RefCmd<>(stack, "y", pt::getY, pt::setY, j, null));
+            }
+        }
+        group.setActive(group.getStacks().get(5));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        UndoGroupPacket.store(group, s -> UndoPacket.make(s, "pt" + ((Point) s.getSubj()).getX(), 1),
+                out, new ForkJoinPool(4));
+        // The archive is the stacks' packets with the index.
+        ByteArrayOutputStream separate = new ByteArrayOutputStream();
+        for (UndoStack stack : group.getStacks()) {
+            UndoPacket.make(stack, "pt" + ((Point) stack.getSubj()).getX(), 1).store(separate);
+        }
+        assertTrue(out.size() < separate.size() + 20 * 20);
+
+        UndoGroupPacket archive = UndoGroupPacket.open(ByteBuffer.wrap(out.toByteArray()));
+        assertEquals(20, archive.ids().size());
+        assertEquals("pt7", archive.ids().get(7));
+        UndoStack stack7 = archive.peek("pt7", null).restore(null).stack(null);
+        assertEquals(7, stack7.count());
+        assertNull(archive.peek("pt20", null));
+
+        UndoGroup group1 = archive.restore(null, null);
+        assertEquals(20, group1.getStacks().size());
+        assertTrue(group1.getActive() == group1.getStacks().get(5));
+        for (int i = 0; i < 20; ++i) {
+            UndoStack stack = group1.getStacks().get(i);
+            Point pt = (Point) stack.getSubj();
+            assertEquals(i, pt.getX());
+            assertEquals(i, pt.getY());
+            assertEquals(i, stack.count());
+            stack.setIndex(0);
+            assertEquals(0, pt.getY());
+        }
+    }
+
+    @Test
+    public void testStoreWithoutSiblings() throws Exception {
+        Point pt = new Point(1, 1);
+        UndoStack stack = new UndoStack(pt, null);
+        stack.push(new RefCmd<>(stack, "x", pt::getX, pt::setX, 2, null));
+        int alone = UndoPacket.make(stack, "pt", 1).store().length();
+
+        UndoGroup group = new UndoGroup();
+        group.add(stack);
+        for (int i = 0; i < 10; ++i) {
+            Point sibling = new Point(i, i);
+            UndoStack other = new UndoStack(sibling, group);
+            other.push(new RefCmd<>(other, "x", sibling::getX, sibling::setX, 100, null));
+        }
+        String str = UndoPacket.make(stack, "pt", 1).store();
+        assertEquals(alone, str.length());
+
+        UndoStack stack1 = UndoPacket.peek(str, null).restore(null).stack(null);
+        assertTrue(stack1.isActive());
+        assertEquals(1, stack1.count());
+
+        UndoGroup group1 = new UndoGroup();
+        stack1 = UndoPacket.peek(str, null).restore(null).stack(null, group1);
+        assertEquals(1, group1.getStacks().size());
+        assertTrue(group1.getStacks().get(0) == stack1);
+        stack1.setActive(true);
+        assertTrue(group1.getActive() == stack1);
+        group1.undo();
+        assertEquals(1, ((Point) stack1.getSubj()).getX());
+    }
+
 }
@@ -0,0 +1,291 @@
+import com.gdetotut.jundo.RefCmd;
+import com.gdetotut.jundo.UndoCommand;
+import com.gdetotut.jundo.UndoJournal;
+import com.gdetotut.jundo.UndoPacket;
+import com.gdetotut.jundo.UndoStack;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import some.Point;
+
+import java.io.NotSerializableException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class UndoJournalTest {
+
+    Path dir;
+    Path snapshot;
+    Path log;
+
+    @Before
+    public void prepare() throws Exception {
+        dir = Files.createTempDirectory("jundo");
+        snapshot = dir.resolve("stack.snapshot");
+        log = dir.resolve("stack.log");
+    }
+
+    @After
+    public void cleanup() throws Exception {
+        Files.deleteIfExists(snapshot);
+        Files.deleteIfExists(log);
+        Files.deleteIfExists(dir);
+    }
+
+    @Test
+    public void testReplay() throws Exception {
+        Point pt = new Point(0, 0);
+        UndoStack stack = new UndoStack(pt, null);
+        stack.push(new RefCmd<>(stack, "x1", pt::getX, pt::setX, 1, null));
+
+        UndoJournal journal = UndoJournal.start(stack, snapshot, log, s -> UndoPacket.make(s, "point", 1));
+        journal.setCompactThreshold(Long.MAX_VALUE);
+        long snapshotSize = Files.size(snapshot);
+
+        stack.push(new RefCmd<>(stack, "x2", pt::getX, pt::setX, 2, null));
+        stack.setClean();
+        stack.push(new RefCmd<>(stack, "x3", pt::getX, pt::setX, 3, null));
+        journal.flush();
+        assertEquals(snapshotSize, Files.size(snapshot));
+
+        stack.undo();
+        stack.undo();
+        stack.beginMacro("macro");
+        stack.push(new RefCmd<>(stack, "y1", pt::getY, pt::setY, 10, null));
+        stack.push(new RefCmd<>(stack, "x4", pt::getX, pt::setX, 4, null));
+        stack.endMacro();
+        stack.pushAll(Arrays.asList(
+                new RefCmd<>(stack, "y2", pt::getY, pt::setY, 20, null),
+                new RefCmd<>(stack, "y3", () -> 20, pt::setY, 30, null)));
+        stack.undo();
+        journal.flush();
+
+        UndoStack stack1 = UndoJournal.restore(snapshot, log, null, null);
+        Point pt1 = (Point) stack1.getSubj();
+        assertEquals(stack.count(), stack1.count());
+        assertEquals(stack.getIdx(), stack1.getIdx());
+        assertEquals(stack.getCleanIdx(), stack1.getCleanIdx());
+        assertEquals("y2", stack1.undoCaption());
+        assertEquals(4, pt1.getX());
+        assertEquals(20, pt1.getY());
+        stack1.setIndex(0);
+        assertEquals(0, pt1.getX());
+        assertEquals(0, pt1.getY());
+
+        // Not flushed records are lost, torn ones are ignored
+        stack.redo();
+        try (FileChannel ch = FileChannel.open(log, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            ch.write(ByteBuffer.wrap(new byte[]{0, 0, 0, 100, 1, 2}));
+        }
+        stack1 = UndoJournal.restore(snapshot, log, null, null);
+        assertEquals(stack.getIdx() - 1, stack1.getIdx());
+
+        journal.close();
+    }
+
+    static class FailingCmd extends UndoCommand {
+        FailingCmd(UndoStack owner) {
+            super(owner, "fail", null);
+        }
+
+        @Override
+        protected void doRedo() {
+            throw new IllegalStateException("fail");
+        }
+    }
+
+    @Test
+    public void testFailedBatch() throws Exception {
+        Point pt = new Point(0, 0);
+        UndoStack stack = new UndoStack(pt, null);
+        stack.push(new RefCmd<>(stack, "x1", pt::getX, pt::setX, 1, null));
+        stack.push(new RefCmd<>(stack, "x2", pt::getX, pt::setX, 2, null));
+        stack.undo();
+        UndoJournal journal = UndoJournal.start(stack, snapshot, log, s -> UndoPacket.make(s, "point", 1));
+        journal.setCompactThreshold(Long.MAX_VALUE);
+
+        // Nothing applied: the undone command stays
+        try {
+            stack.pushAll(Arrays.asList(new FailingCmd(stack),
+                    new RefCmd<>(stack, "y1", pt::getY, pt::setY, 10, null)));
+            fail("redo should throw");
+        } catch (IllegalStateException e) {
+            // ok
+        }
+        assertEquals(2, stack.count());
+        assertEquals(1, stack.getIdx());
+
+        // The applied prefix stays pushed and journaled
+        try {
+            stack.pushAll(Arrays.asList(
+                    new RefCmd<>(stack, "y1", pt::getY, pt::setY, 10, null),
+                    new FailingCmd(stack),
+                    new RefCmd<>(stack, "y2", pt::getY, pt::setY, 20, null)));
+            fail("redo should throw");
+        } catch (IllegalStateException e) {
+            // ok
+        }
+        assertEquals(2, stack.count());
+        assertEquals(2, stack.getIdx());
+        assertEquals("y1", stack.undoCaption());
+        assertEquals(10, pt.getY());
+        journal.flush();
+
+        UndoStack stack1 = UndoJournal.restore(snapshot, log, null, null);
+        Point pt1 = (Point) stack1.getSubj();
+        assertEquals(2, stack1.count());
+        assertEquals(2, stack1.getIdx());
+        assertEquals("y1", stack1.undoCaption());
+        assertEquals(1, pt1.getX());
+        assertEquals(10, pt1.getY());
+        journal.close();
+    }
+
+    @Test
+    public void testFailedPush() throws Exception {
+        Point pt = new Point(0, 0);
+        UndoStack stack = new UndoStack(pt, null);
+        UndoJournal journal = UndoJournal.start(stack, snapshot, log, s -> UndoPacket.make(s, "point", 1));
+        journal.setCompactThreshold(Long.MAX_VALUE);
+        stack.push(new RefCmd<>(stack, "x1", pt::getX, pt::setX, 1, null));
+        try {
+            stack.push(new FailingCmd(stack));
+            fail("redo should throw");
+        } catch (IllegalStateException e) {
+            // ok
+        }
+        stack.push(new RefCmd<>(stack, "x2", pt::getX, pt::setX, 2, null));
+        journal.flush();
+
+        // The failed push is not journaled, so the journal is restored
+        UndoStack stack1 = UndoJournal.restore(snapshot, log, null, null);
+        assertEquals(2, stack1.count());
+        assertEquals("x2", stack1.undoCaption());
+        assertEquals(2, ((Point) stack1.getSubj()).getX());
+        journal.close();
+    }
+
+    @Test
+    public void testDetachedCapture() throws Exception {
+        Point pt = new Point(0, 0);
+        UndoStack stack = new UndoStack(pt, null);
+        UndoJournal journal = UndoJournal.start(stack, snapshot, log, s -> UndoPacket.make(s, "point", 1));
+        journal.setCompactThreshold(Long.MAX_VALUE);
+
+        // Another point would be replayed as a copy, so the push is rejected before redo
+        Point other = new Point(0, 0);
+        try {
+            stack.push(new RefCmd<>(stack, "x1", other::getX, other::setX, 1, null));
+            fail("push should throw");
+        } catch (NotSerializableException e) {
+            // ok
+        }
+        assertEquals(0, stack.count());
+        assertEquals(0, other.getX());
+
+        // The subject and plain values are fine
+        int y = 10;
+        stack.push(new RefCmd<>(stack, "y1", () -> y, pt::setY, 20, null));
+        journal.flush();
+
+        UndoStack stack1 = UndoJournal.restore(snapshot, log, null, null);
+        assertEquals(1, stack1.count());
+        assertEquals(20, ((Point) stack1.getSubj()).getY());
+        journal.close();
+    }
+
+    @Test
+    public void testFlushInMacro() throws Exception {
+        Point pt = new Point(0, 0);
+        UndoStack stack = new UndoStack(pt, null);
+        UndoJournal journal = UndoJournal.start(stack, snapshot, log, s -> UndoPacket.make(s, "point", 1));
+        journal.setCompactThreshold(Long.MAX_VALUE);
+        stack.push(new RefCmd<>(stack, "x1", pt::getX, pt::setX, 1, null));
+
+        // Unfinished macro is not flushed, so a crash after flush loses it whole
+        stack.beginMacro("macro");
+        stack.push(new RefCmd<>(stack, "y1", pt::getY, pt::setY, 10, null));
+        journal.flush();
+        UndoStack stack1 = UndoJournal.restore(snapshot, log, null, null);
+        Point pt1 = (Point) stack1.getSubj();
+        assertTrue(stack1.canUndo());
+        assertEquals(1, stack1.count());
+        assertEquals("x1", stack1.undoCaption());
+        assertEquals(1, pt1.getX());
+        assertEquals(0, pt1.getY());
+
+        // Finished macro is flushed with its held back part; long caption is fine too
+        stack.push(new RefCmd<>(stack, "x2", pt::getX, pt::setX, 2, null));
+        stack.endMacro();
+        char[] chars = new char[70000];
+        Arrays.fill(chars, 'ы');
+        String caption = new String(chars);
+        stack.beginMacro(caption);
+        stack.push(new RefCmd<>(stack, "y2", pt::getY, pt::setY, 20, null));
+        stack.endMacro();
+        journal.flush();
+        stack1 = UndoJournal.restore(snapshot, log, null, null);
+        pt1 = (Point) stack1.getSubj();
+        assertTrue(stack1.canUndo());
+        assertEquals(3, stack1.count());
+        assertEquals(caption, stack1.undoCaption());
+        assertEquals("macro", stack1.getCommand(1).getCaption());
+        assertEquals(2, pt1.getX());
+        assertEquals(20, pt1.getY());
+        journal.close();
+    }
+
+    @Test
+    public void testCompact() throws Exception {
+        Point pt = new Point(0, 0);
+        UndoStack stack = new UndoStack(pt, null);
+        UndoJournal journal = UndoJournal.start(stack, snapshot, log, s -> UndoPacket.make(s, "point", 1));
+        journal.setCompactThreshold(2000);
+        for (int i = 1; i <= 100; ++i) {
+            stack.push(new RefCmd<>(stack, "x" + i, pt::getX, pt::setX, i, null));
+            journal.flush();
+            assertTrue(Files.size(log) <= 2000);
+        }
+        journal.close();
+
+        UndoStack stack1 = UndoJournal.restore(snapshot, log, null, null);
+        assertEquals(100, stack1.count());
+        assertEquals(100, ((Point) stack1.getSubj()).getX());
+
+        // Journal goes on for the restored stack
+        journal = UndoJournal.start(stack1, snapshot, log, s -> UndoPacket.make(s, "point", 1));
+        stack1.undo();
+        journal.close();
+        assertEquals(99, UndoJournal.restore(snapshot, log, null, null).getIdx());
+    }
+
+    @Test
+    public void testMerging() throws Exception {
+        Point pt = new Point(0, 0);
+        UndoStack stack = new UndoStack(pt, null);
+        stack.setPropertyMergeWindow(50);
+        UndoJournal journal = UndoJournal.start(stack, snapshot, log, s -> UndoPacket.make(s, "point", 1));
+        for (int i = 1; i <= 5; ++i) {
+            stack.push(new RefCmd<>(stack, "x", "x", pt::getX, pt::setX, i, null));
+            Thread.sleep(i % 2 * 100);
+        }
+        journal.close();
+
+        // The replay is fast, but merges the same commands
+        UndoStack stack1 = UndoJournal.restore(snapshot, log, null, null);
+        assertEquals(3, stack.count());
+        assertEquals(stack.count(), stack1.count());
+        assertEquals(5, ((Point) stack1.getSubj()).getX());
+        stack1.undo();
+        assertEquals(3, ((Point) stack1.getSubj()).getX());
+    }
+
+}
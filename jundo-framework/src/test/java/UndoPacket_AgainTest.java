@@ -0,0 +1,705 @@
+import com.gdetotut.jundo.Codec;
+import com.gdetotut.jundo.RefCmd;
+import com.gdetotut.jundo.UndoCommand;
+import com.gdetotut.jundo.UndoPacket;
+import com.gdetotut.jundo.UndoPacket.SubjInfo;
+import com.gdetotut.jundo.UndoSerializer;
+import com.gdetotut.jundo.UndoStack;
+import javafx.scene.paint.Color;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import some.Point;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInput;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutput;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Base64;
+import java.util.zip.Deflater;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class UndoPacket_AgainTest {
+
+    @Rule
+    public ExpectedException thrown = ExpectedException.none();
+
+
+    Point subj = null;
+    UndoStack stack = null;
+
+    @Before
+    public void prepare() {
+        subj = new Point(1, 1);
+        stack = new UndoStack(subj, null);
+    }
+
+    @Test
+    public void testStackEx() throws Exception {
+        thrown.expect(NullPointerException.class);
+        UndoPacket.make(null, "", 1)
+                .store();
+        thrown = ExpectedException.none();
+    }
+
+    @Test
+    public void testExtraEx() throws Exception {
+        thrown.expect(NullPointerException.class);
+        UndoPacket.Builder builder = UndoPacket.make(stack, "", 1);
+        builder.extra(null, "");
+        thrown = ExpectedException.none();
+    }
+
+    // for 100% test coverage
+    @Test
+    public void testExtra() throws Exception {
+        UndoPacket.Builder builder = UndoPacket.make(stack, "", 1);
+        UndoPacket.make(stack, "", 1);
+        assertNotNull(builder.extra("a", "b"));
+        assertNotNull(builder.zipped(true));
+    }
+
+    @Test
+    public void testSubjEx() throws Exception {
+        thrown.expect(Exception.class);
+        stack.setSubj(new Object());
+        UndoPacket.make(stack, "", 1)
+                .store();
+        thrown = ExpectedException.none();
+    }
+
+    @Test
+    public void testCandidateEx() throws Exception {
+        thrown.expect(NullPointerException.class);
+        UndoPacket.peek(null, null);
+        thrown = ExpectedException.none();
+    }
+
+    @Test
+    public void testCandidateEx2() throws Exception {
+        thrown.expect(Exception.class);
+        UndoPacket.peek("too short", null);
+        thrown = ExpectedException.none();
+    }
+
+    @Test
+    public void testHandlerEx() throws Exception {
+        String s = UndoPacket.make(stack, "", 1)
+                .onStore(subj -> "")
+                .store();
+
+        thrown.expect(Exception.class);
+        // Need subj handler, cause was onStore
+        UndoPacket.peek(s, null)
+                .restore(null)
+                .stack(null);
+        thrown = ExpectedException.none();
+    }
+
+    @Test
+    public void testHandlerEx2() throws Exception {
+        String s = UndoPacket.make(stack, "", 1)
+                .onStore(subj -> "")
+                .store();
+
+        // for 100% test coverage
+        UndoPacket.peek(s, null)
+                .restore((processedSubj, subjInfo) -> null)
+                .stack(null);
+    }
+
+
+    /**
+     * Simple storing of Serializable object
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testSimpleStore() throws Exception {
+
+        Point pt = new Point(-30, -40);
+        assertEquals(-30, pt.getX());
+        assertEquals(-40, pt.getY());
+
+        UndoStack stack = new UndoStack(pt, null);
+        stack.push(new RefCmd<>(stack, "Change x", pt::getX, pt::setX, 10, null));
+        stack.push(new RefCmd<>(stack, "Change y", pt::getY, pt::setY, 20, null));
+
+        // After 2 commands applied
+        assertEquals(2, stack.count());
+        assertEquals(2, stack.getIdx());
+        assertEquals(10, pt.getX());
+        assertEquals(20, pt.getY());
+
+        // One step back
+        stack.undo();
+        assertEquals(10, pt.getX());
+        assertEquals(-40, pt.getY());
+        assertEquals(1, stack.getIdx());
+
+        // After 2 commands applied again
+        stack.redo();
+        assertEquals(10, pt.getX());
+        assertEquals(20, pt.getY());
+        assertEquals(2, stack.getIdx());
+
+        // One step back
+        stack.undo();
+        assertEquals(1, stack.getIdx());
+
+        String packAsString = UndoPacket.make(stack, "some.Point", 1)
+                .extra("key_int", 20)
+                .extra("key_int", 30) // rewrited
+                .extra("key_str", "value")
+                .zipped(true)
+                .store();
+
+        System.out.println(packAsString.length());
+
+        // Распаковка информации и проверка соответствия стека ожидаемому.
+        UndoPacket packet = UndoPacket
+                .peek(packAsString, null)
+                .restore(null);
+
+        SubjInfo subjInfo = packet.subjInfo;
+        assertEquals("some.Point", subjInfo.id);
+        assertEquals(1, subjInfo.version);
+        assertEquals(30, subjInfo.extras.get("key_int"));
+        assertEquals("value", subjInfo.extras.get("key_str"));
+        assertEquals(2, subjInfo.extras.size());
+
+        // Раз стек ожидаемого типа, можно смело распаковывать остальное
+        UndoStack stack1 = packet.stack(null);
+        // Это логично - стек, воссозданный заново ничего общего не имеет с текущим по адресному пространству
+        assertNotEquals(stack, stack1);
+        // Зато это должно быть одинаково
+        assertEquals(stack.getIdx(), stack1.getIdx());
+        assertEquals(stack.getCleanIdx(), stack1.getCleanIdx());
+        assertEquals(stack.getUndoLimit(), stack1.getUndoLimit());
+
+        // We shoul understand that after deserialization it is new instance of subj.
+        Point pt1 = (Point) stack1.getSubj();
+        assertEquals(pt, pt1);
+
+        stack1.redo();
+        // After 2 commands applied
+        assertEquals(2, stack1.count());
+        assertEquals(10, pt1.getX());
+        assertEquals(20, pt1.getY());
+
+        stack1.undo();
+        stack1.undo();
+        assertEquals(-30, pt1.getX());
+        assertEquals(-40, pt1.getY());
+
+    }
+
+    @Test
+    public void testEmptyExtras() throws Exception {
+
+    }
+
+
+    /**
+     * Tests exception
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testNonSerializableException() throws Exception {
+
+        Color color = Color.RED;
+        UndoStack stack = new UndoStack(color, null);
+        thrown.expect(Exception.class);
+        UndoPacket
+                .make(stack, "", 1)
+                .store();
+        thrown = ExpectedException.none();
+
+    }
+
+    /**
+     * Simplified version for non-serializable with {@link com.gdetotut.jundo.UndoPacket.OnRestore}
+     */
+    @Test
+    public void testWithHandlers1() throws Exception {
+
+        {
+            Color color = Color.RED;
+            UndoStack stack = new UndoStack(color, null);
+            String str = UndoPacket
+                    .make(stack, "", 1)
+                    .onStore(subj -> "RED")
+                    .store();
+            // We need handler here 'cause we store with handler
+            UndoPacket
+                    .peek(str, null)
+                    .restore((processedSubj, subjInfo) -> Color.RED);
+        }
+
+    }
+
+    /**
+     * Tests exception
+     * Simplified version for non-serializable without {@link com.gdetotut.jundo.UndoPacket.OnRestore}
+     */
+    @Test
+    public void testWithHandlers2() throws Exception {
+
+        {
+            Color color = Color.RED;
+            UndoStack stack = new UndoStack(color, null);
+            String str = UndoPacket
+                    .make(stack, "", 1)
+                    .onStore(new UndoPacket.OnStore() {
+                        @Override
+                        public String handle(Object subj) {
+                            return "RED";
+                        }
+                    })
+                    .store();
+            thrown.expect(Exception.class);
+            // We need handler here 'cause we store with handler
+            UndoPacket.peek(str, null).restore(null);
+            thrown = ExpectedException.none();
+        }
+
+    }
+
+    /**
+     * Tests exception
+     * - Simplified version for serializable without {@link com.gdetotut.jundo.UndoPacket.OnRestore}
+     */
+    @Test
+    public void testWithHandlers3() throws Exception {
+
+        {
+            Point pt = new Point(1, 2);
+            UndoStack stack = new UndoStack(pt, null);
+            // Here handler is redundant, only for illustrating pair OnStore/OnRestore
+            String str = UndoPacket
+                    .make(stack, "", 1)
+                    .onStore(new UndoPacket.OnStore() {
+                        @Override
+                        public String handle(Object subj) {
+                            return "Point";
+                        }
+                    })
+                    .store();
+            thrown.expect(Exception.class);
+            // We need handler here 'cause we store with handler
+            UndoPacket.peek(str, null).restore(null);
+            thrown = ExpectedException.none();
+        }
+
+    }
+
+    @Test
+    public void testBinaryStore() throws Exception {
+
+        Point pt = new Point(-30, -40);
+        UndoStack stack = new UndoStack(pt, null);
+        for (int i = 0; i < 100; ++i) {
+            stack.push(new RefCmd<>(stack, "Change x", pt::getX, pt::setX, i, null));
+        }
+        stack.setIndex(50);
+
+        for (boolean zipped : new boolean[]{false, true}) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            UndoPacket.make(stack, "point", 2).extra("a", "b").zipped(zipped).store(out);
+            // Something after the packet stays in the stream
+            out.write(42);
+
+            ByteArrayInputStream in = new ByteArrayInputStream(out.toByteArray());
+            UndoPacket.Peeker peeker = UndoPacket.peekFrom(in, null);
+            assertEquals("point", peeker.subjInfo.id);
+            assertEquals(2, peeker.subjInfo.version);
+            assertEquals("b", peeker.subjInfo.extras.get("a"));
+            UndoStack stack1 = peeker.restore(null).stack(null);
+            if (!zipped) {
+                assertEquals(42, in.read());
+            }
+            assertEquals(stack.count(), stack1.count());
+            assertEquals(50, stack1.getIdx());
+            Point pt1 = (Point) stack1.getSubj();
+            assertEquals(49, pt1.getX());
+            stack1.setIndex(0);
+            assertEquals(-30, pt1.getX());
+        }
+
+        Path file = Files.createTempFile("jundo", ".packet");
+        try {
+            try (FileChannel ch = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                UndoPacket.make(stack, "point", 2).zipped(true).store(ch);
+            }
+            try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+                UndoStack stack1 = UndoPacket.peekFrom(ch, null).restore(null).stack(null);
+                assertEquals(100, stack1.count());
+                assertEquals(49, ((Point) stack1.getSubj()).getX());
+            }
+            UndoStack stack1 = UndoPacket.peekFrom(file, si -> si.id.equals("point")).restore(null).stack(null);
+            assertEquals(100, stack1.count());
+            assertEquals(49, ((Point) stack1.getSubj()).getX());
+        } finally {
+            Files.delete(file);
+        }
+
+        thrown.expect(Exception.class);
+        UndoPacket.peekFrom(new ByteArrayInputStream(new byte[]{1, 2, 3, 4, 5, 6}), null);
+        thrown = ExpectedException.none();
+    }
+
+    @Test
+    public void testByteBufferStore() throws Exception {
+
+        Point pt = new Point(-30, -40);
+        UndoStack stack = new UndoStack(pt, null);
+        stack.push(new RefCmd<>(stack, "Change x", pt::getX, pt::setX, 10, null));
+        stack.push(new RefCmd<>(stack, "Change y", pt::getY, pt::setY, 20, null));
+
+        for (boolean zipped : new boolean[]{false, true}) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            out.write(new byte[]{7, 7, 7});
+            UndoPacket.make(stack, "point", 3).zipped(zipped).store(out);
+            ByteBuffer buf = ByteBuffer.wrap(out.toByteArray());
+            buf.position(3);
+
+            UndoPacket.Peeker peeker = UndoPacket.peekFrom(buf, null);
+            assertEquals(3, buf.position());
+            assertEquals(3, peeker.subjInfo.version);
+            UndoStack stack1 = peeker.restore(null).stack(null);
+            assertEquals(2, stack1.count());
+            assertEquals("Change y", stack1.undoCaption());
+            stack1.undo();
+            assertEquals(-40, ((Point) stack1.getSubj()).getY());
+        }
+
+        thrown.expect(Exception.class);
+        UndoPacket.peekFrom(ByteBuffer.wrap(new byte[]{1, 2}), null);
+        thrown = ExpectedException.none();
+    }
+
+    @Test
+    public void testHeader() throws Exception {
+        stack.push(new RefCmd<>(stack, "Change x", subj::getX, subj::setX, 10, null));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        UndoPacket.make(stack, "точка", 5).store(out);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(out.toByteArray()));
+        assertEquals(0x4A554E44, in.readInt());
+        assertEquals(3, in.readByte());
+        assertEquals(0, in.readByte());
+        assertEquals(Codec.NONE.id(), in.readByte());
+        assertEquals(5, in.readInt());
+        byte[] id = new byte[in.readInt()];
+        in.readFully(id);
+        assertEquals("точка", new String(id, StandardCharsets.UTF_8));
+        assertEquals(-1, in.readLong());
+
+        String str = UndoPacket.make(stack, null, 5).extra("a", 1).zipped(true).store();
+        UndoPacket.Peeker peeker = UndoPacket.peek(str, null);
+        assertEquals(null, peeker.subjInfo.id);
+        assertEquals(1, peeker.subjInfo.extras.get("a"));
+        assertEquals(1, peeker.restore(null).stack(null).count());
+
+    }
+
+    /**
+     * Packets in resources/legacy are stored by the first released version from {@link some.LegacyStack}.
+     */
+    @Test
+    public void testLegacyPacket() throws Exception {
+        for (String name : new String[]{"/legacy/point.packet", "/legacy/point_zipped.packet"}) {
+            String str;
+            try (InputStream in = getClass().getResourceAsStream(name)) {
+                ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                byte[] buf = new byte[4096];
+                for (int n = in.read(buf); n > 0; n = in.read(buf)) {
+                    baos.write(buf, 0, n);
+                }
+                str = new String(baos.toByteArray(), StandardCharsets.US_ASCII);
+            }
+
+            UndoPacket.Peeker peeker = UndoPacket.peek(str, info -> info.version == 1);
+            assertEquals("point", peeker.subjInfo.id);
+            assertEquals(1, peeker.subjInfo.version);
+            UndoStack stack = peeker.restore(null).stack(null);
+            Point pt = (Point) stack.getSubj();
+            assertEquals(5, stack.count());
+            assertEquals(4, stack.getIdx());
+            assertEquals(2, stack.getCleanIdx());
+            assertEquals("macro", stack.undoCaption());
+            assertEquals("x4", stack.redoCaption());
+            assertEquals(2, stack.getCommand(2).childCount());
+            assertEquals(2, stack.getCommand(3).childCount());
+            assertEquals(3, pt.getX());
+            assertEquals(30, pt.getY());
+            stack.setIndex(0);
+            assertEquals(0, pt.getX());
+            assertEquals(0, pt.getY());
+            stack.setIndex(stack.count());
+            assertEquals(4, pt.getX());
+            assertEquals(30, pt.getY());
+            stack.setIndex(2);
+            assertEquals(1, pt.getX());
+            assertEquals(10, pt.getY());
+            assertTrue(stack.isClean());
+
+            // Restored stack is stored in the current form
+            UndoStack stack1 = UndoPacket.peek(UndoPacket.make(stack, "point", 2).store(), null)
+                    .restore(null).stack(null);
+            Point pt1 = (Point) stack1.getSubj();
+            assertEquals(stack.count(), stack1.count());
+            stack1.setIndex(stack1.count());
+            assertEquals(4, pt1.getX());
+            assertEquals(30, pt1.getY());
+            stack1.setIndex(0);
+            assertEquals(0, pt1.getX());
+            assertEquals(0, pt1.getY());
+        }
+    }
+
+    @Test
+    public void testCodecs() throws Exception {
+        for (int i = 0; i < 50; ++i) {
+            stack.push(new RefCmd<>(stack, "Change x", subj::getX, subj::setX, i, null));
+        }
+
+        int plain = UndoPacket.make(stack, "pt", 1).store().length();
+        int fast = UndoPacket.make(stack, "pt", 1).codec(Codec.deflate(Deflater.BEST_SPEED)).store().length();
+        int best = UndoPacket.make(stack, "pt", 1)
+                .codec(Codec.deflateWithDictionary(Deflater.BEST_COMPRESSION)).store().length();
+        assertTrue(fast < plain);
+        assertTrue(best < fast);
+
+        Codec[] codecs = {Codec.NONE, Codec.GZIP, Codec.deflate(Deflater.BEST_SPEED),
+                Codec.deflateWithDictionary(Deflater.BEST_COMPRESSION),
+                Codec.deflate(20, Deflater.DEFAULT_COMPRESSION, "Change x".getBytes(StandardCharsets.UTF_8))};
+        UndoPacket.registerCodec(codecs[4]);
+        for (Codec codec : codecs) {
+            String str = UndoPacket.make(stack, "pt", 1).extra("a", 1).codec(codec).store();
+            UndoPacket.Peeker peeker = UndoPacket.peek(str, null);
+            assertEquals(1, peeker.subjInfo.extras.get("a"));
+            UndoStack stack1 = peeker.restore(null).stack(null);
+            assertEquals(50, stack1.count());
+            stack1.undo();
+            assertEquals(48, ((Point) stack1.getSubj()).getX());
+        }
+
+        try {
+            Codec.deflate(3, Deflater.DEFAULT_COMPRESSION, new byte[1]);
+            fail("Reserved id");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Command with the registered serializer.
+     */
+    static class ShiftCmd extends UndoCommand {
+
+        final int dx;
+
+        ShiftCmd(UndoStack owner, int dx) {
+            super(owner, "Shift", null);
+            this.dx = dx;
+        }
+
+        UndoStack getOwner() {
+            return owner;
+        }
+
+        @Override
+        protected void doRedo() {
+            Point pt = (Point) owner.getSubj();
+            pt.setX(pt.getX() + dx);
+        }
+
+        @Override
+        protected void doUndo() {
+            Point pt = (Point) owner.getSubj();
+            pt.setX(pt.getX() - dx);
+        }
+    }
+
+    @Test
+    public void testSerializers() throws Exception {
+        UndoPacket.registerSerializer(ShiftCmd.class, 100, new UndoSerializer<ShiftCmd>() {
+            @Override
+            public void write(ShiftCmd cmd, ObjectOutput out) throws IOException {
+                out.writeObject(cmd.getOwner());
+                out.writeInt(cmd.dx);
+            }
+
+            @Override
+            public ShiftCmd read(ObjectInput in) throws IOException, ClassNotFoundException {
+                return new ShiftCmd((UndoStack) in.readObject(), in.readInt());
+            }
+        });
+
+        for (int i = 0; i < 1000; ++i) {
+            stack.push(new RefCmd<>(stack, "Change x", subj::getX, subj::setX, i, null));
+        }
+        UndoCommand macro = new UndoCommand(stack, "macro", null);
+        new RefCmd<>(stack, "Change y", "y", subj::getY, subj::setY, 5, macro);
+        new UndoCommand(stack, "empty", macro);
+        stack.push(macro);
+        stack.push(new ShiftCmd(stack, 10));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        UndoPacket.make(stack, "pt", 1).store(out);
+        // Registered commands take a few dozens of bytes, the setter is written once.
+        assertTrue(out.size() < 40 * 1000);
+
+        UndoStack stack1 = UndoPacket.peekFrom(new ByteArrayInputStream(out.toByteArray()), null)
+                .restore(null).stack(null);
+        Point pt1 = (Point) stack1.getSubj();
+        assertEquals(1002, stack1.count());
+        assertEquals(1009, pt1.getX());
+        assertEquals(ShiftCmd.class, stack1.getCommand(1001).getClass());
+        assertEquals(2, stack1.getCommand(1000).childCount());
+        assertEquals("empty", stack1.getCommand(1000).child(1).getCaption());
+
+        stack1.undo();
+        assertEquals(999, pt1.getX());
+        stack1.undo();
+        assertEquals(1, pt1.getY());
+        stack1.setIndex(0);
+        assertEquals(1, pt1.getX());
+        stack1.setIndex(1002);
+        assertEquals(1009, pt1.getX());
+        assertEquals(5, pt1.getY());
+    }
+
+    /**
+     * Command that counts its deserializations.
+     */
+    static class CountedCmd extends UndoCommand {
+
+        static int reads;
+
+        CountedCmd(UndoStack owner, String caption) {
+            super(owner, caption, null);
+        }
+
+        UndoStack getOwner() {
+            return owner;
+        }
+
+        private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+            in.defaultReadObject();
+            ++reads;
+        }
+    }
+
+    @Test
+    public void testLazyRestore() throws Exception {
+        for (int i = 0; i < 100; ++i) {
+            stack.push(new CountedCmd(stack, "cmd " + i));
+        }
+        stack.setIndex(70);
+        stack.setClean();
+
+        String str = UndoPacket.make(stack, "point", 1).lazy(true).store();
+        CountedCmd.reads = 0;
+        UndoStack stack1 = UndoPacket.peek(str, null).restore(null, true).stack(null);
+        assertEquals(0, CountedCmd.reads);
+        assertEquals(100, stack1.count());
+        assertEquals(70, stack1.getIdx());
+        assertEquals(70, stack1.getCleanIdx());
+        assertEquals("cmd 69", stack1.undoCaption());
+        assertEquals("cmd 70", stack1.redoCaption());
+
+        stack1.undo();
+        stack1.undo();
+        assertEquals(2, CountedCmd.reads);
+        assertEquals(CountedCmd.class, stack1.getCommand(0).getClass());
+        assertTrue(stack1 == ((CountedCmd) stack1.getCommand(0)).getOwner());
+        assertEquals(3, CountedCmd.reads);
+        stack1.undo();
+        assertEquals(4, CountedCmd.reads);
+
+        // Not reached commands are stored as they are
+        CountedCmd.reads = 0;
+        UndoStack stack2 = UndoPacket.peek(UndoPacket.make(stack1, "point", 1).lazy(true).store(), null)
+                .restore(null).stack(null);
+        assertEquals(100, CountedCmd.reads);
+        assertEquals(67, stack2.getIdx());
+        assertEquals(CountedCmd.class, stack2.getCommand(50).getClass());
+    }
+
+    /**
+     * Extra value that counts its deserializations.
+     */
+    static class CountedExtra implements Serializable {
+
+        static int reads;
+
+        private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+            in.defaultReadObject();
+            ++reads;
+        }
+    }
+
+    @Test
+    public void testLazyExtras() throws Exception {
+        Point pt = new Point(1, 2);
+        UndoStack stack = new UndoStack(pt, null);
+        String str = UndoPacket.make(stack, "point", 1).extra("a", new CountedExtra()).store();
+
+        // Predicate checks id and version without reading extras
+        CountedExtra.reads = 0;
+        UndoPacket.Peeker peeker = UndoPacket.peek(str, info -> "point".equals(info.id) && info.version == 1);
+        assertEquals(0, CountedExtra.reads);
+        assertTrue(peeker.subjInfo.extras.get("a") instanceof CountedExtra);
+        assertTrue(peeker.subjInfo.extras.containsKey("a"));
+        assertEquals(1, CountedExtra.reads);
+    }
+
+    @Test
+    public void testNew() throws Exception {
+
+        Point pt = new Point(1, 2);
+        UndoStack stack = new UndoStack(pt, null);
+        // Here handler is redundant, only for illustrating pair OnStore/OnRestore
+        String str = UndoPacket
+                .make(stack, "", 1)
+                .onStore(subj -> "Point")
+                .store();
+
+        SubjInfo subjInfo = UndoPacket.peek(str, p -> p.id.equals("abc")).subjInfo;
+        UndoPacket packet = UndoPacket
+                .peek(str, it -> it.id.equals("abc"))
+                .restore((processedSubj, it) -> "");
+        UndoStack stack1 = UndoPacket
+                .peek(str, it -> it.id.equals("abc"))
+                .restore((processedSubj, it) -> "")
+                .stack((s, si) -> {
+                    if (si.version == 2) {
+                        s.getLocalContexts().put("a", "aa");
+                        s.getLocalContexts().put("b", "bb");
+                    }
+                });
+
+    }
+
+}
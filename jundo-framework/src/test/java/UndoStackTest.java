@@ -6,14 +6,29 @@ import org.junit.Test;
 import org.junit.rules.ExpectedException;
 import some.*;
 
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutput;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
+import java.util.function.Predicate;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static some.NonTrivialClass.Item.Type.CIRCLE;
 import static some.NonTrivialClass.Item.Type.RECT;
 import static some.TextSampleCommands.SUBJ_ID;
@@ -430,6 +445,479 @@ public class UndoStackTest implements Serializable {
         assertEquals((Integer) 9, subj.getValue());
     }
 
+    /**
+     * Evicting commands from the bottom many times keeps order and random access.
+     */
+    @Test
+    public void testLimitsWrapAround() throws Exception {
+        SimpleClass<Integer> subj = new SimpleClass<>(Integer.class);
+        UndoStack stack = new UndoStack(subj, null);
+        stack.setUndoLimit(10);
+        for (int i = 0; i < 1000; ++i) {
+            stack.push(new RefCmd<>(stack, String.valueOf(i), subj::getValue, subj::setValue, i, null));
+            if (i % 7 == 0) {
+                // Truncate the top sometimes
+                stack.undo();
+                stack.push(new RefCmd<>(stack, String.valueOf(i), subj::getValue, subj::setValue, i, null));
+            }
+        }
+        assertEquals(10, stack.count());
+        assertEquals(10, stack.getIdx());
+        for (int i = 0; i < 10; ++i) {
+            assertEquals(String.valueOf(990 + i), stack.caption(i));
+        }
+        stack.setIndex(3);
+        assertEquals((Integer) 992, subj.getValue());
+        assertEquals("993", stack.redoCaption());
+        stack.setIndex(10);
+        assertEquals((Integer) 999, subj.getValue());
+    }
+
+    /**
+     * Commands are evicted when their estimated size exceeds the memory limit.
+     */
+    @Test
+    public void testMemoryLimit() throws Exception {
+        SimpleClass<String> subj = new SimpleClass<>(String.class);
+        UndoStack stack = new UndoStack(subj, null);
+        stack.setMemoryLimit(100);
+        assertEquals(100, stack.getMemoryLimit());
+        // Without estimator the limit has no effect
+        stack.push(new RefCmd<>(stack, "0123456789", subj::getValue, subj::setValue, "a", null));
+        assertEquals(0, stack.getMemoryUsed());
+
+        // Size of command is the length of its caption here
+        stack.setSizeEstimator(cmd -> cmd.getCaption().length());
+        assertEquals(10, stack.getMemoryUsed());
+        for (int i = 0; i < 8; ++i) {
+            stack.push(new RefCmd<>(stack, "0123456789", subj::getValue, subj::setValue, "b" + i, null));
+        }
+        assertEquals(9, stack.count());
+        assertEquals(90, stack.getMemoryUsed());
+
+        // Big one pushes out 4 small ones
+        String big = "0123456789012345678901234567890123456789012345678";
+        stack.push(new RefCmd<>(stack, big, subj::getValue, subj::setValue, "c", null));
+        assertEquals(6, stack.count());
+        assertEquals(6, stack.getIdx());
+        assertEquals(99, stack.getMemoryUsed());
+
+        // Redo tail is not counted
+        stack.undo();
+        stack.undo();
+        stack.push(new RefCmd<>(stack, "0", subj::getValue, subj::setValue, "d", null));
+        assertEquals(5, stack.count());
+        assertEquals(41, stack.getMemoryUsed());
+
+        // Too big one stays alone
+        stack.push(new RefCmd<>(stack, big + big + big, subj::getValue, subj::setValue, "e", null));
+        assertEquals(1, stack.count());
+        assertEquals(1, stack.getIdx());
+        assertEquals(-1, stack.getCleanIdx());
+        stack.undo();
+        assertEquals("d", subj.getValue());
+
+        stack.setSizeEstimator(null);
+        assertEquals(0, stack.getMemoryUsed());
+    }
+
+    /**
+     * Cold history is spilled to the file and paged in when needed.
+     */
+    @Test
+    public void testSpill() throws Exception {
+        Path file = Files.createTempFile("jundo", ".spill");
+        SimpleClass<Integer> subj = new SimpleClass<>(Integer.class);
+        UndoStack stack = new UndoStack(subj, null);
+        stack.setSpillFile(file, 5);
+        UndoCommand first = new RefCmd<>(stack, "0", subj::getValue, subj::setValue, 0, null);
+        stack.push(first);
+        for (int i = 1; i < 100; ++i) {
+            stack.push(new RefCmd<>(stack, String.valueOf(i), subj::getValue, subj::setValue, i, null));
+        }
+        assertEquals(100, stack.count());
+        // Read back from the file
+        assertNotEquals(first, stack.getCommand(0));
+        assertEquals("10", stack.caption(10));
+
+        // Paged in commands act on the live subject
+        stack.setIndex(50);
+        assertEquals((Integer) 49, subj.getValue());
+        while (stack.canUndo()) {
+            stack.undo();
+            assertEquals(stack.getIdx() == 0 ? null : (Integer) (stack.getIdx() - 1), subj.getValue());
+        }
+        stack.setIndex(stack.count());
+        assertEquals((Integer) 99, subj.getValue());
+        assertEquals(RefCmd.class, stack.getCommand(0).getClass());
+
+        // New branch from the cold part
+        stack.setIndex(20);
+        stack.push(new RefCmd<>(stack, "new", subj::getValue, subj::setValue, 1000, null));
+        assertEquals(21, stack.count());
+        stack.undo();
+        assertEquals((Integer) 19, subj.getValue());
+
+        // Spilled commands are stored as usual
+        String store = UndoPacket.make(stack, "spill", 1).store();
+        UndoStack stackBack = UndoPacket.peek(store, null).restore(null).stack(null);
+        assertEquals(21, stackBack.count());
+        assertEquals(20, stackBack.getIdx());
+        assertEquals("new", stackBack.caption(20));
+
+        stack.setSpillFile(null, 0);
+        assertFalse(Files.exists(file));
+        stack.setIndex(0);
+        assertEquals(null, subj.getValue());
+        stack.setIndex(21);
+        assertEquals((Integer) 1000, subj.getValue());
+    }
+
+    /**
+     * Records of evicted and deleted commands are reused, so the spill file does not grow with the history.
+     */
+    @Test
+    public void testSpillReuse() throws Exception {
+        Path file = Files.createTempFile("jundo", ".spill");
+        SimpleClass<Integer> subj = new SimpleClass<>(Integer.class);
+        UndoStack stack = new UndoStack(subj, null);
+        stack.setUndoLimit(10);
+        stack.setSpillFile(file, 2);
+        for (int i = 0; i < 20; ++i) {
+            stack.push(new RefCmd<>(stack, "x", subj::getValue, subj::setValue, i, null));
+        }
+        long size = stack.getSpillFileSize();
+        for (int i = 20; i < 500; ++i) {
+            stack.push(new RefCmd<>(stack, "x", subj::getValue, subj::setValue, i, null));
+        }
+        assertTrue(stack.getSpillFileSize() < 2 * size);
+
+        // New branches free the cold part they remove
+        for (int i = 0; i < 50; ++i) {
+            stack.setIndex(1);
+            for (int j = 0; j < 9; ++j) {
+                stack.push(new RefCmd<>(stack, "y", subj::getValue, subj::setValue, j, null));
+            }
+        }
+        assertTrue(stack.getSpillFileSize() < 2 * size);
+        stack.setIndex(0);
+        assertEquals((Integer) 489, subj.getValue());
+        stack.setIndex(10);
+        assertEquals((Integer) 8, subj.getValue());
+        stack.setSpillFile(null, 0);
+    }
+
+    /**
+     * Commands capturing a part of the subject are kept in memory, so undo changes the live part.
+     */
+    @Test
+    public void testSpillCaptured() throws Exception {
+        Path file = Files.createTempFile("jundo", ".spill");
+        List<Point> subj = new ArrayList<>(Arrays.asList(new Point(0, 0)));
+        Point pt = subj.get(0);
+        UndoStack stack = new UndoStack(subj, null);
+        stack.setSpillFile(file, 1);
+        for (int i = 1; i <= 5; ++i) {
+            stack.push(new RefCmd<>(stack, "x", pt::getX, pt::setX, i, null));
+        }
+        assertEquals(5, stack.count());
+        stack.setIndex(0);
+        assertEquals(0, pt.getX());
+        stack.setIndex(5);
+        assertEquals(5, pt.getX());
+        stack.setSpillFile(null, 0);
+    }
+
+    /**
+     * Estimator sees only real commands: spilled and lazily restored ones are estimated when they are read.
+     */
+    @Test
+    public void testMemoryLimitStubs() throws Exception {
+        Path file = Files.createTempFile("jundo", ".spill");
+        SimpleClass<Integer> subj = new SimpleClass<>(Integer.class);
+        UndoStack stack = new UndoStack(subj, null);
+        stack.setSpillFile(file, 2);
+        for (int i = 1; i <= 6; ++i) {
+            stack.push(new RefCmd<>(stack, "0123456789", subj::getValue, subj::setValue, i, null));
+        }
+        SizeEstimator estimator = cmd -> {
+            assertEquals(RefCmd.class, cmd.getClass());
+            return cmd.getCaption().length();
+        };
+        stack.setSizeEstimator(estimator);
+        assertEquals(20, stack.getMemoryUsed());
+        stack.setIndex(0);
+        assertEquals(60, stack.getMemoryUsed());
+
+        UndoStack stackBack = UndoPacket.peek(UndoPacket.make(stack, "spill", 1).lazy(true).store(), null)
+                .restore(null, true).stack(null);
+        stack.setSpillFile(null, 0);
+        stackBack.setSizeEstimator(estimator);
+        assertEquals(0, stackBack.getMemoryUsed());
+        stackBack.redo();
+        assertEquals(10, stackBack.getMemoryUsed());
+        stackBack.setIndex(6);
+        assertEquals(60, stackBack.getMemoryUsed());
+    }
+
+    /**
+     * Spilled commands are stored without paging them in, and the removed ones are not paged out.
+     */
+    @Test
+    public void testSpillStore() throws Exception {
+        Path file = Files.createTempFile("jundo", ".spill");
+        UndoStack stack = new UndoStack(new Point(0, 0), null);
+        stack.setSpillFile(file, 2);
+        for (int i = 0; i < 10; ++i) {
+            stack.push(new Counted(stack, String.valueOf(i)));
+        }
+
+        Counted.reads = 0;
+        String store = UndoPacket.make(stack, "spill", 1).store();
+        assertEquals(0, Counted.reads);
+        UndoStack stackBack = UndoPacket.peek(store, null).restore(null).stack(null);
+        assertEquals(10, stackBack.count());
+        assertEquals(10, Counted.reads);
+        assertEquals("3", stackBack.caption(3));
+
+        // Commands paged in by setIndex are removed with the new branch
+        stack.setIndex(2);
+        stack.push(new Counted(stack, "new"));
+        Counted.writes = 0;
+        stack.setIndex(0);
+        assertEquals(0, Counted.writes);
+        stack.setSpillFile(null, 0);
+        assertEquals(3, stack.count());
+        assertEquals("new", stack.caption(2));
+    }
+
+    @Test
+    public void testPushAll() throws Exception {
+        SimpleClass<Integer> subj = new SimpleClass<>(Integer.class);
+        UndoStack stack = new UndoStack(subj, null);
+        stack.setUndoLimit(5);
+        stack.push(new RefCmd<>(stack, "a", subj::getValue, subj::setValue, 100, null));
+        stack.push(new RefCmd<>(stack, "b", subj::getValue, subj::setValue, 200, null));
+        stack.undo();
+
+        List<Integer> indices = new ArrayList<>();
+        stack.setWatcher(new UndoWatcher() {
+            @Override
+            public void indexChanged(int idx) {
+                indices.add(idx);
+            }
+        });
+        List<UndoCommand> batch = new ArrayList<>();
+        for (int i = 0; i < 10; ++i) {
+            // Getter is read at construction, so the batch is made as a chain of values.
+            int prev = i == 0 ? 100 : i - 1;
+            batch.add(new RefCmd<>(stack, String.valueOf(i), () -> prev, subj::setValue, i, null));
+        }
+        stack.pushAll(batch);
+        assertEquals(Arrays.asList(5), indices);
+        assertEquals(5, stack.count());
+        assertEquals(5, stack.getIdx());
+        assertEquals((Integer) 9, subj.getValue());
+        assertEquals("5", stack.caption(0));
+        assertEquals(-1, stack.getCleanIdx());
+
+        stack.setIndex(0);
+        assertEquals((Integer) 4, subj.getValue());
+        stack.pushAll(new ArrayList<>());
+        assertEquals(5, stack.count());
+
+        // Commands without merge id are not merged, as in push()
+        stack.pushAll(Arrays.asList(new Greedy(stack), new Greedy(stack)));
+        assertEquals(2, stack.count());
+    }
+
+    /**
+     * Command that would merge anything, but has no merge id.
+     */
+    static class Greedy extends UndoCommand {
+        Greedy(UndoStack owner) {
+            super(owner, "greedy", null);
+        }
+
+        @Override
+        public boolean mergeWith(UndoCommand cmd) {
+            return true;
+        }
+    }
+
+    @Test
+    public void testWatchModes() throws Exception {
+        SimpleClass<Integer> subj = new SimpleClass<>(Integer.class);
+        UndoStack stack = new UndoStack(subj, null);
+        List<String> events = new ArrayList<>();
+        stack.setWatcher(new UndoWatcher() {
+            @Override
+            public void indexChanged(int idx) {
+                events.add("idx " + idx);
+            }
+
+            @Override
+            public void canUndoChanged(boolean canUndo) {
+                events.add("canUndo " + canUndo);
+            }
+
+            @Override
+            public void cleanChanged(boolean clean) {
+                events.add("clean " + clean);
+            }
+        }, WatchMode.CHANGES);
+        assertEquals(WatchMode.CHANGES, stack.getWatchMode());
+        stack.push(new RefCmd<>(stack, "1", subj::getValue, subj::setValue, 1, null));
+        stack.push(new RefCmd<>(stack, "2", subj::getValue, subj::setValue, 2, null));
+        assertEquals(Arrays.asList("idx 1", "canUndo true", "clean false", "idx 2"), events);
+        events.clear();
+        stack.setIndex(0);
+        assertEquals(Arrays.asList("idx 0", "canUndo false", "clean true"), events);
+
+        List<UndoState> states = new ArrayList<>();
+        stack.setWatcher(new UndoWatcher() {
+            @Override
+            public void indexChanged(int idx) {
+                fail("only stateChanged is expected");
+            }
+
+            @Override
+            public void stateChanged(UndoState old, UndoState now) {
+                assertEquals(states.isEmpty() ? 0 : states.get(states.size() - 1).getIdx(), old.getIdx());
+                states.add(now);
+            }
+        }, WatchMode.STATE);
+        stack.redo();
+        stack.redo();
+        stack.redo();
+        assertEquals(2, states.size());
+        assertEquals("2", states.get(1).getUndoCaption());
+        assertFalse(states.get(1).canRedo());
+        assertFalse(states.get(1).isClean());
+    }
+
+    /**
+     * Reading commands from their stubs doesn't change the state seen by the watcher.
+     */
+    @Test
+    public void testStateOfStubs() throws Exception {
+        SimpleClass<Integer> subj = new SimpleClass<>(Integer.class);
+        UndoStack stack = new UndoStack(subj, null);
+        for (int i = 1; i <= 3; ++i) {
+            stack.push(new RefCmd<>(stack, String.valueOf(i), subj::getValue, subj::setValue, i, null));
+        }
+        stack.undo();
+        stack.setClean();
+        UndoStack stack1 = UndoPacket.peek(UndoPacket.make(stack, "subj", 1).lazy(true).store(), null)
+                .restore(null, true).stack(null);
+
+        List<UndoState> states = new ArrayList<>();
+        stack1.setWatcher(new UndoWatcher() {
+            @Override
+            public void stateChanged(UndoState old, UndoState now) {
+                states.add(now);
+            }
+        }, WatchMode.STATE);
+        assertEquals(RefCmd.class, stack1.getCommand(1).getClass());
+        assertEquals(RefCmd.class, stack1.getCommand(2).getClass());
+        stack1.setClean();
+        assertTrue(states.isEmpty());
+        stack1.undo();
+        assertEquals(1, states.size());
+        assertEquals("1", states.get(0).getUndoCaption());
+    }
+
+    @Test
+    public void testRefCmdNetEffect() throws Exception {
+        SimpleClass<Integer> subj = new SimpleClass<>(Integer.class);
+        int[] calls = {0};
+        UndoStack stack = new UndoStack(subj, null);
+        for (int i = 0; i < 50; ++i) {
+            stack.push(new RefCmd<>(stack, "slider", "value", subj::getValue, v -> {
+                ++calls[0];
+                subj.setValue(v);
+            }, i, null));
+        }
+        stack.push(new UndoCommand(stack, "empty", null));
+        for (int i = 50; i < 100; ++i) {
+            stack.push(new RefCmd<>(stack, "slider", "value", subj::getValue, v -> {
+                ++calls[0];
+                subj.setValue(v);
+            }, i, null));
+        }
+
+        calls[0] = 0;
+        stack.setIndex(0);
+        assertEquals(null, subj.getValue());
+        assertEquals(2, calls[0]);
+
+        calls[0] = 0;
+        stack.setIndex(30);
+        assertEquals((Integer) 29, subj.getValue());
+        assertEquals(1, calls[0]);
+
+        calls[0] = 0;
+        stack.setIndex(stack.count());
+        assertEquals((Integer) 99, subj.getValue());
+        assertEquals(2, calls[0]);
+    }
+
+    @Test
+    public void testCheckpoints() throws Exception {
+        SimpleClass<Integer> subj = new SimpleClass<>(Integer.class);
+        int[] calls = {0};
+        UndoStack stack = new UndoStack(subj, null);
+        stack.setCheckpoints(new Snapshotter() {
+            @Override
+            public Object take(Object s) {
+                return ((SimpleClass<Integer>) s).getValue();
+            }
+
+            @Override
+            public void restore(Object s, Object snapshot) {
+                ((SimpleClass<Integer>) s).setValue((Integer) snapshot);
+            }
+
+            @Override
+            public long size(Object snapshot) {
+                return 100;
+            }
+        }, 10, 800);
+        for (int i = 0; i < 100; ++i) {
+            stack.push(new RefCmd<>(stack, String.valueOf(i), subj::getValue, v -> {
+                ++calls[0];
+                subj.setValue(v);
+            }, i, null));
+        }
+
+        // Jump to the bottom restores the first checkpoint
+        calls[0] = 0;
+        stack.setIndex(1);
+        assertEquals((Integer) 0, subj.getValue());
+        assertTrue(calls[0] <= 1);
+
+        // Checkpoints were thinned to fit the limit, so the jump replays up to half of the doubled interval
+        calls[0] = 0;
+        stack.setIndex(73);
+        assertEquals((Integer) 72, subj.getValue());
+        assertTrue(calls[0] <= 10);
+
+        // Truncated states are not restored
+        stack.setIndex(30);
+        stack.push(new RefCmd<>(stack, "new", subj::getValue, subj::setValue, 1000, null));
+        stack.setIndex(0);
+        stack.setIndex(stack.count());
+        assertEquals((Integer) 1000, subj.getValue());
+        stack.setIndex(29);
+        assertEquals((Integer) 28, subj.getValue());
+
+        stack.setCheckpoints(null, 0, 0);
+        stack.setIndex(0);
+        assertEquals(null, subj.getValue());
+        stack.setIndex(31);
+        assertEquals((Integer) 1000, subj.getValue());
+    }
+
     /**
      * Set and check clean:
      * - setClean
@@ -970,6 +1458,229 @@ public class UndoStackTest implements Serializable {
 
     }
 
+    /**
+     * Command that can not be serialized at all.
+     */
+    static class Opaque extends UndoCommand {
+        final Object lock = new Object();
+
+        Opaque(UndoStack owner, UndoCommand parent) {
+            super(owner, "opaque", parent);
+        }
+    }
+
+    /**
+     * Non-serializable command with copy constructor.
+     */
+    static class CopyCtorCmd extends Opaque {
+        CopyCtorCmd(UndoStack owner, UndoCommand parent) {
+            super(owner, parent);
+        }
+
+        CopyCtorCmd(CopyCtorCmd src) {
+            super(src.owner, null);
+        }
+    }
+
+    /**
+     * Non-serializable command that can be cloned.
+     */
+    static class CloneableCmd extends Opaque implements Cloneable {
+        CloneableCmd(UndoStack owner) {
+            super(owner, null);
+        }
+    }
+
+    /**
+     * Command that counts its serialization.
+     */
+    static class Counted extends UndoCommand {
+        static int reads;
+        static int writes;
+
+        Counted(UndoStack owner, String caption) {
+            super(owner, caption, null);
+        }
+
+        private void writeObject(ObjectOutputStream out) throws IOException {
+            ++writes;
+            out.defaultWriteObject();
+        }
+
+        private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+            ++reads;
+            in.defaultReadObject();
+        }
+    }
+
+    /**
+     * Non-serializable command for a codec.
+     */
+    static class CodedCmd extends Opaque implements Cloneable {
+        CodedCmd(UndoStack owner) {
+            super(owner, null);
+        }
+    }
+
+    /**
+     * Command that shows its owner.
+     */
+    static class Probe extends UndoCommand {
+        Probe(UndoStack owner) {
+            super(owner, "probe", null);
+        }
+
+        UndoStack getOwner() {
+            return owner;
+        }
+    }
+
+    /**
+     * Cloning should not write the owner stack with its history.
+     */
+    @Test
+    public void testCloneKeepsOwner() throws Exception {
+
+        Point pt = new Point(1, 1);
+        UndoStack stack = new UndoStack(pt, null);
+        stack.push(new RefCmd<>(stack, "1", pt::getX, pt::setX, 2, null));
+        // Now the history holds non-serializable command.
+        new Opaque(stack, stack.getCommand(0));
+
+        Probe cmd = new Probe(stack);
+        new RefCmd<>(stack, "2", pt::getX, pt::setX, 3, cmd);
+        Probe copy = (Probe) stack.clone(cmd);
+        assertNotEquals(cmd, copy);
+        assertEquals("probe", copy.getCaption());
+        assertEquals(1, copy.childCount());
+        assertEquals(stack, copy.getOwner());
+    }
+
+    /**
+     * Outside macro pushed command is not copied, so it may be non-serializable.
+     */
+    @Test
+    public void testPushWithoutCopy() throws Exception {
+        UndoStack stack = new UndoStack(new Point(1, 1), null);
+        stack.push(new Opaque(stack, null));
+        stack.push(new Opaque(stack, null));
+        assertEquals(2, stack.count());
+        stack.undo();
+        assertEquals(1, stack.getIdx());
+
+        // Recording macro needs copy
+        stack.beginMacro("macro");
+        thrown.expect(java.io.NotSerializableException.class);
+        stack.push(new Opaque(stack, null));
+        thrown = ExpectedException.none();
+    }
+
+    /**
+     * Commands are copied without serialization when possible.
+     */
+    @Test
+    public void testCopiers() throws Exception {
+        UndoStack stack = new UndoStack(new Point(1, 1), null);
+
+        // Copy constructor
+        CopyCtorCmd cmd1 = new CopyCtorCmd(stack, null);
+        new CopyCtorCmd(stack, cmd1);
+        UndoCommand copy1 = stack.clone(cmd1);
+        assertEquals(CopyCtorCmd.class, copy1.getClass());
+        assertNotEquals(cmd1, copy1);
+        assertEquals(1, copy1.childCount());
+        assertNotEquals(cmd1.child(0), copy1.child(0));
+
+        // Cloneable
+        CloneableCmd cmd2 = new CloneableCmd(stack);
+        UndoCommand copy2 = stack.clone(cmd2);
+        assertEquals(CloneableCmd.class, copy2.getClass());
+        assertNotEquals(cmd2, copy2);
+        assertEquals("opaque", copy2.getCaption());
+
+        // Registered copier wins
+        stack.setCopier(CloneableCmd.class, cmd -> {
+            CloneableCmd c = new CloneableCmd(stack);
+            c.setCaption("registered");
+            return c;
+        });
+        assertEquals("registered", stack.clone(cmd2).getCaption());
+        stack.setCopier(CloneableCmd.class, null);
+        assertEquals("opaque", stack.clone(cmd2).getCaption());
+
+        // Codec registered after the first copy
+        CodedCmd cmd3 = new CodedCmd(stack);
+        assertEquals("opaque", stack.clone(cmd3).getCaption());
+        UndoPacket.registerSerializer(CodedCmd.class, 101, new CommandCodec<CodedCmd>(CodedCmd.class, 101) {
+            @Override
+            protected CodedCmd create(UndoStack owner, String caption) {
+                return new CodedCmd(owner);
+            }
+
+            @Override
+            protected void writeFields(CodedCmd cmd, ObjectOutput out) {
+            }
+
+            @Override
+            protected void readFields(CodedCmd cmd, ObjectInput in) {
+            }
+
+            @Override
+            protected void copyFields(CodedCmd src, CodedCmd dst) {
+                dst.setCaption("codec");
+            }
+        });
+        assertEquals("codec", stack.clone(cmd3).getCaption());
+
+        // Macro records copies
+        stack.beginMacro("macro");
+        stack.push(new CopyCtorCmd(stack, null));
+        stack.push(new CloneableCmd(stack));
+        stack.endMacro();
+        assertEquals(2, stack.getMacros().get(0).childCount());
+    }
+
+    /**
+     * Broken entry of the codec service fails only its own commands, so other packets are stored and restored.
+     */
+    @Test
+    public void testBrokenCodecEntry() throws Exception {
+        Path dir = Files.createTempDirectory("jundo");
+        Path service = Files.createDirectories(dir.resolve("META-INF/services"))
+                .resolve("com.gdetotut.jundo.CommandCodec");
+        Files.write(service, Arrays.asList("no.such.Codec", "java.lang.String"), StandardCharsets.UTF_8);
+
+        // Fresh copy of the library, so it loads codecs with the broken entries
+        URL classes = UndoStack.class.getProtectionDomain().getCodeSource().getLocation();
+        ClassLoader loader = new URLClassLoader(new URL[]{classes, dir.toUri().toURL()},
+                ClassLoader.getSystemClassLoader().getParent());
+        Thread thread = Thread.currentThread();
+        ClassLoader old = thread.getContextClassLoader();
+        thread.setContextClassLoader(loader);
+        try {
+            Class<?> stackClass = loader.loadClass("com.gdetotut.jundo.UndoStack");
+            Class<?> cmdClass = loader.loadClass("com.gdetotut.jundo.UndoCommand");
+            Class<?> packetClass = loader.loadClass("com.gdetotut.jundo.UndoPacket");
+            Object stack = stackClass.getConstructor(Object.class, loader.loadClass("com.gdetotut.jundo.UndoGroup"))
+                    .newInstance("subj", null);
+            Object cmd = cmdClass.getConstructor(stackClass, String.class, cmdClass).newInstance(stack, "cmd", null);
+            stackClass.getMethod("push", cmdClass).invoke(stack, cmd);
+
+            Object builder = packetClass.getMethod("make", stackClass, String.class, int.class)
+                    .invoke(null, stack, "subj", 1);
+            String str = (String) builder.getClass().getMethod("store").invoke(builder);
+            Object peeker = packetClass.getMethod("peek", String.class, Predicate.class).invoke(null, str, null);
+            Object packet = peeker.getClass().getMethod("restore", loader.loadClass("com.gdetotut.jundo.UndoPacket$OnRestore"))
+                    .invoke(peeker, new Object[]{null});
+            Object stack1 = packetClass.getMethod("stack", loader.loadClass("com.gdetotut.jundo.UndoPacket$OnPrepareStack"))
+                    .invoke(packet, new Object[]{null});
+            assertEquals(1, stackClass.getMethod("count").invoke(stack1));
+            assertEquals("cmd", stackClass.getMethod("undoCaption").invoke(stack1));
+        } finally {
+            thread.setContextClassLoader(old);
+        }
+    }
+
     // for 100% test coverage
     @Test
     public void testMacros2() {
@@ -0,0 +1,35 @@
+package some;
+
+import com.gdetotut.jundo.RefCmd;
+import com.gdetotut.jundo.UndoCommand;
+import com.gdetotut.jundo.UndoStack;
+
+/**
+ * Stack for the packet stored by the first released version, see legacy/point.packet in test resources.
+ * <p>It uses only the API of that version; the packet's lambdas are resolved through this class.
+ */
+public class LegacyStack {
+
+    public static UndoStack make() throws Exception {
+        Point pt = new Point(0, 0);
+        UndoStack stack = new UndoStack(pt, null);
+        stack.push(new RefCmd<>(stack, "x1", pt::getX, pt::setX, 1, null));
+        stack.push(new RefCmd<>(stack, "y1", pt::getY, pt::setY, 10, null));
+        stack.setClean();
+
+        UndoCommand chain = new UndoCommand(stack, "chain", null);
+        new RefCmd<>(stack, "x2", pt::getX, pt::setX, 2, chain);
+        new RefCmd<>(stack, "y2", pt::getY, pt::setY, 20, chain);
+        stack.push(chain);
+
+        stack.beginMacro("macro");
+        stack.push(new RefCmd<>(stack, "x3", pt::getX, pt::setX, 3, null));
+        stack.push(new RefCmd<>(stack, "y3", pt::getY, pt::setY, 30, null));
+        stack.endMacro();
+
+        stack.push(new RefCmd<>(stack, "x4", pt::getX, pt::setX, 4, null));
+        stack.undo();
+        return stack;
+    }
+
+}
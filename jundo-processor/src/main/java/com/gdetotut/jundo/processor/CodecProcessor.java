@@ -0,0 +1,362 @@
+package com.gdetotut.jundo.processor;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.Filer;
+import javax.annotation.processing.Messager;
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.*;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.lang.model.util.Elements;
+import javax.lang.model.util.Types;
+import javax.tools.Diagnostic;
+import javax.tools.FileObject;
+import javax.tools.StandardLocation;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Generates {@code CommandCodec} for every class marked with {@code GenerateCodec}
+ * and lists generated codecs in {@code META-INF/services/com.gdetotut.jundo.CommandCodec}.
+ * <p>Generated codec reads and writes the command's fields directly, so the class's fields
+ * should be accessible from its package.
+ */
+public class CodecProcessor extends AbstractProcessor {
+
+    private static final String ANNOTATION = "com.gdetotut.jundo.GenerateCodec";
+    private static final String CODEC = "com.gdetotut.jundo.CommandCodec";
+    private static final String COMMAND = "com.gdetotut.jundo.UndoCommand";
+    private static final String STACK = "com.gdetotut.jundo.UndoStack";
+    private static final String SERVICE = "META-INF/services/" + CODEC;
+
+    /**
+     * The least id for custom serializers.
+     */
+    private static final int FIRST_CUSTOM_ID = 16;
+
+    private Elements elements;
+    private Types types;
+    private Filer filer;
+    private Messager messager;
+
+    /**
+     * Binary names of generated codecs.
+     */
+    private final Set<String> codecs = new TreeSet<>();
+
+    /**
+     * Classes by codec's id.
+     */
+    private final Map<Integer, String> ids = new HashMap<>();
+
+    @Override
+    public synchronized void init(ProcessingEnvironment env) {
+        super.init(env);
+        elements = env.getElementUtils();
+        types = env.getTypeUtils();
+        filer = env.getFiler();
+        messager = env.getMessager();
+    }
+
+    @Override
+    public Set<String> getSupportedAnnotationTypes() {
+        return Collections.singleton(ANNOTATION);
+    }
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment env) {
+        TypeElement annotation = elements.getTypeElement(ANNOTATION);
+        if (null != annotation) {
+            for (Element element : env.getElementsAnnotatedWith(annotation)) {
+                try {
+                    generate((TypeElement) element, annotation);
+                } catch (IOException e) {
+                    messager.printMessage(Diagnostic.Kind.ERROR, "can't write codec: " + e.getMessage(), element);
+                }
+            }
+        }
+        if (env.processingOver() && null != annotation) {
+            try {
+                writeService(annotation);
+            } catch (IOException e) {
+                messager.printMessage(Diagnostic.Kind.ERROR, "can't write " + SERVICE + ": " + e.getMessage());
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Checks the class and generates its codec.
+     */
+    private void generate(TypeElement type, TypeElement annotation) throws IOException {
+        TypeMirror command = types.erasure(elements.getTypeElement(COMMAND).asType());
+        if (type.getKind() != ElementKind.CLASS || !types.isSubtype(types.erasure(type.asType()), command)) {
+            error(type, "@GenerateCodec is for UndoCommand's subclasses only");
+            return;
+        }
+        Set<Modifier> modifiers = type.getModifiers();
+        if (modifiers.contains(Modifier.ABSTRACT) || modifiers.contains(Modifier.PRIVATE)) {
+            error(type, "class with @GenerateCodec should be neither abstract nor private");
+            return;
+        }
+        if (type.getNestingKind() == NestingKind.MEMBER && !modifiers.contains(Modifier.STATIC)) {
+            error(type, "nested class with @GenerateCodec should be static");
+            return;
+        } else if (type.getNestingKind().isNested() && type.getNestingKind() != NestingKind.MEMBER) {
+            error(type, "class with @GenerateCodec should be top-level or member class");
+            return;
+        }
+
+        int id = id(type, annotation);
+        if (id < FIRST_CUSTOM_ID) {
+            error(type, "codec's id should be from " + FIRST_CUSTOM_ID);
+            return;
+        }
+        String other = ids.put(id, type.getQualifiedName().toString());
+        if (null != other) {
+            error(type, "codec's id " + id + " is already used by " + other);
+            return;
+        }
+        if (!hasConstructor(type)) {
+            error(type, "class with @GenerateCodec should have non-private constructor"
+                    + " (UndoStack owner, String caption, UndoCommand parent)");
+            return;
+        }
+        List<VariableElement> fields = fields(type, command);
+        if (null == fields) {
+            return;
+        }
+
+        PackageElement pkg = elements.getPackageOf(type);
+        String pkgName = pkg.isUnnamed() ? "" : pkg.getQualifiedName().toString();
+        String cls = type.getQualifiedName().toString();
+        String simpleName = (pkgName.isEmpty() ? cls : cls.substring(pkgName.length() + 1)).replace('.', '_')
+                + "_Codec";
+        String codecName = pkgName.isEmpty() ? simpleName : pkgName + "." + simpleName;
+
+        try (PrintWriter w = new PrintWriter(filer.createSourceFile(codecName, type).openWriter())) {
+            if (!pkgName.isEmpty()) {
+                w.println("package " + pkgName + ";");
+                w.println();
+            }
+            w.println("/**");
+            w.println(" * Codec for {@link " + cls + "}. Generated by jundo-processor, do not edit.");
+            w.println(" */");
+            w.println("@SuppressWarnings({\"unchecked\", \"rawtypes\"})");
+            w.println("public final class " + simpleName + " extends " + CODEC + "<" + cls + "> {");
+            w.println();
+            w.println("    public " + simpleName + "() {");
+            w.println("        super(" + cls + ".class, " + id + ");");
+            w.println("    }");
+            w.println();
+            w.println("    @Override");
+            w.println("    protected " + cls + " create(" + STACK + " owner, String caption) {");
+            w.println("        return new " + cls + "(owner, caption, null);");
+            w.println("    }");
+            w.println();
+            w.println("    @Override");
+            w.println("    protected void writeFields(" + cls + " cmd, java.io.ObjectOutput out)"
+                    + " throws java.io.IOException {");
+            for (VariableElement field : fields) {
+                String name = field.getSimpleName().toString();
+                String suffix = suffix(field.asType());
+                if (null != suffix) {
+                    w.println("        out.write" + suffix + "(cmd." + name + ");");
+                } else {
+                    w.println("        out.writeObject(cmd." + name + ");");
+                }
+            }
+            w.println("    }");
+            w.println();
+            w.println("    @Override");
+            w.println("    protected void readFields(" + cls + " cmd, java.io.ObjectInput in)"
+                    + " throws java.io.IOException, ClassNotFoundException {");
+            for (VariableElement field : fields) {
+                String name = field.getSimpleName().toString();
+                String suffix = suffix(field.asType());
+                if (null != suffix) {
+                    w.println("        cmd." + name + " = in.read" + suffix + "();");
+                } else {
+                    w.println("        cmd." + name + " = (" + types.erasure(field.asType()) + ") in.readObject();");
+                }
+            }
+            w.println("    }");
+            w.println();
+            w.println("    @Override");
+            w.println("    protected void copyFields(" + cls + " src, " + cls + " dst) {");
+            for (VariableElement field : fields) {
+                String name = field.getSimpleName().toString();
+                if (field.asType().getKind() == TypeKind.ARRAY) {
+                    w.println("        dst." + name + " = null != src." + name + " ? src." + name
+                            + ".clone() : null;");
+                } else {
+                    w.println("        dst." + name + " = src." + name + ";");
+                }
+            }
+            w.println("    }");
+            w.println("}");
+        }
+        codecs.add(codecName);
+    }
+
+    /**
+     * @return Fields to write: non-static non-transient fields of the class and its superclasses
+     * up to UndoCommand, in declaration order; null if some of them are not accessible.
+     */
+    private List<VariableElement> fields(TypeElement type, TypeMirror command) {
+        Deque<TypeElement> chain = new ArrayDeque<>();
+        for (TypeElement t = type; !types.isSameType(types.erasure(t.asType()), command);
+             t = (TypeElement) ((DeclaredType) t.getSuperclass()).asElement()) {
+            chain.push(t);
+        }
+        PackageElement pkg = elements.getPackageOf(type);
+        List<VariableElement> fields = new ArrayList<>();
+        boolean ok = true;
+        for (TypeElement t : chain) {
+            boolean samePackage = elements.getPackageOf(t).equals(pkg);
+            for (VariableElement field : ElementFilter.fieldsIn(t.getEnclosedElements())) {
+                Set<Modifier> modifiers = field.getModifiers();
+                if (modifiers.contains(Modifier.STATIC) || modifiers.contains(Modifier.TRANSIENT)) {
+                    continue;
+                }
+                if (modifiers.contains(Modifier.PRIVATE) || modifiers.contains(Modifier.FINAL)
+                        || (!samePackage && !modifiers.contains(Modifier.PUBLIC))) {
+                    error(field, "field of class with @GenerateCodec should be non-private and non-final"
+                            + " (or transient)");
+                    ok = false;
+                }
+                fields.add(field);
+            }
+        }
+        return ok ? fields : null;
+    }
+
+    private boolean hasConstructor(TypeElement type) {
+        for (ExecutableElement ctor : ElementFilter.constructorsIn(type.getEnclosedElements())) {
+            List<? extends VariableElement> params = ctor.getParameters();
+            if (!ctor.getModifiers().contains(Modifier.PRIVATE) && params.size() == 3
+                    && isType(params.get(0), STACK) && isType(params.get(1), String.class.getName())
+                    && isType(params.get(2), COMMAND)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isType(VariableElement param, String name) {
+        return types.isSameType(types.erasure(param.asType()), types.erasure(elements.getTypeElement(name).asType()));
+    }
+
+    /**
+     * @return Suffix of DataOutput/DataInput methods for primitive type; null for reference type.
+     */
+    private static String suffix(TypeMirror type) {
+        switch (type.getKind()) {
+            case BOOLEAN:
+                return "Boolean";
+            case BYTE:
+                return "Byte";
+            case SHORT:
+                return "Short";
+            case CHAR:
+                return "Char";
+            case INT:
+                return "Int";
+            case LONG:
+                return "Long";
+            case FLOAT:
+                return "Float";
+            case DOUBLE:
+                return "Double";
+            default:
+                return null;
+        }
+    }
+
+    private int id(TypeElement type, TypeElement annotation) {
+        for (AnnotationMirror mirror : type.getAnnotationMirrors()) {
+            if (types.isSameType(mirror.getAnnotationType(), annotation.asType())) {
+                for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> e
+                        : mirror.getElementValues().entrySet()) {
+                    if (e.getKey().getSimpleName().contentEquals("id")) {
+                        return (Integer) e.getValue().getValue();
+                    }
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Writes the service file, keeping codecs listed there by previous compilation
+     * unless their commands are gone or not marked any more.
+     */
+    private void writeService(TypeElement annotation) throws IOException {
+        Set<String> all = new TreeSet<>(codecs);
+        boolean stale = false;
+        try {
+            FileObject old = filer.getResource(StandardLocation.CLASS_OUTPUT, "", SERVICE);
+            try (BufferedReader r = new BufferedReader(new InputStreamReader(old.openInputStream(),
+                    StandardCharsets.UTF_8))) {
+                for (String line = r.readLine(); null != line; line = r.readLine()) {
+                    line = line.trim();
+                    if (line.isEmpty() || line.startsWith("#")) {
+                        continue;
+                    }
+                    if (codecs.contains(line) || isLive(line, annotation)) {
+                        all.add(line);
+                    } else {
+                        stale = true;
+                    }
+                }
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            // No file yet.
+        }
+        if (all.isEmpty() && !stale) {
+            return;
+        }
+        FileObject file = filer.createResource(StandardLocation.CLASS_OUTPUT, "", SERVICE);
+        try (Writer w = new OutputStreamWriter(file.openOutputStream(), StandardCharsets.UTF_8)) {
+            for (String codec : all) {
+                w.write(codec);
+                w.write('\n');
+            }
+        }
+    }
+
+    /**
+     * @param codecName binary name of the codec listed by previous compilation.
+     * @return True if the codec exists and its command is still marked with {@code GenerateCodec}.
+     */
+    private boolean isLive(String codecName, TypeElement annotation) {
+        TypeElement codec = elements.getTypeElement(codecName);
+        if (null == codec || codec.getSuperclass().getKind() != TypeKind.DECLARED) {
+            return false;
+        }
+        List<? extends TypeMirror> args = ((DeclaredType) codec.getSuperclass()).getTypeArguments();
+        Element cmd = args.size() == 1 ? types.asElement(args.get(0)) : null;
+        return cmd instanceof TypeElement && cmd.getKind() == ElementKind.CLASS
+                && id((TypeElement) cmd, annotation) >= FIRST_CUSTOM_ID;
+    }
+
+    private void error(Element element, String msg) {
+        messager.printMessage(Diagnostic.Kind.ERROR, msg, element);
+    }
+
+}
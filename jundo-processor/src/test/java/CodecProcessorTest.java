@@ -0,0 +1,140 @@
+import com.gdetotut.jundo.UndoCommand;
+import com.gdetotut.jundo.UndoPacket;
+import com.gdetotut.jundo.UndoStack;
+import com.gdetotut.jundo.processor.CodecProcessor;
+import org.junit.Test;
+import some.MoveCmd;
+import some.Point;
+
+import javax.tools.JavaCompiler;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class CodecProcessorTest {
+
+    @Test
+    public void testGenerated() throws Exception {
+        assertEquals("some.MoveCmd_Codec", Class.forName("some.MoveCmd_Codec").getName());
+        assertEquals("some.MoveCmd_Nested_Codec", Class.forName("some.MoveCmd_Nested_Codec").getName());
+    }
+
+    @Test
+    public void testStoreAndRestore() throws Exception {
+        Point pt = new Point();
+        UndoStack stack = new UndoStack(pt, null);
+        MoveCmd cmd = new MoveCmd(stack, 5);
+        cmd.setExtras(1.5, true, "label", new int[]{1, 2}, Arrays.asList("a", "b"));
+        MoveCmd.Nested nested = new MoveCmd.Nested(stack, "nested", cmd);
+        nested.setValue(7L);
+        stack.push(new MoveCmd(stack, 3));
+        stack.push(cmd);
+        assertEquals(3, pt.x);
+
+        String str = UndoPacket.make(stack, "pt", 1).store();
+        UndoStack stack1 = UndoPacket.peek(str, null).restore(null).stack(null);
+        Point pt1 = (Point) stack1.getSubj();
+        assertEquals(3, pt1.x);
+        assertEquals(3, ((MoveCmd) stack1.getCommand(0)).getDx());
+
+        MoveCmd cmd1 = (MoveCmd) stack1.getCommand(1);
+        assertEquals(5, cmd1.getDx());
+        assertEquals(1.5, cmd1.getScale(), 0);
+        assertTrue(cmd1.isFlag());
+        assertEquals("label", cmd1.getLabel());
+        assertArrayEquals(new int[]{1, 2}, cmd1.getPath());
+        assertEquals(Arrays.asList("a", "b"), cmd1.getTags());
+        assertEquals(0, cmd1.getCache());
+        assertEquals(1, cmd1.childCount());
+        assertEquals(7L, ((MoveCmd.Nested) cmd1.child(0)).getValue());
+        assertEquals("nested", cmd1.child(0).getCaption());
+
+        stack1.undo();
+        stack1.undo();
+        assertEquals(0, pt1.x);
+    }
+
+    @Test
+    public void testClone() throws Exception {
+        Point pt = new Point();
+        UndoStack stack = new UndoStack(pt, null);
+        MoveCmd cmd = new MoveCmd(stack, 5);
+        cmd.setExtras(1.5, true, "label", new int[]{1, 2}, Arrays.asList("a", "b"));
+        new MoveCmd.Nested(stack, "nested", cmd).setValue(7L);
+
+        UndoCommand copy = stack.clone(cmd);
+        assertEquals(MoveCmd.class, copy.getClass());
+        MoveCmd cmd1 = (MoveCmd) copy;
+        assertEquals(5, cmd1.getDx());
+        assertEquals("Move", cmd1.getCaption());
+        assertNotSame(cmd.getPath(), cmd1.getPath());
+        assertArrayEquals(cmd.getPath(), cmd1.getPath());
+        assertSame(cmd.getTags(), cmd1.getTags());
+        assertEquals(7L, ((MoveCmd.Nested) cmd1.child(0)).getValue());
+        assertNotSame(cmd.child(0), cmd1.child(0));
+    }
+
+    /**
+     * Codecs listed by previous compilation stay in the service file while their commands are marked.
+     */
+    @Test
+    public void testStaleServiceEntries() throws Exception {
+        Path dir = Files.createTempDirectory("jundo");
+        Path out = Files.createDirectories(dir.resolve("out"));
+        Path service = out.resolve("META-INF/services/com.gdetotut.jundo.CommandCodec");
+        File a = command(dir, "A", 200, true);
+        File b = command(dir, "B", 201, true);
+
+        compile(out, a, b);
+        assertEquals(Arrays.asList("stale.A_Codec", "stale.B_Codec"), Files.readAllLines(service));
+
+        // Incremental compilation keeps the codec of the other command
+        compile(out, a);
+        assertEquals(Arrays.asList("stale.A_Codec", "stale.B_Codec"), Files.readAllLines(service));
+
+        // The codec of the command that is not marked any more is dropped
+        b = command(dir, "B", 201, false);
+        compile(out, a, b);
+        assertEquals(Collections.singletonList("stale.A_Codec"), Files.readAllLines(service));
+    }
+
+    private static File command(Path dir, String name, int id, boolean marked) throws Exception {
+        Path file = Files.createDirectories(dir.resolve("src/stale")).resolve(name + ".java");
+        List<String> lines = Arrays.asList(
+                "package stale;",
+                marked ? "@com.gdetotut.jundo.GenerateCodec(id = " + id + ")" : "",
+                "public class " + name + " extends com.gdetotut.jundo.UndoCommand {",
+                "    " + name + "(com.gdetotut.jundo.UndoStack owner, String caption,"
+                        + " com.gdetotut.jundo.UndoCommand parent) {",
+                "        super(owner, caption, parent);",
+                "    }",
+                "}");
+        Files.write(file, lines, StandardCharsets.UTF_8);
+        return file.toFile();
+    }
+
+    private static void compile(Path out, File... files) throws Exception {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        try (StandardJavaFileManager fm = compiler.getStandardFileManager(null, null, StandardCharsets.UTF_8)) {
+            String cp = out + File.pathSeparator + System.getProperty("java.class.path");
+            JavaCompiler.CompilationTask task = compiler.getTask(null, fm, null,
+                    Arrays.asList("-d", out.toString(), "-s", out.toString(), "-cp", cp),
+                    null, fm.getJavaFileObjects(files));
+            task.setProcessors(Collections.singletonList(new CodecProcessor()));
+            assertTrue(task.call());
+        }
+    }
+
+}
@@ -0,0 +1,101 @@
+package some;
+
+import com.gdetotut.jundo.GenerateCodec;
+import com.gdetotut.jundo.UndoCommand;
+import com.gdetotut.jundo.UndoStack;
+
+import java.util.List;
+
+/**
+ * Command with the generated codec.
+ */
+@GenerateCodec(id = 100)
+public class MoveCmd extends UndoCommand {
+
+    int dx;
+    double scale;
+    boolean flag;
+    String label;
+    int[] path;
+    List<String> tags;
+    transient int cache;
+
+    MoveCmd(UndoStack owner, String caption, UndoCommand parent) {
+        super(owner, caption, parent);
+    }
+
+    public MoveCmd(UndoStack owner, int dx) {
+        this(owner, "Move", null);
+        this.dx = dx;
+    }
+
+    public int getDx() {
+        return dx;
+    }
+
+    public void setExtras(double scale, boolean flag, String label, int[] path, List<String> tags) {
+        this.scale = scale;
+        this.flag = flag;
+        this.label = label;
+        this.path = path;
+        this.tags = tags;
+        this.cache = 1;
+    }
+
+    public double getScale() {
+        return scale;
+    }
+
+    public boolean isFlag() {
+        return flag;
+    }
+
+    public String getLabel() {
+        return label;
+    }
+
+    public int[] getPath() {
+        return path;
+    }
+
+    public List<String> getTags() {
+        return tags;
+    }
+
+    public int getCache() {
+        return cache;
+    }
+
+    @Override
+    protected void doRedo() {
+        Point pt = (Point) owner.getSubj();
+        pt.x += dx;
+    }
+
+    @Override
+    protected void doUndo() {
+        Point pt = (Point) owner.getSubj();
+        pt.x -= dx;
+    }
+
+    /**
+     * Nested command with the generated codec.
+     */
+    @GenerateCodec(id = 101)
+    public static class Nested extends UndoCommand {
+
+        long value;
+
+        public Nested(UndoStack owner, String caption, UndoCommand parent) {
+            super(owner, caption, parent);
+        }
+
+        public long getValue() {
+            return value;
+        }
+
+        public void setValue(long value) {
+            this.value = value;
+        }
+    }
+}
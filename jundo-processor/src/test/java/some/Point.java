@@ -0,0 +1,9 @@
+package some;
+
+import java.io.Serializable;
+
+public class Point implements Serializable {
+
+    public int x;
+
+}